@@ -81,6 +81,11 @@ class Notepad implements Runnable {
     }
 
     public void commandFileOpen() {
+        JFileChooser fc = new JFileChooser(user.get("file.dir", null));
+        if (fc.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION) {
+            user.put("file.dir", fc.getCurrentDirectory().getPath());
+            frame.open(fc.getSelectedFile());
+        }
     }
 
     public void commandFileClose() {
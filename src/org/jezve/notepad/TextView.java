@@ -34,6 +34,7 @@ import org.jezve.notepad.text.format.FDimension;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.*;
+import java.io.*;
 import java.util.*;
 import javax.swing.*;
 
@@ -47,7 +48,9 @@ class TextView extends JComponent {
     double zoom;
     double screen_dpi;
 
+    AttributeMap style;
     MText text;
+    TextFile file;
     JEditorComponent editor;
 
     TextView() {
@@ -68,7 +71,7 @@ class TextView extends JComponent {
         attrs.put(TextAttribute.RUN_DIRECTION, TextAttribute.RUN_DIRECTION_LTR);
         attrs.put(TextAttribute.TAB_RULER, new TabRuler(36));
 
-        AttributeMap style = new AttributeMap(attrs);
+        style = new AttributeMap(attrs);
         text = new StyledText("The quick brown fox jumps over the lazy dog. " +
                 "The quick brown fox jumps over the lazy dog. " +
                 "The quick brown fox jumps over the lazy dog. " +
@@ -82,6 +85,10 @@ class TextView extends JComponent {
         screen_dpi = 72; //Toolkit.getDefaultToolkit().getScreenResolution();
         if (screen_dpi < 72) screen_dpi = 72;
 
+        createEditor();
+    }
+
+    private void createEditor() {
         editor = new JEditorComponent(text, style, page_size);
         editor.setOpaque(true);
         editor.setBackground(Color.white);
@@ -89,6 +96,30 @@ class TextView extends JComponent {
         add(editor);
     }
 
+    /**
+     * Show the text of the file.  Large files show up right away and keep
+     * growing while the rest of the file is loaded (see TextFile).
+     */
+    void open(File f) throws IOException {
+        TextFile tf = new TextFile(f, null, style);
+        if (file != null) {
+            file.close();
+        }
+        file = tf;
+        text = tf.getText();
+        remove(editor);
+        createEditor();
+        adjustEditorPosition();
+        final JEditorComponent e = editor;
+        tf.load(new Runnable() {
+            public void run() {
+                e.textChanged();
+            }
+        });
+        editor.requestFocus();
+        repaint();
+    }
+
     public void paint(Graphics g) {
         Graphics2D g2d = (Graphics2D)g;
         g2d.setColor(new Color(144, 153, 174));
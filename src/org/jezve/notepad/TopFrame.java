@@ -29,6 +29,7 @@ package org.jezve.notepad;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.*;
 import java.util.*;
 import javax.swing.*;
 
@@ -134,6 +135,15 @@ class TopFrame extends JFrame {
         repaint();
     }
 
+    void open(File file) {
+        try {
+            view.open(file);
+            validate();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), title, JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     void updateTitle(String extra) {
         setTitle(title + " - " + extra);
     }
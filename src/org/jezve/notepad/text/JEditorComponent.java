@@ -64,6 +64,7 @@ public class JEditorComponent extends JComponent {
         origin = new FPoint(0, TOP_MARGIN);
         this.frc = new FontRenderContext(null, true, true);
         this.format = new Formatter(text, style, bounds.width, true, frc);
+        format.setFormatInBackground(true);
 
         clipboard = StyledTextClipboard.getClipboardFor(null);
 
@@ -180,6 +181,18 @@ public class JEditorComponent extends JComponent {
         unlock(g2d);
     }
 
+    /**
+     * Reformat and redraw the damaged range of the text after it was changed by
+     * somebody else than the editor, e.g. appended by a TextFile being loaded.
+     */
+    public void textChanged() {
+        int start = text.damagedRangeStart();
+        if (start != Integer.MAX_VALUE) {
+            reformatAndDrawText(start, text.damagedRangeLimit() - start, selection.getStart(),
+                    selection.getEnd(), null, selection.getHighlightColor());
+        }
+    }
+
     void drawText(Graphics2D g, FRectangle drawRect, boolean selectionVisible, TextOffset selStart,
             TextOffset selEnd, Color hiliteColor) {
         if (g != null) {
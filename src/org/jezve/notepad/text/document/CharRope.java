@@ -0,0 +1,569 @@
+/**
+* Copyright (c) 2007-2008, jezve.org and its Contributors
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*     * Redistributions of source code must retain the above copyright
+*       notice, this list of conditions and the following disclaimer.
+*     * Redistributions in binary form must reproduce the above copyright
+*       notice, this list of conditions and the following disclaimer in the
+*       documentation and/or other materials provided with the distribution.
+*     * Neither the name of the jezve.org nor the
+*       names of its contributors may be used to endorse or promote products
+*       derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY jezve.org AND SOFTWARE CONTRIBUTORS ``AS IS'' AND ANY
+* EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL jezve.org or CONTRIBUTORS BE LIABLE FOR ANY
+* DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.jezve.notepad.text.document;
+
+import java.text.CharacterIterator;
+import java.util.ArrayList;
+
+/**
+ * Character storage of StyledText kept as a balanced tree of immutable chunks.
+ * <p/>
+ * The gap buffer (see CharBuffer) moves every character between the gap and
+ * an edit far away from it and copies the whole text when it grows.  Here an
+ * edit splits the tree at both ends of the replaced range and joins the parts
+ * with the new text, so insert, delete and at() cost O(log n) and only the
+ * chunks at the ends of the range (at most kLeafSize chars each) are copied.
+ * Subtrees of the tree are never modified once built: snapshot() and copying
+ * a range out of another rope (see replace(int, int, CharRope, int, int))
+ * share them instead of copying characters.
+ * <p/>
+ * The tree is kept balanced the AVL way: heights of the two halves of any
+ * node differ by at most one.
+ * <p/>
+ * Chunks may also be Sources whose chars are decoded only when read, e.g.
+ * from a memory-mapped file (see TextFile).  Edits split them without
+ * decoding, only the short pieces merged with new text are copied.
+ */
+final class CharRope {
+
+    static final int kLeafSize = 0x400;
+
+    private static final Node EMPTY = new Leaf(new char[0], 0, 0);
+
+    private Node fRoot = EMPTY;
+    /* leaf found by the last at(int), sequential reads don't descend the tree */
+    transient private Leaf fLeaf;
+    transient private char[] fLeafChars;
+    transient private int fLeafStart;
+
+    public CharRope() {
+    }
+
+    private CharRope(Node root) {
+        fRoot = root;
+    }
+
+    /**
+     * Return a rope of the sources, which are decoded only when their chars are read.
+     */
+    static CharRope of(Source[] sources, int count) {
+        Node[] leaves = new Node[count];
+        for (int i = 0; i < count; i++) {
+            leaves[i] = new Leaf(sources[i], 0, sources[i].length);
+        }
+        return new CharRope(build(leaves, 0, count));
+    }
+
+    /**
+     * Return a copy of the current text in constant time.  The copy shares
+     * all chunks with this rope, later changes of either one are not visible
+     * in the other.
+     */
+    public CharRope snapshot() {
+        return new CharRope(fRoot);
+    }
+
+    public void replace(int start, int limit, char[] srcChars, int srcStart, int srcLimit) {
+        replace(start, limit, build(srcChars, srcStart, srcChars == null ? 0 : srcLimit - srcStart));
+    }
+
+    public void replace(int start, int limit, String srcString, int srcStart, int srcLimit) {
+        replace(start, limit, build(srcString, srcStart, srcString == null ? 0 : srcLimit - srcStart));
+    }
+
+    public void replace(int start, int limit, MConstText srcText, int srcStart, int srcLimit) {
+        replace(start, limit, build(srcText, srcStart, srcLimit - srcStart));
+    }
+
+    /*
+     * Replace the chars from start to limit with the chars from srcStart to srcLimit
+     * of src.  The chars are shared with src, not copied.
+     */
+    public void replace(int start, int limit, CharRope src, int srcStart, int srcLimit) {
+        src.checkRange(srcStart, srcLimit);
+        replace(start, limit, prefix(suffix(src.fRoot, srcStart), srcLimit - srcStart));
+    }
+
+    public void replace(int start, int limit, char srcChar) {
+        replace(start, limit, new Leaf(new char[]{srcChar}, 0, 1));
+    }
+
+    /*
+     * This is the core routine for manipulating the rope.
+     */
+    private void replace(int start, int limit, Node text) {
+        checkRange(start, limit);
+        fRoot = concat(concat(prefix(fRoot, start), text), suffix(fRoot, limit));
+        fLeaf = null;
+        fLeafChars = null;
+    }
+
+    public char at(int pos) {
+        if (pos < 0 || pos >= fRoot.length) {
+            throw new IllegalArgumentException();
+        }
+        if (fLeaf == null || pos < fLeafStart || pos >= fLeafStart + fLeaf.length) {
+            Node n = fRoot;
+            int start = 0;
+            while (n instanceof Concat) {
+                Concat c = (Concat)n;
+                if (pos - start < c.left.length) {
+                    n = c.left;
+                }
+                else {
+                    start += c.left.length;
+                    n = c.right;
+                }
+            }
+            fLeaf = (Leaf)n;
+            fLeafChars = fLeaf.chars();
+            fLeafStart = start;
+        }
+        return fLeafChars[fLeaf.offset + pos - fLeafStart];
+    }
+
+    /*
+     * Copy the chars from start to limit to dst starting at dstStart.
+     */
+    public void at(int start, int limit, char[] dst, int dstStart) {
+        checkRange(start, limit);
+        copy(fRoot, start, limit, dst, dstStart);
+    }
+
+    public final int length() {
+        return fRoot.length;
+    }
+
+    /**
+     * Rebuild the tree out of full chunks.  Many small edits leave short chunks behind.
+     * Sources are kept as they are, they take no memory until read.
+     */
+    public void compress() {
+        ArrayList leaves = new ArrayList();
+        collect(fRoot, leaves);
+        ArrayList chunks = new ArrayList();
+        for (int i = 0; i < leaves.size();) {
+            Leaf l = (Leaf)leaves.get(i);
+            if (l.source != null) {
+                chunks.add(l);
+                i++;
+                continue;
+            }
+            int length = 0;
+            int limit = i;
+            while (limit < leaves.size() && ((Leaf)leaves.get(limit)).source == null &&
+                    (limit == i || length + ((Leaf)leaves.get(limit)).length <= kLeafSize)) {
+                length += ((Leaf)leaves.get(limit++)).length;
+            }
+            char[] chars = new char[length];
+            for (int pos = 0; i < limit; i++) {
+                l = (Leaf)leaves.get(i);
+                System.arraycopy(l.chars, l.offset, chars, pos, l.length);
+                pos += l.length;
+            }
+            chunks.add(new Leaf(chars, 0, length));
+        }
+        fRoot = build((Node[])chunks.toArray(new Node[chunks.size()]), 0, chunks.size());
+        fLeaf = null;
+        fLeafChars = null;
+    }
+
+    /**
+     * Display the rope.
+     */
+    public String toString() {
+        char[] chars = new char[fRoot.length];
+        copy(fRoot, 0, chars.length, chars, 0);
+        return new StringBuffer()
+                .append("size: ").append(fRoot.length)
+                .append(", height: ").append(fRoot.height)
+                .append(", ").append(chars)
+                .toString();
+    }
+
+    /**
+     * Iterators read the text as it was when they were created, so unlike the
+     * ones of CharBuffer they stay valid when the rope changes.
+     */
+    public CharacterIterator createCharacterIterator(int start, int limit) {
+        checkRange(start, limit);
+        return new Iterator(fRoot, start, limit);
+    }
+
+    private void checkRange(int start, int limit) {
+        if (start < 0 || limit < start || limit > fRoot.length) {
+            throw new IllegalArgumentException("start: " + start + ", limit: " + limit +
+                    ", length: " + fRoot.length);
+        }
+    }
+
+    //--------------------------------------------------------
+    // tree
+    //--------------------------------------------------------
+
+    private static abstract class Node {
+        final int length;
+        final int height;
+
+        Node(int length, int height) {
+            this.length = length;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Chars decoded on demand.  getChars() may be called from several threads
+     * and must return the same length chars every time.
+     */
+    static abstract class Source {
+        final int length;
+
+        Source(int length) {
+            this.length = length;
+        }
+
+        abstract char[] getChars();
+    }
+
+    /* chars [offset, offset + length) of the array or source, the array is never modified */
+    private static final class Leaf extends Node {
+        final char[] chars;
+        final Source source;
+        final int offset;
+
+        Leaf(char[] chars, int offset, int length) {
+            super(length, 0);
+            this.chars = chars;
+            this.source = null;
+            this.offset = offset;
+        }
+
+        Leaf(Source source, int offset, int length) {
+            super(length, 0);
+            this.chars = null;
+            this.source = source;
+            this.offset = offset;
+        }
+
+        Leaf(Leaf l, int offset, int length) {
+            super(length, 0);
+            this.chars = l.chars;
+            this.source = l.source;
+            this.offset = offset;
+        }
+
+        char[] chars() {
+            return source != null ? source.getChars() : chars;
+        }
+    }
+
+    private static final class Concat extends Node {
+        final Node left;
+        final Node right;
+
+        Concat(Node left, Node right) {
+            super(left.length + right.length, Math.max(left.height, right.height) + 1);
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /*
+     * Build a balanced tree of full chunks out of len chars of src starting at srcStart.
+     * src is a char[], String, MConstText or CharRope.
+     */
+    private static Node build(Object src, int srcStart, int len) {
+        if (len <= kLeafSize) {
+            if (len == 0) {
+                return EMPTY;
+            }
+            char[] chars = new char[len];
+            if (src instanceof char[]) {
+                System.arraycopy((char[])src, srcStart, chars, 0, len);
+            }
+            else if (src instanceof String) {
+                ((String)src).getChars(srcStart, srcStart + len, chars, 0);
+            }
+            else if (src instanceof MConstText) {
+                ((MConstText)src).extractChars(srcStart, srcStart + len, chars, 0);
+            }
+            else {
+                ((CharRope)src).at(srcStart, srcStart + len, chars, 0);
+            }
+            return new Leaf(chars, 0, len);
+        }
+        // split on a chunk boundary so that both halves have the same height or differ by one
+        int leaves = (len + kLeafSize - 1) / kLeafSize;
+        int half = (leaves + 1) / 2 * kLeafSize;
+        return new Concat(build(src, srcStart, half), build(src, srcStart + half, len - half));
+    }
+
+    /* build a balanced tree of leaves [start, limit) */
+    private static Node build(Node[] leaves, int start, int limit) {
+        if (limit - start <= 1) {
+            return start == limit ? EMPTY : leaves[start];
+        }
+        int half = (start + limit + 1) / 2;
+        return new Concat(build(leaves, start, half), build(leaves, half, limit));
+    }
+
+    private static void collect(Node n, ArrayList leaves) {
+        if (n instanceof Concat) {
+            collect(((Concat)n).left, leaves);
+            collect(((Concat)n).right, leaves);
+        }
+        else if (n.length > 0) {
+            leaves.add(n);
+        }
+    }
+
+    /* first len chars of n */
+    private static Node prefix(Node n, int len) {
+        if (len == 0) {
+            return EMPTY;
+        }
+        if (len == n.length) {
+            return n;
+        }
+        if (n instanceof Leaf) {
+            Leaf l = (Leaf)n;
+            return new Leaf(l, l.offset, len);
+        }
+        Concat c = (Concat)n;
+        if (len <= c.left.length) {
+            return prefix(c.left, len);
+        }
+        return concat(c.left, prefix(c.right, len - c.left.length));
+    }
+
+    /* chars of n from pos on */
+    private static Node suffix(Node n, int pos) {
+        if (pos == 0) {
+            return n;
+        }
+        if (pos == n.length) {
+            return EMPTY;
+        }
+        if (n instanceof Leaf) {
+            Leaf l = (Leaf)n;
+            return new Leaf(l, l.offset + pos, l.length - pos);
+        }
+        Concat c = (Concat)n;
+        if (pos >= c.left.length) {
+            return suffix(c.right, pos - c.left.length);
+        }
+        return concat(suffix(c.left, pos), c.right);
+    }
+
+    /*
+     * Join two balanced trees into a balanced tree.  Costs the difference of their heights.
+     * Short chunks meeting at the seam are merged, so typing doesn't grow a chunk per char.
+     */
+    private static Node concat(Node a, Node b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        if (a instanceof Leaf && b instanceof Leaf && a.length + b.length <= kLeafSize) {
+            return merge((Leaf)a, (Leaf)b);
+        }
+        if (a.height > b.height + 1) {
+            Concat c = (Concat)a;
+            return balance(c.left, concat(c.right, b));
+        }
+        if (b.height > a.height + 1) {
+            Concat c = (Concat)b;
+            return balance(concat(a, c.left), c.right);
+        }
+        if (a instanceof Concat && b instanceof Leaf) {
+            Concat c = (Concat)a;
+            if (c.right instanceof Leaf && c.right.length + b.length <= kLeafSize) {
+                return new Concat(c.left, merge((Leaf)c.right, (Leaf)b));
+            }
+        }
+        if (a instanceof Leaf && b instanceof Concat) {
+            Concat c = (Concat)b;
+            if (c.left instanceof Leaf && a.length + c.left.length <= kLeafSize) {
+                return new Concat(merge((Leaf)a, (Leaf)c.left), c.right);
+            }
+        }
+        return new Concat(a, b);
+    }
+
+    /* join two trees whose heights differ by at most two */
+    private static Node balance(Node l, Node r) {
+        if (l.height > r.height + 1) {
+            Concat c = (Concat)l;
+            if (c.left.height >= c.right.height) {
+                return new Concat(c.left, new Concat(c.right, r));
+            }
+            Concat m = (Concat)c.right;
+            return new Concat(new Concat(c.left, m.left), new Concat(m.right, r));
+        }
+        if (r.height > l.height + 1) {
+            Concat c = (Concat)r;
+            if (c.right.height >= c.left.height) {
+                return new Concat(new Concat(l, c.left), c.right);
+            }
+            Concat m = (Concat)c.left;
+            return new Concat(new Concat(l, m.left), new Concat(m.right, c.right));
+        }
+        return new Concat(l, r);
+    }
+
+    private static Leaf merge(Leaf a, Leaf b) {
+        char[] chars = new char[a.length + b.length];
+        System.arraycopy(a.chars(), a.offset, chars, 0, a.length);
+        System.arraycopy(b.chars(), b.offset, chars, a.length, b.length);
+        return new Leaf(chars, 0, chars.length);
+    }
+
+    private static void copy(Node n, int start, int limit, char[] dst, int dstStart) {
+        while (start < limit) {
+            if (n instanceof Leaf) {
+                Leaf l = (Leaf)n;
+                System.arraycopy(l.chars(), l.offset + start, dst, dstStart, limit - start);
+                return;
+            }
+            Concat c = (Concat)n;
+            int split = c.left.length;
+            if (start < split) {
+                int end = Math.min(limit, split);
+                copy(c.left, start, end, dst, dstStart);
+                dstStart += end - start;
+                start = end;
+            }
+            else {
+                n = c.right;
+                start -= split;
+                limit -= split;
+            }
+        }
+    }
+
+    static final class Iterator implements CharacterIterator, Cloneable {
+        private final Node root;
+        private final int start;
+        private final int limit;
+        private int current;
+        /* leaf containing current, chars [leafStart, leafLimit) of the text */
+        private Leaf leaf;
+        private char[] chars;
+        private int leafStart;
+        private int leafLimit;
+
+        Iterator(Node root, int start, int limit) {
+            this.root = root;
+            this.start = start;
+            this.limit = limit;
+            current = start;
+        }
+
+        public char first() {
+            return setIndex(start);
+        }
+
+        public char last() {
+            return setIndex(limit > start ? limit - 1 : limit);
+        }
+
+        public char current() {
+            if (current < start || current >= limit) {
+                return DONE;
+            }
+            if (leaf == null || current < leafStart || current >= leafLimit) {
+                Node n = root;
+                int s = 0;
+                while (n instanceof Concat) {
+                    Concat c = (Concat)n;
+                    if (current - s < c.left.length) {
+                        n = c.left;
+                    }
+                    else {
+                        s += c.left.length;
+                        n = c.right;
+                    }
+                }
+                leaf = (Leaf)n;
+                chars = leaf.chars();
+                leafStart = s;
+                leafLimit = s + n.length;
+            }
+            return chars[leaf.offset + current - leafStart];
+        }
+
+        public char next() {
+            current++;
+            if (current >= limit) {
+                current = limit;
+                return DONE;
+            }
+            return current();
+        }
+
+        public char previous() {
+            current--;
+            if (current >= start) {
+                return current();
+            }
+            current = start;
+            return DONE;
+        }
+
+        public char setIndex(int i) {
+            if (i < start || i > limit) {
+                throw new IllegalArgumentException("Invalid position");
+            }
+            current = i;
+            return current();
+        }
+
+        public int getBeginIndex() {
+            return start;
+        }
+
+        public int getEndIndex() {
+            return limit;
+        }
+
+        public int getIndex() {
+            return current;
+        }
+
+        public Object clone() {
+            try {
+                return super.clone();
+            }
+            catch (CloneNotSupportedException e) {
+                return null;
+            }
+        }
+    }
+}
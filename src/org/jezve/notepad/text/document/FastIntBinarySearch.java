@@ -42,7 +42,8 @@ final class FastIntBinarySearch {
     private int fFirstIndex;
 
     private static final int exp2[] = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096,
-            8192, 16384, 32768, 65536, 131072};
+            8192, 16384, 32768, 65536, 131072, 262144, 524288, 1048576, 2097152, 4194304,
+            8388608, 16777216, 33554432, 67108864, 134217728, 268435456, 536870912, 1073741824};
 
     public FastIntBinarySearch(int data[]) {
         this(data, 0, data.length);
@@ -85,6 +86,32 @@ final class FastIntBinarySearch {
         // at this point, index is the "upper limit" of the search
 
         switch (power) {
+        case 30:
+            if (value < dataArray[index - 536870912]) index -= 536870912;
+        case 29:
+            if (value < dataArray[index - 268435456]) index -= 268435456;
+        case 28:
+            if (value < dataArray[index - 134217728]) index -= 134217728;
+        case 27:
+            if (value < dataArray[index - 67108864]) index -= 67108864;
+        case 26:
+            if (value < dataArray[index - 33554432]) index -= 33554432;
+        case 25:
+            if (value < dataArray[index - 16777216]) index -= 16777216;
+        case 24:
+            if (value < dataArray[index - 8388608]) index -= 8388608;
+        case 23:
+            if (value < dataArray[index - 4194304]) index -= 4194304;
+        case 22:
+            if (value < dataArray[index - 2097152]) index -= 2097152;
+        case 21:
+            if (value < dataArray[index - 1048576]) index -= 1048576;
+        case 20:
+            if (value < dataArray[index - 524288]) index -= 524288;
+        case 19:
+            if (value < dataArray[index - 262144]) index -= 262144;
+        case 18:
+            if (value < dataArray[index - 131072]) index -= 131072;
         case 17:
             if (value < dataArray[index - 65536]) index -= 65536;
         case 16:
@@ -27,6 +27,8 @@
 
 package org.jezve.notepad.text.document;
 
+import java.text.CharacterIterator;
+
 /**
  * This class stores offsets where paragraph breaks occur, and the style applied to
  * each paragraph.
@@ -52,7 +54,7 @@ package org.jezve.notepad.text.document;
  * break is removed.
  */
 
-/* Right now, you have to construct this class with a charBuffer.  That's pretty ugly... */
+/* Right now, you have to construct this class with a CharRope.  That's pretty ugly... */
 
 final class ParagraphBuffer {
 
@@ -66,18 +68,20 @@ final class ParagraphBuffer {
         return c == '\u2029' || c == '\n';
     }
 
-    // Construct a new paragraph buffer from the characters in <tt>charBuffer</tt>.
-    ParagraphBuffer(CharBuffer charBuffer) {
+    // Construct a new paragraph buffer from the characters in <tt>chars</tt>.
+    ParagraphBuffer(CharRope chars) {
 
-        this(charBuffer.length());
+        this(chars.length());
 
         // scan text for paragraph boundaries
 
         int textLength = fRunArray.getCurTextLength();
 
-        for (int pos = 0; pos < textLength; pos++) {
+        CharacterIterator iter = chars.createCharacterIterator(0, textLength);
+        for (char c = iter.first(); c != CharacterIterator.DONE; c = iter.next()) {
 
-            if (isParagraphBreak(charBuffer.at(pos))) {
+            if (isParagraphBreak(c)) {
+                int pos = iter.getIndex();
                 if (fRunArray.fPosEnd + 1 >= fRunArray.fNegStart) {
                     expandStyleTable();
                 }
@@ -198,6 +202,30 @@ final class ParagraphBuffer {
         fRunArray.addToCurTextLength(srcLimit - srcStart);
     }
 
+    /*
+     * Process insertion of [start, limit) whose paragraph breaks are at offsets
+     * start + breaks[i] for i in [0, count), in ascending order.
+     * Each new paragraph gets paragraph style at <tt>start</tt>.
+     */
+    void insertBreaks(int start, int limit, int[] breaks, int count) {
+
+        shiftTableTo(start);
+
+        for (int i = 0; i < count; i++) {
+            if (fRunArray.fPosEnd + 1 >= fRunArray.fNegStart) {
+                expandStyleTable();
+            }
+            fRunArray.fRunStart[++fRunArray.fPosEnd] = start + breaks[i];
+            fStyleTable[fRunArray.fPosEnd] =
+                    (fRunArray.fPosEnd == 0) ? fFirstStyle : fStyleTable[fRunArray.fPosEnd - 1];
+        }
+        if (count > 0) {
+            fRunArray.runStartsChanged();
+        }
+
+        fRunArray.addToCurTextLength(limit - start);
+    }
+
     /*
      * Process deletion by removing paragraph breaks contained in
      * deleted range.  Propogate paragraph styles backward, if necessary.
@@ -38,7 +38,7 @@ import java.text.CharacterIterator;
 public final class StyledText implements MText {
 
     /* unicode storage */
-    private CharBuffer fCharBuffer;
+    private CharRope fCharRope;
     /* character style storage */
     private StyleBuffer fStyleBuffer;
     /* paragraph style storage */
@@ -69,12 +69,13 @@ public final class StyledText implements MText {
     /**
      * Create an empty text object ready to hold at least capacity chars.
      *
-     * @param capacity the minimum capacity of the internal text buffer
+     * @param capacity the minimum capacity of the internal text buffer, only a hint:
+     *                 characters are stored in chunks allocated as needed
      */
     public StyledText(int capacity) {
-        fCharBuffer = capacity > 0 ? new CharBuffer(capacity) : new CharBuffer();
+        fCharRope = new CharRope();
         fStyleBuffer = new StyleBuffer(this, AttributeMap.EMPTY_ATTRIBUTE_MAP);
-        fParagraphBuffer = new ParagraphBuffer(fCharBuffer);
+        fParagraphBuffer = new ParagraphBuffer(fCharRope);
     }
 
     /**
@@ -85,11 +86,11 @@ public final class StyledText implements MText {
      * @param initialStyle the style of the initial text
      */
     public StyledText(String string, AttributeMap initialStyle) {
-        fCharBuffer = new CharBuffer(string.length());
-        fCharBuffer.replace(0, 0, string, 0, string.length());
+        fCharRope = new CharRope();
+        fCharRope.replace(0, 0, string, 0, string.length());
 
         fStyleBuffer = new StyleBuffer(this, initialStyle);
-        fParagraphBuffer = new ParagraphBuffer(fCharBuffer);
+        fParagraphBuffer = new ParagraphBuffer(fCharRope);
     }
 
     /**
@@ -125,7 +126,7 @@ public final class StyledText implements MText {
      * @return the character at offset <code>pos</code>
      */
     public char at(int pos) {
-        return fCharBuffer.at(pos);
+        return fCharRope.at(pos);
     }
 
     /**
@@ -138,7 +139,7 @@ public final class StyledText implements MText {
      *              (<code>dstStart + limit - start</code>).
      */
     public void extractChars(int start, int limit, char[] dst, int dstStart) {
-        fCharBuffer.at(start, limit, dst, dstStart);
+        fCharRope.at(start, limit, dst, dstStart);
     }
 
     //-------------------------------------------------------
@@ -180,7 +181,7 @@ public final class StyledText implements MText {
  * @return the length of the MConstText object
  */
     public int length() {
-        return fCharBuffer.length();
+        return fCharRope.length();
     }
 
     public CharacterIterator createCharacterIterator() {
@@ -196,7 +197,7 @@ public final class StyledText implements MText {
      * @see java.text.CharacterIterator
      */
     public CharacterIterator createCharacterIterator(int start, int limit) {
-        return fCharBuffer.createCharacterIterator(start, limit);
+        return fCharRope.createCharacterIterator(start, limit);
     }
 
     //--------------------------------------------------------
@@ -326,7 +327,13 @@ public final class StyledText implements MText {
 
         updateDamagedRange(start, limit, srcLimit - srcStart);
 
-        fCharBuffer.replace(start, limit, text, srcStart, srcLimit);
+        if (text instanceof StyledText) {
+            // share the chars, undo and clipboard copies don't duplicate them
+            fCharRope.replace(start, limit, ((StyledText)text).fCharRope, srcStart, srcLimit);
+        }
+        else {
+            fCharRope.replace(start, limit, text, srcStart, srcLimit);
+        }
         fStyleBuffer.replace(start, limit, text, srcStart, srcLimit);
         fParagraphBuffer.replace(start, limit, text, srcStart, srcLimit, fDamagedRange);
         fTimeStamp += 1;
@@ -370,7 +377,7 @@ public final class StyledText implements MText {
 
         updateDamagedRange(start, limit, srcLimit - srcStart);
 
-        fCharBuffer.replace(start, limit, srcChars, srcStart, srcLimit);
+        fCharRope.replace(start, limit, srcChars, srcStart, srcLimit);
 
         replaceCharStylesWith(start, limit, start + (srcLimit - srcStart), charsStyle);
 
@@ -410,7 +417,7 @@ public final class StyledText implements MText {
 
         updateDamagedRange(start, limit, 1);
 
-        fCharBuffer.replace(start, limit, srcChar);
+        fCharRope.replace(start, limit, srcChar);
 
         replaceCharStylesWith(start, limit, start + 1, charStyle);
 
@@ -454,6 +461,29 @@ public final class StyledText implements MText {
         replace(length(), length(), srcText, 0, srcText.length());
     }
 
+    /*
+     * Append chars with the given style.  breaks are the offsets of the paragraph
+     * breaks among the chars, found while they were decoded (see TextFile), so that
+     * they are not read again.  The chars are shared, not copied.
+     */
+    void append(CharRope chars, int[] breaks, int count, AttributeMap charsStyle) {
+        int start = length();
+        int limit = start + chars.length();
+        if (start == limit) {
+            return;
+        }
+
+        updateDamagedRange(start, start, limit - start);
+
+        fCharRope.replace(start, start, chars, 0, chars.length());
+
+        replaceCharStylesWith(start, start, limit, charsStyle);
+
+        fParagraphBuffer.insertBreaks(start, limit, breaks, count);
+
+        fTimeStamp += 1;
+    }
+
     /**
      * Delete the specified range of characters (and styles).
      *
@@ -470,16 +500,16 @@ public final class StyledText implements MText {
     public void remove() {
         // rather than going through replace(), just reinitialize the StyledText,
         // letting the old data structures fall on the floor
-        fCharBuffer = new CharBuffer();
+        fCharRope = new CharRope();
         fStyleBuffer = new StyleBuffer(this, AttributeMap.EMPTY_ATTRIBUTE_MAP);
-        fParagraphBuffer = new ParagraphBuffer(fCharBuffer);
+        fParagraphBuffer = new ParagraphBuffer(fCharRope);
         fTimeStamp += 1;
         fDamagedRange[0] = fDamagedRange[1] = 0;
     }
 
     // Minimize the amount of memory used by the MText object.
     public void compress() {
-        fCharBuffer.compress();
+        fCharRope.compress();
         fStyleBuffer.compress();
         fParagraphBuffer.compress();
     }
@@ -0,0 +1,314 @@
+/**
+* Copyright (c) 2007-2008, jezve.org and its Contributors
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*     * Redistributions of source code must retain the above copyright
+*       notice, this list of conditions and the following disclaimer.
+*     * Redistributions in binary form must reproduce the above copyright
+*       notice, this list of conditions and the following disclaimer in the
+*       documentation and/or other materials provided with the distribution.
+*     * Neither the name of the jezve.org nor the
+*       names of its contributors may be used to endorse or promote products
+*       derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY jezve.org AND SOFTWARE CONTRIBUTORS ``AS IS'' AND ANY
+* EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL jezve.org or CONTRIBUTORS BE LIABLE FOR ANY
+* DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.jezve.notepad.text.document;
+
+import java.awt.EventQueue;
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * A text file opened in constant time regardless of its size.
+ * <p/>
+ * The file is memory-mapped and split into chunks of at most kChunkSize bytes
+ * ending between characters.  The text is a StyledText whose chars are the
+ * chunks (see CharRope.Source): a chunk is decoded when its chars are read and
+ * the decoded chars are only softly referenced, so scrolling through a huge log
+ * keeps just the recently viewed chunks in memory.  Edits split chunks without
+ * decoding them, editable copies are made only of the short pieces around the
+ * edits.
+ * <p/>
+ * The constructor decodes the first chunk only, enough for the first screen.
+ * load() decodes the rest on a background thread to count its chars and find
+ * the paragraph breaks, and appends it to the text in batches on the event
+ * dispatch thread, so the text grows while the file is being loaded:
+ * <pre>
+ * TextFile file = new TextFile(f, "UTF-8", style);
+ * final JEditorComponent editor = new JEditorComponent(file.getText(), style, size);
+ * file.load(new Runnable() {
+ *     public void run() {
+ *         editor.textChanged();
+ *     }
+ * });
+ * </pre>
+ * Chunks end after a line feed byte when there is one in their second half.
+ * Otherwise UTF-8 and UTF-16 chunks end between characters, other multibyte
+ * encodings may break a character of a line longer than kChunkSize / 2 bytes.
+ * <p/>
+ * The file must not be modified while it is open.
+ */
+public final class TextFile {
+
+    static final int kChunkSize = 0x10000; // bytes decoded at once
+    private static final int kSegmentSize = 0x40000000; // bytes mapped at once
+    private static final int kBatchSize = 0x100000; // chars appended to the text at once
+
+    private final File fFile;
+    private final Charset fCharset;
+    private final boolean fWide; // UTF-16
+    private final boolean fBigEndian;
+    private final long fSize;
+    private final ByteBuffer[] fSegments;
+    private final AttributeMap fStyle;
+    private final StyledText fText;
+    private final long fFirstLimit; // end of the chunks in fText before load()
+    private volatile boolean fClosed;
+    private volatile boolean fLoaded;
+
+    /**
+     * Open a text file.
+     *
+     * @param file        the file
+     * @param charsetName encoding of the file, a byte order mark overrides it;
+     *                    null for UTF-8
+     * @param style       character style of the text
+     * @throws IOException if the file cannot be read
+     */
+    public TextFile(File file, String charsetName, AttributeMap style) throws IOException {
+        fFile = file;
+        fStyle = style;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            fSize = channel.size();
+            fSegments = new ByteBuffer[(int)((fSize + kSegmentSize - 1) / kSegmentSize)];
+            for (int i = 0; i < fSegments.length; i++) {
+                // segments overlap by a chunk, chunks starting in a segment end in it
+                long start = (long)i * kSegmentSize;
+                long size = Math.min(fSize - start, (long)kSegmentSize + kChunkSize);
+                fSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+        finally {
+            raf.close(); // mappings stay valid
+        }
+
+        String name = charsetName != null ? charsetName : "UTF-8";
+        long start = 0;
+        if (fSize >= 3 && byteAt(0) == 0xEF && byteAt(1) == 0xBB && byteAt(2) == 0xBF) {
+            name = "UTF-8";
+            start = 3;
+        }
+        else if (fSize >= 2 && byteAt(0) == 0xFE && byteAt(1) == 0xFF) {
+            name = "UTF-16BE";
+            start = 2;
+        }
+        else if (fSize >= 2 && byteAt(0) == 0xFF && byteAt(1) == 0xFE) {
+            name = "UTF-16LE";
+            start = 2;
+        }
+        fCharset = Charset.forName(name);
+        fWide = fCharset.name().startsWith("UTF-16");
+        fBigEndian = !fCharset.name().equals("UTF-16LE");
+
+        fText = new StyledText();
+        fFirstLimit = start < fSize ? chunkLimit(start) : fSize;
+        if (start < fFirstLimit) {
+            char[] chars = decode(start, fFirstLimit);
+            int[] breaks = new int[16];
+            int count = 0;
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == '\n' || chars[i] == '\u2029') {
+                    if (count == breaks.length) {
+                        breaks = grow(breaks);
+                    }
+                    breaks[count++] = i;
+                }
+            }
+            CharRope.Source[] first = {new Chunk(start, fFirstLimit, chars)};
+            fText.append(CharRope.of(first, 1), breaks, count, fStyle);
+        }
+        fText.resetDamagedRange();
+        fLoaded = fFirstLimit == fSize;
+    }
+
+    /**
+     * Return the text of the file, only the beginning of it until the file is loaded.
+     */
+    public MText getText() {
+        return fText;
+    }
+
+    /**
+     * Decode the rest of the file on a background thread and append it to the text
+     * on the event dispatch thread.
+     *
+     * @param appended called on the event dispatch thread after each append, the damaged
+     *                 range of the text is the appended range; may be null
+     */
+    public void load(final Runnable appended) {
+        if (fLoaded) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                scan(appended);
+            }
+        }, "TextFile " + fFile.getName());
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Return true if the whole file is in the text.
+     */
+    public boolean isLoaded() {
+        return fLoaded;
+    }
+
+    /**
+     * Stop loading.  The text keeps what was loaded so far.
+     */
+    public void close() {
+        fClosed = true;
+    }
+
+    private void scan(Runnable appended) {
+        ArrayList chunks = new ArrayList();
+        int[] breaks = new int[1024];
+        int count = 0;
+        int chars = 0;
+        for (long pos = fFirstLimit; pos < fSize && !fClosed;) {
+            long limit = chunkLimit(pos);
+            char[] decoded = decode(pos, limit);
+            for (int i = 0; i < decoded.length; i++) {
+                if (decoded[i] == '\n' || decoded[i] == '\u2029') {
+                    if (count == breaks.length) {
+                        breaks = grow(breaks);
+                    }
+                    breaks[count++] = chars + i;
+                }
+            }
+            chunks.add(new Chunk(pos, limit, decoded));
+            chars += decoded.length;
+            pos = limit;
+            if (chars >= kBatchSize || pos == fSize) {
+                CharRope.Source[] sources = (CharRope.Source[])chunks.toArray(
+                        new CharRope.Source[chunks.size()]);
+                post(CharRope.of(sources, sources.length), breaks, count, pos == fSize, appended);
+                chunks.clear();
+                breaks = new int[1024];
+                count = 0;
+                chars = 0;
+            }
+        }
+    }
+
+    private void post(final CharRope chars, final int[] breaks, final int count,
+            final boolean last, final Runnable appended) {
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                if (fClosed) {
+                    return;
+                }
+                fText.resetDamagedRange();
+                fText.append(chars, breaks, count, fStyle);
+                fLoaded = last;
+                if (appended != null) {
+                    appended.run();
+                }
+            }
+        });
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private int byteAt(long pos) {
+        return fSegments[(int)(pos / kSegmentSize)].get((int)(pos % kSegmentSize)) & 0xFF;
+    }
+
+    /* Return the end of the chunk starting at start. */
+    private long chunkLimit(long start) {
+        long limit = Math.min(fSize, start + kChunkSize);
+        if (limit == fSize) {
+            return limit;
+        }
+        if (fWide) {
+            limit -= (limit - start) & 1;
+            // don't split a surrogate pair
+            int high = fBigEndian ? byteAt(limit - 2) : byteAt(limit - 1);
+            if ((high & 0xFC) == 0xD8) {
+                limit -= 2;
+            }
+            return limit;
+        }
+        // a line feed byte is never a part of a multibyte character in ASCII based encodings
+        for (long pos = limit; pos > start + kChunkSize / 2; pos--) {
+            if (byteAt(pos - 1) == '\n') {
+                return pos;
+            }
+        }
+        // UTF-8 continuation bytes
+        while (limit > start + 1 && (byteAt(limit) & 0xC0) == 0x80) {
+            limit--;
+        }
+        return limit;
+    }
+
+    private char[] decode(long start, long limit) {
+        ByteBuffer bytes = fSegments[(int)(start / kSegmentSize)].duplicate();
+        int pos = (int)(start % kSegmentSize);
+        bytes.limit(pos + (int)(limit - start));
+        bytes.position(pos);
+        java.nio.CharBuffer decoded = fCharset.decode(bytes);
+        char[] chars = new char[decoded.remaining()];
+        decoded.get(chars);
+        return chars;
+    }
+
+    /* bytes [start, limit) of the file */
+    private final class Chunk extends CharRope.Source {
+        private final long start;
+        private final long limit;
+        private SoftReference chars;
+
+        Chunk(long start, long limit, char[] decoded) {
+            super(decoded.length);
+            this.start = start;
+            this.limit = limit;
+            chars = new SoftReference(decoded);
+        }
+
+        synchronized char[] getChars() {
+            char[] decoded = (char[])chars.get();
+            if (decoded == null) {
+                decoded = decode(start, limit);
+                chars = new SoftReference(decoded);
+            }
+            return decoded;
+        }
+    }
+}
@@ -30,6 +30,7 @@ package org.jezve.notepad.text.format;
 import org.jezve.notepad.text.document.AttributeMap;
 import org.jezve.notepad.text.document.MConstText;
 import org.jezve.notepad.text.document.TextAttribute;
+import org.jezve.util.Parallel;
 
 import java.awt.*;
 import java.awt.font.*;
@@ -117,6 +118,20 @@ import java.util.*;
  * <p/>
  * Changes to the line table occur only in the <tt>formatText()</tt> method.
  * This method calls <tt>LineLayout.layout()</tt> for each line to format.
+ * <p/>
+ * Background formatting (see <tt>setFormatInBackground()</tt>) appends lines
+ * after the last formatted one in steps of about <tt>kBgCharIncrement</tt>
+ * chars.  Each step copies the next paragraphs of the text on the event
+ * dispatch thread, lays them out on a worker thread without holding the
+ * formatter lock, and appends the lines in <tt>appendLines()</tt> back on the
+ * event dispatch thread, unless the text time stamp or the line table changed
+ * in the meantime.  The text must be modified and the formatter called on the
+ * event dispatch thread.
+ * <p/>
+ * On machines with several processors both background steps and
+ * <tt>formatToOffset()</tt> far past the last formatted line lay out
+ * paragraphs in parallel (see <tt>layoutParallel()</tt>), so a full reflow
+ * after a change of the line bound scales with the number of processors.
  *
  * @author John Raley
  * @see IFormatter
@@ -222,10 +237,17 @@ public final class Formatter implements IFormatter {
      */
     private static final int kAfterLastLine = -1;
 
-//    /**
-//     * Thread which invokes formatter in the background.
-//     */
-//    private Thread fDaemon;
+    /**
+     * Thread which lays out lines for background formatting.
+     */
+    private static Parallel fgDaemon;
+
+    /**
+     * Threads which lay out paragraphs in parallel, null on single processor machines.
+     */
+    private static Parallel fgPool;
+
+    private static boolean fgPoolChecked;
 
     /**
      * FontRenderContext to measure with.  Currently not settable after
@@ -233,10 +255,21 @@ public final class Formatter implements IFormatter {
      */
     private FontRenderContext fFontRenderContext;
 
-//    /**
-//     * Controls whether background formatting can run.
-//     */
-//    private boolean fBgFormatAllowed = false;
+    /**
+     * Controls whether background formatting can run.
+     */
+    private boolean fBgFormatAllowed = false;
+
+    /**
+     * <tt>true</tt> while a background formatting step is in progress.
+     */
+    private boolean fBgStepPending = false;
+
+    /**
+     * Changes whenever the line table changes.  A background step laid out
+     * for another value is discarded.
+     */
+    private volatile int fLineTableStamp;
 
     /**
      * Cached line break object.
@@ -373,6 +406,7 @@ public final class Formatter implements IFormatter {
      */
     private synchronized void removeAllLines() {
         fCurTimeStamp = fText.getTimeStamp();
+        fLineTableStamp++;
 
         fMinX = 0;
         fMaxX = fLineDim;
@@ -388,6 +422,7 @@ public final class Formatter implements IFormatter {
 
         // format at least one line:
         formatToHeight(fPixHeight + 1);
+        enableBGFormat();
     }
 
     /*
@@ -806,7 +841,7 @@ public final class Formatter implements IFormatter {
             return;
         }
 
-        // +++ should disable update thread here
+        // formatText() discards a background formatting step in progress
 
         if (fLTNegStart < fLTSize) {
             shiftTableTo(fLTSize - 1);
@@ -839,6 +874,16 @@ public final class Formatter implements IFormatter {
                     limit = fLTCurTextLen;
                 }
                 shiftTableTo(lastLine());
+                int paragraphStart = fText.paragraphStart(limit);
+                if (getPool() != null && paragraphStart - llcs >= 2 * kParallelChars) {
+                    // lay out whole paragraphs in parallel, the rest as usual
+                    int base = fText.paragraphStart(llcs);
+                    MConstText copy = fText.extract(base, paragraphStart);
+                    fLineTableStamp++;
+                    addLines(layoutParallel(copy, llcs - base, copy.length(), fLineDim, fWrap,
+                            fLineTableStamp), base);
+                    llcs = paragraphStart;
+                }
                 formatText(llcs, limit - llcs, Integer.MAX_VALUE, true);
             }
         }
@@ -865,9 +910,6 @@ public final class Formatter implements IFormatter {
         if (afStart < 0) {
             throw new IllegalArgumentException("Debug: updateFormat afStart < 0: " + afStart);
         }
-//        if (fBgFormatAllowed) {
-//            throw new IllegalArgumentException("Background formatting should have been disabled");
-//        }
         fCurTimeStamp = fText.getTimeStamp();
 
         int curLine = getValidLineContaining(afStart, TextOffset.AFTER);
@@ -936,15 +978,8 @@ public final class Formatter implements IFormatter {
         intlRect(origin, r);
         //System.out.println("Damaged rect: "+r+"; origin: "+origin);
 
-        // don't need to synchronized here, b/c the daemon shouldn't be running when
-        // this is executing
-
-//        if (fText.length() < lastLineCharStop()) {
-//            enableBGFormat();
-//        }
-//        else {
-//            stopBackgroundFormatting();
-//        }
+        // a step laid out before the change is discarded (see appendLines())
+        enableBGFormat();
 
         //dumpLineTable();
 
@@ -1004,6 +1039,8 @@ public final class Formatter implements IFormatter {
 
         final int newCurTextLen = fText.length();
 
+        fLineTableStamp++;
+
         // variable not used int oldPixHeight = fPixHeight;
         float oldFullPixHeight = fFullPixHeight;
         fPixHeight -= fLineTable[fLTPosEnd].getHeight();
@@ -1762,19 +1799,246 @@ public final class Formatter implements IFormatter {
         return result;
     }
 
-//    public synchronized void stopBackgroundFormatting() {
-//        checkTimeStamp();
-//        fBgFormatAllowed = false;
-//    }
+    /**
+     * Specify whether text after the formatted lines is formatted in the background.
+     * Must be called on the event dispatch thread.
+     *
+     * @param bg if <tt>true</tt> the whole text is formatted ahead of the view, so
+     *           that scrolling or jumping far into the text finds its lines formatted.
+     */
+    public synchronized void setFormatInBackground(boolean bg) {
+        if (bg) {
+            fBgFormatAllowed = true;
+            enableBGFormat();
+        }
+        else {
+            stopBackgroundFormatting();
+        }
+    }
 
-//    private synchronized void enableBGFormat() {
-//        try {
-//            fBgFormatAllowed = true;
-//            notify();
-//        }
-//        catch (IllegalMonitorStateException e) {
-//        }
-//    }
+    public synchronized void stopBackgroundFormatting() {
+        fBgFormatAllowed = false;
+        fLineTableStamp++;
+    }
+
+    /*
+     * Start the next background formatting step unless all text is formatted
+     * or a step is in progress.
+     */
+    private synchronized void enableBGFormat() {
+        if (!fBgFormatAllowed || fBgStepPending || fText.getTimeStamp() != fCurTimeStamp) {
+            return;
+        }
+        final int start = lastLineCharStop();
+        if (start >= fLTCurTextLen) {
+            return;
+        }
+        // copy whole paragraphs, the first one is laid out from start on
+        final int base = fText.paragraphStart(start);
+        int increment = kBgCharIncrement;
+        if (getPool() != null) {
+            increment *= getPool().getThreadCount();
+        }
+        int limit = start;
+        do {
+            limit = fText.paragraphLimit(limit);
+        } while (limit < fLTCurTextLen && limit - start < increment);
+        final MConstText copy = fText.extract(base, limit);
+        final int stamp = fLineTableStamp;
+        final int timeStamp = fCurTimeStamp;
+        final float lineDim = fLineDim;
+        final boolean wrap = fWrap;
+
+        fBgStepPending = true;
+        if (fgDaemon == null) {
+            fgDaemon = new Parallel(1, "Formatter");
+        }
+        fgDaemon.execute(new Runnable() {
+            public void run() {
+                final Vector[] lines = new Vector[1];
+                final Throwable[] failure = new Throwable[1];
+                try {
+                    Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+                    lines[0] = layoutParallel(copy, start - base, copy.length(), lineDim,
+                            wrap, stamp);
+                }
+                catch (Throwable t) {
+                    failure[0] = t;
+                }
+                finally {
+                    // always posted: appendLines() resets fBgStepPending
+                    EventQueue.invokeLater(new Runnable() {
+                        public void run() {
+                            if (failure[0] != null) {
+                                // the same text would fail again
+                                stopBackgroundFormatting();
+                            }
+                            appendLines(lines[0], base, start, stamp, timeStamp);
+                            if (failure[0] != null) {
+                                // reported by the event dispatch thread exception handler
+                                Throwable t = failure[0];
+                                throw t instanceof Error ? (Error)t : new Error(t);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private static synchronized Parallel getPool() {
+        if (!fgPoolChecked) {
+            fgPoolChecked = true;
+            if (Parallel.getProcessorCount() > 1) {
+                fgPool = new Parallel(0, "Formatter-layout");
+            }
+        }
+        return fgPool;
+    }
+
+    /*
+     * Lay out the lines of text from offset start to limit, which must be a
+     * paragraph limit.  The paragraphs are split into pieces of about
+     * kParallelChars chars laid out in parallel, the lines are returned in
+     * text order.  Reading text updates its caches (last rope leaf, last
+     * style run), so each piece gets its own copy extracted by the calling
+     * thread and creates its own measurers, the font render context is
+     * immutable.  Workers run at the priority of the calling thread.
+     *
+     * @return the lines or null if stamp became obsolete meanwhile
+     */
+    private Vector layoutParallel(MConstText text, int start, int limit,
+            final float lineDim, final boolean wrap, final int stamp) {
+        Parallel pool = getPool();
+        if (pool == null || limit - start < 2 * kParallelChars) {
+            return layoutLines(text, start, limit, lineDim, wrap, stamp);
+        }
+        Vector pieces = new Vector(); // int[]{copy start, layout start}
+        Vector copies = new Vector(); // MConstText
+        for (int pos = start; pos < limit;) {
+            int next = pos;
+            do {
+                next = text.paragraphLimit(next);
+            } while (next < limit && next - pos < kParallelChars);
+            // the first piece may start within a paragraph
+            int paragraphStart = text.paragraphStart(pos);
+            pieces.addElement(new int[]{paragraphStart, pos - paragraphStart});
+            copies.addElement(text.extract(paragraphStart, next));
+            pos = next;
+        }
+        final Vector[] lines = new Vector[pieces.size()];
+        final int priority = Thread.currentThread().getPriority();
+        Runnable[] tasks = new Runnable[lines.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final int piece = i;
+            final int[] range = (int[])pieces.elementAt(i);
+            final MConstText copy = (MConstText)copies.elementAt(i);
+            tasks[i] = new Runnable() {
+                public void run() {
+                    Thread.currentThread().setPriority(priority);
+                    lines[piece] = layoutLines(copy, range[1], copy.length(), lineDim, wrap, stamp);
+                }
+            };
+        }
+        pool.invokeAll(tasks);
+        Vector result = new Vector();
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i] == null) {
+                return null;
+            }
+            int copyStart = ((int[])pieces.elementAt(i))[0];
+            for (int j = 0; j < lines[i].size(); j++) {
+                LineLayout line = (LineLayout)lines[i].elementAt(j);
+                line.setCharStart(copyStart + line.getCharStart(0));
+                result.addElement(line);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Lay out the lines of text from offset start to limit, which must be a
+     * paragraph limit.  Runs on any thread, uses nothing but text and immutable
+     * or synchronized state of the formatter.  No other thread may read text
+     * meanwhile.
+     *
+     * @return the lines or null if stamp became obsolete meanwhile
+     */
+    private Vector layoutLines(MConstText text, int start, int limit, float lineDim,
+            boolean wrap, int stamp) {
+        Vector lines = new Vector();
+        int paragraphStart = text.paragraphStart(start);
+        int pos = start;
+        while (pos < limit) {
+            int paragraphLimit = text.paragraphLimit(paragraphStart);
+            ParagraphRenderer renderer = getRendererFor(text.paragraphStyleAt(paragraphStart));
+            LineBreakMeasurer measurer = new LineBreakMeasurer(
+                    new MTextIterator(text, fFontResolver, paragraphStart, paragraphLimit),
+                    fFontRenderContext);
+            measurer.setPosition(pos);
+            while (pos < paragraphLimit) {
+                if (stamp != fLineTableStamp) {
+                    return null;
+                }
+                LineLayout line = renderer.layout(text, null, measurer, fFontRenderContext,
+                        paragraphStart, paragraphLimit, wrap ? lineDim : Integer.MAX_VALUE, lineDim);
+                pos += line.getCharLength();
+                lines.addElement(line);
+            }
+            paragraphStart = paragraphLimit;
+        }
+        return lines;
+    }
+
+    /*
+     * Append lines laid out in the background after the last formatted line, which
+     * must end at start.  Line char starts are relative to base.
+     */
+    private synchronized void appendLines(Vector lines, int base, int start, int stamp,
+            int timeStamp) {
+        fBgStepPending = false;
+        if (lines == null || stamp != fLineTableStamp || timeStamp != fCurTimeStamp ||
+                timeStamp != fText.getTimeStamp() || start != lastLineCharStop()) {
+            enableBGFormat();
+            return;
+        }
+        fLineTableStamp++;
+        shiftTableTo(lastLine());
+        addLines(lines, base);
+        enableBGFormat();
+    }
+
+    /*
+     * Append lines after the last line, which must be the last positive one.
+     * Line char starts are relative to base.
+     */
+    private void addLines(Vector lines, int base) {
+        float curGraphicStart = fPixHeight;
+        for (int i = 0; i < lines.size(); i++) {
+            LineLayout line = (LineLayout)lines.elementAt(i);
+            line.setCharStart(base + line.getCharStart(0));
+            line.setGraphicStart(curGraphicStart);
+            curGraphicStart += line.getHeight();
+            if (!fWrap) {
+                float lineWidth = line.getTotalAdvance() + line.getLeadingMargin();
+                if (line.isLeftToRight()) {
+                    fMaxX = Math.max(fMaxX, lineWidth);
+                }
+                else {
+                    fMinX = Math.min(fMinX, fLineDim - lineWidth);
+                }
+            }
+            if (fLTPosEnd + 1 == fLTNegStart) {
+                expandLineTable();
+            }
+            fLineTable[++fLTPosEnd] = line;
+        }
+        fPixHeight = curGraphicStart;
+        fFullPixHeight = fPixHeight;
+        if (lastLineCharStop() == fLTCurTextLen && isParaBreakBefore(fLTCurTextLen)) {
+            fFullPixHeight += lastCharHeight();
+        }
+    }
 
     private int lineIndexToNumber(int lineIndex) {
 
@@ -1971,10 +2235,20 @@ public final class Formatter implements IFormatter {
     }
 
     /**
-     * Number of pixels by which to advance formatting in the background.
+     * Number of pixels by which to advance formatting to reach a line.
      */
     private static final int kPixIncrement = 100;
 
+    /**
+     * Number of chars to lay out in one background formatting step.
+     */
+    private static final int kBgCharIncrement = 0x4000;
+
+    /**
+     * Number of chars of whole paragraphs to lay out in one parallel task.
+     */
+    private static final int kParallelChars = 0x1000;
+
     private ParagraphRenderer getRendererFor(AttributeMap s) {
         // Note:  eventually we could let clients put their own renderers on the text.
         ParagraphRenderer renderer = (ParagraphRenderer)fRendererCache.get(s);
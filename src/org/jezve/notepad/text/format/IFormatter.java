@@ -59,10 +59,10 @@ import java.awt.*;
  * a rectangle in which to draw as a parameter.  Only lines
  * of text in the draw rectangle will be drawn.
  * <p/>
- * When the formatter's text changes, it is important to first call
- * <tt>stopBackgroundFormatting()</tt> to prevent the Formatter from
- * accessing the text from a background thread.  After modifications are
- * complete,
+ * Text after the formatted lines can be formatted ahead of time on a
+ * background thread, see <tt>setFormatInBackground()</tt>.  The background
+ * thread never accesses the text itself, it lays out copies of it.
+ * When the formatter's text changes,
  * call the <tt>updateFormat()</tt> method before invoking any other
  * methods of the formatter.  <tt>updateFormat()</tt> reformats the
  * new text, formatting no more text than is necessary.
@@ -152,6 +152,18 @@ public interface IFormatter {
      */
     void formatToHeight(float height);
 
+    /**
+     * Specify whether text after the formatted lines is formatted in the background.
+     *
+     * @param bg <tt>true</tt> to format the whole text ahead of time
+     */
+    void setFormatInBackground(boolean bg);
+
+    /**
+     * Stop formatting in the background, lines laid out but not yet added are dropped.
+     */
+    void stopBackgroundFormatting();
+
     /**
      * Reformat text after a change.
      * After the formatter's text changes, call this method to reformat.  Does
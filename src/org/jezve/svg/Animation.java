@@ -0,0 +1,603 @@
+package org.jezve.svg;
+
+import java.awt.*;
+import java.util.ArrayList;
+
+/** SMIL animation elements animate (and animateColor), set and
+ *  animateTransform, as used by animated icons: spinners, pulsing and
+ *  fading states. The elements only describe the animation, Animator
+ *  evaluates them at given document times and changes the animated
+ *  attributes of the target elements.
+ *  <p>
+ *  Supported are begin and end as clock values (event and syncbase
+ *  timing never begins), dur, repeatCount, repeatDur, fill="freeze",
+ *  values, from, to, by, keyTimes, calcMode discrete, linear and spline
+ *  (paced is interpolated linearly) with keySplines and additive="sum".
+ *  Numbers, lists of numbers with units (lengths, points, path data of
+ *  the same structure) and colors are interpolated, other values
+ *  change discretely in the middle of the interval.
+ */
+class Animation extends Element {
+
+    static final double INDEFINITE = Double.POSITIVE_INFINITY;
+    private static final int CALC_DISCRETE = 0;
+    private static final int CALC_LINEAR = 1;
+    private static final int CALC_SPLINE = 2;
+    private static final String[] PROPERTIES = {"clip-path", "clip-rule", "color", "display", "fill",
+            "fill-opacity", "fill-rule", "filter", "flood-color", "flood-opacity", "font-family", "font-size",
+            "font-style", "font-weight", "mask", "opacity", "stop-color", "stop-opacity", "stroke",
+            "stroke-dasharray", "stroke-dashoffset", "stroke-linecap", "stroke-linejoin", "stroke-miterlimit",
+            "stroke-opacity", "stroke-width", "visibility"};
+    private static final String[] COLORS = {"color", "fill", "flood-color", "stop-color", "stroke"};
+
+    private String attributeName;
+    private boolean css; // animates style property rather than attribute
+    private String href;
+    private Element target;
+    private double begin; // seconds
+    private double end; // of the active duration in seconds or INDEFINITE
+    private double dur; // simple duration in seconds or INDEFINITE
+    private boolean freeze;
+    private boolean additive;
+    private int calcMode;
+    private String[] values;
+    private String from;
+    private String to;
+    private String by;
+    private double[] keyTimes;
+    private float[][] keySplines; // x1 y1 x2 y2 per interval
+
+    protected void build() {
+        super.build();
+        attributeName = getString("attributeName");
+        String type = getString("attributeType");
+        css = "CSS".equals(type) || !"XML".equals(type) && indexOf(PROPERTIES, attributeName) >= 0;
+        href = parseHref(getString("xlink:href", getString("href")));
+        begin = parseTimes(getString("begin"), 0);
+        dur = parseClock(getString("dur"));
+        if (Double.isNaN(dur) || dur <= 0) {
+            dur = INDEFINITE;
+        }
+        String rc = getString("repeatCount");
+        double repeatDur = parseClock(getString("repeatDur"));
+        double active = dur;
+        if (rc != null) {
+            active = "indefinite".equals(rc.trim()) ? INDEFINITE : dur * parseDouble(rc, 1);
+            if (!Double.isNaN(repeatDur)) {
+                active = Math.min(active, repeatDur);
+            }
+        } else if (!Double.isNaN(repeatDur)) {
+            active = repeatDur;
+        }
+        end = Math.min(begin + active, parseTimes(getString("end"), INDEFINITE));
+        freeze = "freeze".equals(getString("fill"));
+        additive = "sum".equals(getString("additive"));
+        String cm = getString("calcMode");
+        calcMode = "discrete".equals(cm) ? CALC_DISCRETE : "spline".equals(cm) ? CALC_SPLINE : CALC_LINEAR;
+        values = split(getString("values"));
+        from = getString("from");
+        to = getString("to");
+        by = getString("by");
+        keyTimes = null;
+        String[] kt = split(getString("keyTimes"));
+        if (kt != null && values != null && kt.length == values.length) {
+            keyTimes = new double[kt.length];
+            for (int i = 0; i < kt.length; i++) {
+                keyTimes[i] = parseDouble(kt[i], 0);
+            }
+        }
+        keySplines = null;
+        String[] ks = split(getString("keySplines"));
+        if (calcMode == CALC_SPLINE && ks != null) {
+            keySplines = new float[ks.length][];
+            for (int i = 0; i < ks.length; i++) {
+                keySplines[i] = parseFloats(ks[i]);
+                if (keySplines[i].length != 4) {
+                    keySplines = null;
+                    break;
+                }
+            }
+        }
+    }
+
+    protected void resolve() {
+        super.resolve();
+        target = href == null ? getParent() : getRoot().get(href);
+    }
+
+    /**
+     * @return animated element or null
+     */
+    Element getTarget() {
+        return target;
+    }
+
+    /**
+     * @return animated attribute or property or null
+     */
+    String getAttributeName() {
+        return attributeName;
+    }
+
+    /**
+     * @return true if a style property is animated, false for an attribute
+     */
+    boolean isProperty() {
+        return css;
+    }
+
+    boolean isAdditive() {
+        return additive;
+    }
+
+    /**
+     * @return document time the animation begins, INDEFINITE if never
+     */
+    double getBegin() {
+        return begin;
+    }
+
+    /**
+     * @return document time the animation stops changing, INDEFINITE if never
+     */
+    double getEnd() {
+        return end;
+    }
+
+    /** evaluates the animation.
+     * @param t document time in seconds
+     * @param underlying value the animation applies to (for to and by
+     *        animations and additive ones) or null
+     * @return animated value or null if the animation has no effect at t
+     */
+    String getValue(double t, String underlying) {
+        if (t < begin) {
+            return null;
+        }
+        double p; // progress of the simple duration
+        if (t < end) {
+            p = dur == INDEFINITE ? 0 : (t - begin) % dur / dur;
+        } else if (freeze) {
+            double r = dur == INDEFINITE ? 0 : (end - begin) % dur;
+            p = dur == INDEFINITE ? 0 : r == 0 ? 1 : r / dur;
+        } else {
+            return null;
+        }
+        return evaluate(p, underlying);
+    }
+
+    /**
+     * @param p progress of the simple duration 0..1
+     * @param underlying underlying value or null
+     * @return value at p
+     */
+    String evaluate(double p, String underlying) {
+        String[] v = getValues(underlying);
+        if (v == null) {
+            return null;
+        }
+        int n = v.length;
+        if (n == 1) {
+            return v[0];
+        }
+        if (calcMode == CALC_DISCRETE) {
+            int i = (int)Math.floor(p * n);
+            if (keyTimes != null) {
+                for (i = 0; i < n - 1 && keyTimes[i + 1] <= p;) {
+                    i++;
+                }
+            }
+            return v[Math.max(0, Math.min(n - 1, i))];
+        }
+        int i;
+        double f;
+        if (keyTimes != null) {
+            for (i = 0; i < n - 2 && keyTimes[i + 1] <= p;) {
+                i++;
+            }
+            double d = keyTimes[i + 1] - keyTimes[i];
+            f = d <= 0 ? 1 : (p - keyTimes[i]) / d;
+        } else {
+            i = Math.min(n - 2, (int)Math.floor(p * (n - 1)));
+            f = p * (n - 1) - i;
+        }
+        f = Math.max(0, Math.min(1, f));
+        if (calcMode == CALC_SPLINE && keySplines != null && i < keySplines.length) {
+            f = ease(keySplines[i], f);
+        }
+        return interpolate(v[i], v[i + 1], f);
+    }
+
+    /**
+     * @param underlying underlying value or null
+     * @return values the animation interpolates between or null if it has none
+     */
+    String[] getValues(String underlying) {
+        if (values != null) {
+            return values;
+        }
+        String f = from != null ? from : underlying;
+        if (to != null) {
+            return new String[]{f, to};
+        }
+        if (by != null) {
+            return f == null ? new String[]{by} : new String[]{f, add(f, by)};
+        }
+        return null;
+    }
+
+    /** adds animated value to the underlying one (additive="sum").
+     * @param underlying underlying value or null
+     * @param value animated value
+     * @return sum
+     */
+    String combine(String underlying, String value) {
+        return underlying == null ? value : add(underlying, value);
+    }
+
+    /**
+     * @param a first value or null
+     * @param b second value
+     * @param f fraction of the way from a to b
+     * @return interpolated value
+     */
+    String interpolate(String a, String b, double f) {
+        if (a == null) {
+            return b;
+        }
+        if (indexOf(COLORS, attributeName) >= 0 && Colors.isColor(a.trim()) && Colors.isColor(b.trim())) {
+            Color c0 = Colors.parseColor(a.trim());
+            Color c1 = Colors.parseColor(b.trim());
+            int r = (int)Math.round(c0.getRed() + (c1.getRed() - c0.getRed()) * f);
+            int g = (int)Math.round(c0.getGreen() + (c1.getGreen() - c0.getGreen()) * f);
+            int bl = (int)Math.round(c0.getBlue() + (c1.getBlue() - c0.getBlue()) * f);
+            String hex = Integer.toHexString(0x1000000 | r << 16 | g << 8 | bl);
+            return "#" + hex.substring(1);
+        }
+        String s = combine(a, b, f, false);
+        return s != null ? s : f < 0.5 ? a : b;
+    }
+
+    /**
+     * @return sum of values with the same structure, b if they differ
+     */
+    static String add(String a, String b) {
+        String s = combine(a, b, 1, true);
+        return s != null ? s : b;
+    }
+
+    /** interpolates or adds the numbers of two values of the same
+     *  structure, e.g. "M 10,20 L 30 40" and "M 0 0 L 50,60".
+     * @param a first value
+     * @param b second value
+     * @param f fraction of the way from a to b
+     * @param sum add the numbers instead
+     * @return combined value in the structure of b or null if the values
+     *         differ in anything but numbers and separators
+     */
+    private static String combine(String a, String b, double f, boolean sum) {
+        if (a.indexOf('#') >= 0 || b.indexOf('#') >= 0) { // colors and references
+            return null;
+        }
+        ArrayList ta = new ArrayList();
+        ArrayList tb = new ArrayList();
+        double[] na = tokenize(a, ta);
+        double[] nb = tokenize(b, tb);
+        if (na.length != nb.length || na.length == 0) {
+            return null;
+        }
+        for (int i = 0; i < ta.size(); i++) {
+            if (!strip((String)ta.get(i)).equals(strip((String)tb.get(i)))) {
+                return null;
+            }
+        }
+        StringBuffer sb = new StringBuffer(b.length() + 8);
+        for (int i = 0; i < nb.length; i++) {
+            sb.append((String)tb.get(i));
+            format(sum ? na[i] + nb[i] : na[i] + (nb[i] - na[i]) * f, sb);
+        }
+        sb.append((String)tb.get(nb.length));
+        return sb.toString();
+    }
+
+    /** splits value into numbers and the text around them.
+     * @param s value
+     * @param text receives numbers.length + 1 strings
+     * @return numbers
+     */
+    private static double[] tokenize(String s, ArrayList text) {
+        double[] numbers = new double[8];
+        int n = 0;
+        int start = 0;
+        int i = 0;
+        int len = s.length();
+        while (i < len) {
+            int j = scanNumber(s, i);
+            if (j <= i) {
+                i++;
+                continue;
+            }
+            if (n == numbers.length) {
+                double[] d = new double[n * 2];
+                System.arraycopy(numbers, 0, d, 0, n);
+                numbers = d;
+            }
+            text.add(s.substring(start, i));
+            numbers[n++] = Double.parseDouble(s.substring(i, j));
+            start = i = j;
+        }
+        text.add(s.substring(start));
+        double[] r = new double[n];
+        System.arraycopy(numbers, 0, r, 0, n);
+        return r;
+    }
+
+    /**
+     * @return end of the number at i or i if there is none
+     */
+    private static int scanNumber(String s, int i) {
+        int len = s.length();
+        if (i > 0 && Character.isLetter(s.charAt(i - 1)) && !isCommand(s.charAt(i - 1))) {
+            return i; // digits of a name, e.g. "h1"
+        }
+        int j = i;
+        if (j < len && (s.charAt(j) == '-' || s.charAt(j) == '+')) {
+            j++;
+        }
+        int digits = 0;
+        while (j < len && Character.isDigit(s.charAt(j))) {
+            j++;
+            digits++;
+        }
+        if (j < len && s.charAt(j) == '.') {
+            j++;
+            while (j < len && Character.isDigit(s.charAt(j))) {
+                j++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return i;
+        }
+        if (j < len && (s.charAt(j) == 'e' || s.charAt(j) == 'E')) {
+            int k = j + 1;
+            if (k < len && (s.charAt(k) == '-' || s.charAt(k) == '+')) {
+                k++;
+            }
+            if (k < len && Character.isDigit(s.charAt(k))) {
+                j = k;
+                while (j < len && Character.isDigit(s.charAt(j))) {
+                    j++;
+                }
+            }
+        }
+        return j;
+    }
+
+    /** path data commands, numbers follow them directly. */
+    private static boolean isCommand(char c) {
+        return "MmLlHhVvCcSsQqTtAaZz".indexOf(c) >= 0;
+    }
+
+    /** separators are equivalent. */
+    private static String strip(String s) {
+        StringBuffer sb = new StringBuffer(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != ',' && !Character.isWhitespace(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** appends number rounded to 4 decimals without exponent. */
+    static void format(double d, StringBuffer sb) {
+        long n = Math.round(d * 10000);
+        if (n < 0) {
+            sb.append('-');
+            n = -n;
+        }
+        sb.append(n / 10000);
+        long frac = n % 10000;
+        if (frac != 0) {
+            String s = Long.toString(10000 + frac);
+            int k = s.length();
+            while (s.charAt(k - 1) == '0') {
+                k--;
+            }
+            sb.append('.').append(s.substring(1, k));
+        }
+    }
+
+    /**
+     * @param spline x1 y1 x2 y2 of a cubic bezier from (0, 0) to (1, 1)
+     * @param x 0..1
+     * @return y of the curve at x
+     */
+    private static double ease(float[] spline, double x) {
+        double lo = 0;
+        double hi = 1;
+        double t = x;
+        for (int i = 0; i < 24; i++) {
+            t = (lo + hi) / 2;
+            if (bezier(spline[0], spline[2], t) < x) {
+                lo = t;
+            } else {
+                hi = t;
+            }
+        }
+        return bezier(spline[1], spline[3], t);
+    }
+
+    private static double bezier(double p1, double p2, double t) {
+        double u = 1 - t;
+        return 3 * u * u * t * p1 + 3 * u * t * t * p2 + t * t * t;
+    }
+
+    /** parses list of begin or end values, the earliest clock value counts.
+     * @param s list separated by ';' or null
+     * @param def value if s is null
+     * @return seconds or INDEFINITE if none of the values is a clock value
+     */
+    private static double parseTimes(String s, double def) {
+        String[] list = split(s);
+        if (list == null) {
+            return def;
+        }
+        double t = INDEFINITE;
+        for (int i = 0; i < list.length; i++) {
+            double c = parseClock(list[i]);
+            if (!Double.isNaN(c) && c < t) {
+                t = c;
+            }
+        }
+        return t;
+    }
+
+    /** parses SMIL clock value, e.g. "2s", "150ms", "0.5min", "1:30", "3".
+     * @param s clock value or null
+     * @return seconds, INDEFINITE for "indefinite" or NaN if s is not a clock value
+     */
+    static double parseClock(String s) {
+        if (s == null) {
+            return Double.NaN;
+        }
+        s = s.trim();
+        if ("indefinite".equals(s)) {
+            return INDEFINITE;
+        }
+        try {
+            if (s.indexOf(':') >= 0) {
+                double t = 0;
+                int start = 0;
+                for (int i = s.indexOf(':'); i >= 0; i = s.indexOf(':', start)) {
+                    t = t * 60 + Integer.parseInt(s.substring(start, i));
+                    start = i + 1;
+                }
+                return t * 60 + Double.parseDouble(s.substring(start));
+            }
+            String[] units = {"ms", "min", "h", "s"};
+            double[] scale = {0.001, 60, 3600, 1};
+            for (int i = 0; i < units.length; i++) {
+                if (s.endsWith(units[i])) {
+                    return Double.parseDouble(s.substring(0, s.length() - units[i].length()).trim()) * scale[i];
+                }
+            }
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static double parseDouble(String s, double def) {
+        try {
+            return Double.parseDouble(s.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * @param s list separated by ';' or null
+     * @return trimmed non empty items or null if there are none
+     */
+    private static String[] split(String s) {
+        if (s == null) {
+            return null;
+        }
+        ArrayList list = new ArrayList();
+        int start = 0;
+        for (int i = 0; i <= s.length(); i++) {
+            if (i == s.length() || s.charAt(i) == ';') {
+                String item = s.substring(start, i).trim();
+                if (item.length() > 0) {
+                    list.add(item);
+                }
+                start = i + 1;
+            }
+        }
+        return list.size() == 0 ? null : (String[])list.toArray(new String[list.size()]);
+    }
+
+    private static int indexOf(String[] a, String s) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i].equals(s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static class Animate extends Animation {
+    }
+
+    /** sets the to value for the active duration, no interpolation. */
+    static class Set extends Animation {
+
+        String[] getValues(String underlying) {
+            String[] v = super.getValues(null);
+            return v == null ? null : new String[]{v[v.length - 1]};
+        }
+
+    }
+
+    /** animates one transformation of the transform attribute, the
+     *  values are parameters of the transformation, e.g. "0 50 50" for
+     *  type="rotate".
+     */
+    static class AnimateTransform extends Animation {
+
+        private String type;
+
+        protected void build() {
+            super.build();
+            type = getString("type", "translate").trim();
+            if (!"scale".equals(type) && !"rotate".equals(type) && !"skewX".equals(type) &&
+                    !"skewY".equals(type)) {
+                type = "translate";
+            }
+        }
+
+        String[] getValues(String underlying) {
+            String[] v = super.getValues(null); // transforms are not interpolated from the underlying value
+            if (v == null) {
+                return null;
+            }
+            String[] r = new String[v.length];
+            for (int i = 0; i < v.length; i++) {
+                r[i] = normalize(v[i] == null ? "" : v[i]);
+            }
+            return r;
+        }
+
+        /** fills in the omitted parameters, so all values interpolate. */
+        private String normalize(String s) {
+            float[] p = parseFloats(s);
+            float[] d = "scale".equals(type) ? new float[]{1, p.length > 0 ? p[0] : 1} :
+                        "rotate".equals(type) ? new float[3] : "translate".equals(type) ? new float[2] :
+                        new float[1];
+            System.arraycopy(p, 0, d, 0, Math.min(p.length, d.length));
+            StringBuffer sb = new StringBuffer();
+            for (int i = 0; i < d.length; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                format(d[i], sb);
+            }
+            return sb.toString();
+        }
+
+        String evaluate(double p, String underlying) {
+            String v = super.evaluate(p, underlying);
+            return v == null ? null : type + "(" + v + ")";
+        }
+
+        /** transformations are applied after the underlying transform. */
+        String combine(String underlying, String value) {
+            return underlying == null || underlying.trim().length() == 0 ? value : underlying.trim() + " " + value;
+        }
+
+    }
+
+}
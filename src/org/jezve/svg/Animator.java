@@ -0,0 +1,214 @@
+package org.jezve.svg;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/** Plays SMIL animations of a document (see Animation) into an image.
+ *  Swapping whole documents per frame reparses and re-renders all of
+ *  them. The animator keeps the rendered frame and on each update()
+ *  evaluates only the animated attributes at the given time, changes the
+ *  ones whose value differs from the previous frame (see
+ *  SVG.setAttribute()) and re-renders only the bounds they had before
+ *  and after the change; everything else stays in the image.
+ *  Frames with no change cost an evaluation of the animations only.
+ *  <pre>
+ *  SVG svg = SVG.readEditable(in);
+ *  final Animator a = new Animator(svg, 48, 48);
+ *  final long start = System.currentTimeMillis();
+ *  new javax.swing.Timer(16, new ActionListener() {
+ *      public void actionPerformed(ActionEvent e) {
+ *          Rectangle dirty = a.update((System.currentTimeMillis() - start) / 1000.0);
+ *          if (dirty != null) {
+ *              component.repaint(dirty);
+ *          }
+ *      }
+ *  }).start();
+ *  ...
+ *  public void paint(Graphics g) {
+ *      g.drawImage(a.getImage(), 0, 0, null);
+ *  }
+ *  </pre>
+ *  The timer can be stopped once the time is past getEnd().
+ *  Changes of elements that are rendered from several places (see
+ *  SVG.setAttribute()) re-render the whole frame.
+ *  <p>
+ *  Not thread safe: the animator changes the document, update() and
+ *  painting of the image should both run on the event dispatch thread
+ *  and the document must not be rendered by anybody else.
+ */
+public class Animator {
+
+    private final SVG svg;
+    private final BufferedImage image;
+    private final AffineTransform view;
+    private final ArrayList tracks = new ArrayList(); // Track
+    private double end;
+    private boolean rendered;
+
+    /** animated attribute of an element with its animations in
+     *  document order, later ones override or add to earlier ones.
+     */
+    private static final class Track {
+
+        final Element target;
+        final String name;
+        final boolean property;
+        final String base; // value in the document, restored when no animation is in effect
+        final String underlying; // value animations start from
+        final ArrayList animations = new ArrayList(); // Animation
+        String value; // applied
+
+        Track(Element e, String n, boolean p) {
+            target = e;
+            name = n;
+            property = p;
+            base = p ? e.getStyleProperty(n) : e.getString(n);
+            underlying = p ? e.getStyleString(n) : base;
+            value = base;
+        }
+    }
+
+    /**
+     * @param svg document read by SVG.readEditable()
+     * @param w image width
+     * @param h image height, the document is fit according to its viewBox
+     * @throws IllegalStateException if the document is not editable
+     */
+    public Animator(SVG svg, int w, int h) {
+        if (!svg.isEditable()) {
+            throw new IllegalStateException("document is not editable");
+        }
+        this.svg = svg;
+        image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        view = svg.getRoot().getViewTransform(w, h);
+        ArrayList animations = new ArrayList();
+        collect(svg.getRoot(), animations);
+        for (int i = 0; i < animations.size(); i++) {
+            Animation a = (Animation)animations.get(i);
+            Element e = a.getTarget();
+            String name = a.getAttributeName();
+            if (e == null || name == null || "id".equals(name) || a.getBegin() == Animation.INDEFINITE) {
+                continue;
+            }
+            Track t = null;
+            for (Iterator j = tracks.iterator(); j.hasNext() && t == null;) {
+                Track k = (Track)j.next();
+                if (k.target == e && k.name.equals(name) && k.property == a.isProperty()) {
+                    t = k;
+                }
+            }
+            if (t == null) {
+                t = new Track(e, name, a.isProperty());
+                tracks.add(t);
+            }
+            t.animations.add(a);
+            end = Math.max(end, a.getEnd());
+        }
+    }
+
+    private static void collect(Element e, ArrayList animations) {
+        if (e instanceof Animation) {
+            animations.add(e);
+        }
+        for (Iterator i = e.getChildren().iterator(); i.hasNext();) {
+            collect((Element)i.next(), animations);
+        }
+    }
+
+    /**
+     * @return frame rendered by the last update()
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return document time in seconds after which no animation changes
+     *         anything, Double.POSITIVE_INFINITY for repeating ones
+     */
+    public double getEnd() {
+        return end;
+    }
+
+    /** renders the frame at time t.
+     * @param t document time in seconds
+     * @return rectangle of the image that changed or null if nothing did
+     */
+    public Rectangle update(double t) {
+        ArrayList regions = new ArrayList(); // Rectangle, disjoint
+        for (int i = 0; i < tracks.size(); i++) {
+            Track k = (Track)tracks.get(i);
+            String v = k.underlying;
+            boolean animated = false;
+            for (int j = 0; j < k.animations.size(); j++) {
+                Animation a = (Animation)k.animations.get(j);
+                String av = a.getValue(t, v);
+                if (av != null) {
+                    v = a.isAdditive() ? a.combine(v, av) : av;
+                    animated = true;
+                }
+            }
+            if (!animated) {
+                v = k.base;
+            }
+            if (v == null ? k.value != null : !v.equals(k.value)) {
+                k.value = v;
+                add(regions, svg.change(k.target, k.name, v, k.property, view));
+            }
+        }
+        Rectangle bounds = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        if (!rendered) {
+            rendered = true;
+            regions.clear();
+            regions.add(bounds);
+        }
+        Rectangle dirty = null;
+        for (int i = 0; i < regions.size(); i++) {
+            Rectangle r = ((Rectangle)regions.get(i)).intersection(bounds);
+            if (!r.isEmpty()) {
+                render(r);
+                dirty = dirty == null ? r : dirty.union(r);
+            }
+        }
+        return dirty;
+    }
+
+    /** adds rectangle merging it with the ones it intersects. */
+    private static void add(ArrayList regions, Rectangle r) {
+        for (int i = 0; i < regions.size();) {
+            Rectangle q = (Rectangle)regions.get(i);
+            if (q.intersects(r)) {
+                r = r.union(q);
+                regions.remove(i);
+                i = 0;
+            } else {
+                i++;
+            }
+        }
+        regions.add(r);
+    }
+
+    /** re-renders the rectangle of the image. Rendered through a
+     *  subimage, so groups outside of it are culled (see Group.isCulled()).
+     */
+    private void render(Rectangle r) {
+        Graphics2D g = image.getSubimage(r.x, r.y, r.width, r.height).createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, r.width, r.height);
+            g.setComposite(AlphaComposite.SrcOver);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setRenderingHint(SVG.KEY_DEVICE_BOUNDS, new Rectangle(0, 0, r.width, r.height));
+            g.translate(-r.x, -r.y);
+            g.transform(view);
+            svg.render(g);
+        } finally {
+            g.dispose();
+        }
+    }
+
+}
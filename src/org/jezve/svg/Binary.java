@@ -0,0 +1,630 @@
+package org.jezve.svg;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Compact binary form of built and resolved SVG document.
+ *  Only the state needed for rendering survives: geometry, paints,
+ *  transforms and the id map. Attributes and CSS are gone by the time
+ *  the document is resolved and are not stored.
+ *  <p>
+ *  Layout (big endian, see DataOutputStream):
+ *  <pre>
+ *  int magic, int version, int count
+ *  count * { byte class, int parent, string id }  -- pre-order
+ *  count * { element.write() }                     -- same order
+ *  </pre>
+ *  Elements are created in the first pass so that references written
+ *  by the second pass (use, fill, stroke) may point forward.
+ *  Elements of classes not listed in CLASSES (metadata, title, fonts, tspans...)
+ *  are skipped together with their subtrees; nothing renders them after resolve.
+ */
+final class Binary {
+
+    static final int MAGIC = 0x4A535643; // "JSVC"
+    static final int VERSION = 4;
+
+    private static final Class[] CLASSES = {
+            Root.class,
+            SVG.Group.class,
+            SVG.A.class,
+            SVG.Defs.class,
+            SVG.Symbol.class,
+            SVG.Use.class,
+            SVG.ClipPath.class,
+            Path.class,
+            SVG.Circle.class,
+            SVG.Ellipse.class,
+            SVG.Line.class,
+            SVG.Rect.class,
+            SVG.Polygon.class,
+            SVG.Polyline.class,
+            Text.class,
+            Image.class,
+            SVG.LinearGradient.class,
+            SVG.RadialGradient.class,
+            SVG.Pattern.class,
+            Filter.class,
+            Filter.GaussianBlur.class,
+            Filter.Offset.class,
+            Filter.Flood.class,
+            Filter.Merge.class,
+            Filter.MergeNode.class
+    };
+
+    private static final int SEG_NONE = -1;
+    private static final int CLIP_NONE = 0;
+    private static final int CLIP_RECT = 1;
+    private static final int CLIP_AREA = 2;
+    private static final int CLIP_PATH = 3;
+
+    private static int getTag(Element e) {
+        Class c = e.getClass();
+        for (int i = 0; i < CLASSES.length; i++) {
+            if (CLASSES[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getCoordCount(int type) {
+        return type == PathIterator.SEG_CLOSE ? 0 :
+               type == PathIterator.SEG_QUADTO ? 4 :
+               type == PathIterator.SEG_CUBICTO ? 6 : 2;
+    }
+
+    static byte[] encode(SVG svg) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        Output out = new Output(new DataOutputStream(bytes));
+        out.write(svg);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static SVG decode(ByteBuffer buf) throws IOException {
+        try {
+            return new Input(buf).read();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated compiled svg");
+        }
+    }
+
+    static final class Output {
+
+        private final DataOutputStream out;
+        private final IdentityHashMap index = new IdentityHashMap(); // Element -> Integer
+        private final ArrayList elements = new ArrayList();
+
+        private Output(DataOutputStream os) {
+            out = os;
+        }
+
+        private void write(SVG svg) throws IOException {
+            collect(svg.getRoot());
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(elements.size());
+            for (Iterator i = elements.iterator(); i.hasNext();) {
+                Element e = (Element)i.next();
+                out.writeByte(getTag(e));
+                Element p = e.getParent();
+                writeInt(p == null ? -1 : ((Integer)index.get(p)).intValue());
+                writeString(e.getId());
+            }
+            for (Iterator i = elements.iterator(); i.hasNext();) {
+                Element e = (Element)i.next();
+                e.write(this);
+            }
+        }
+
+        private void collect(Element e) {
+            if (getTag(e) < 0) {
+                return;
+            }
+            index.put(e, new Integer(elements.size()));
+            elements.add(e);
+            for (Iterator i = e.getChildren().iterator(); i.hasNext();) {
+                collect((Element)i.next());
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flush();
+        }
+
+        void writeInt(int v) throws IOException {
+            out.writeInt(v);
+        }
+
+        void writeFloat(float v) throws IOException {
+            out.writeFloat(v);
+        }
+
+        void writeBoolean(boolean b) throws IOException {
+            out.writeBoolean(b);
+        }
+
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(s.length());
+                out.writeChars(s);
+            }
+        }
+
+        void writeFloats(float[] a) throws IOException {
+            if (a == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(a.length);
+                for (int i = 0; i < a.length; i++) {
+                    out.writeFloat(a[i]);
+                }
+            }
+        }
+
+        void writeColor(Color c) throws IOException {
+            out.writeBoolean(c != null);
+            if (c != null) {
+                out.writeInt(c.getRGB());
+            }
+        }
+
+        void writeColors(Color[] a) throws IOException {
+            if (a == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(a.length);
+                for (int i = 0; i < a.length; i++) {
+                    writeColor(a[i]);
+                }
+            }
+        }
+
+        void writeTransform(AffineTransform at) throws IOException {
+            out.writeBoolean(at != null);
+            if (at != null) {
+                double[] m = new double[6];
+                at.getMatrix(m);
+                for (int i = 0; i < m.length; i++) {
+                    out.writeDouble(m[i]);
+                }
+            }
+        }
+
+        void writeRect(Rectangle2D r) throws IOException {
+            out.writeBoolean(r != null);
+            if (r != null) {
+                out.writeFloat((float)r.getX());
+                out.writeFloat((float)r.getY());
+                out.writeFloat((float)r.getWidth());
+                out.writeFloat((float)r.getHeight());
+            }
+        }
+
+        /** writes any shape as a path. Reading it back always produces GeneralPath.
+         * @param s shape to write, may be null
+         * @throws IOException on i/o error
+         */
+        void writeShape(Shape s) throws IOException {
+            if (s == null) {
+                out.writeInt(SEG_NONE);
+                return;
+            }
+            PathIterator pi = s.getPathIterator(null);
+            out.writeInt(pi.getWindingRule());
+            ByteArrayOutputStream types = new ByteArrayOutputStream();
+            int n = 0;
+            float[] coords = new float[64];
+            float[] c = new float[6];
+            while (!pi.isDone()) {
+                int type = pi.currentSegment(c);
+                types.write(type);
+                int k = getCoordCount(type);
+                if (n + k > coords.length) {
+                    float[] c2 = new float[coords.length * 2 + k];
+                    System.arraycopy(coords, 0, c2, 0, n);
+                    coords = c2;
+                }
+                System.arraycopy(c, 0, coords, n, k);
+                n += k;
+                pi.next();
+            }
+            out.writeInt(types.size());
+            types.writeTo(out);
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                out.writeFloat(coords[i]);
+            }
+        }
+
+        /** writes clip shape with double precision coordinates preserving
+         *  its kind. Graphics2D treats rectangular and Area clips differently
+         *  from general ones and clip shapes are computed in double precision;
+         *  rounding them to float moves the edges of antialiased clips.
+         * @param s shape to write, may be null
+         * @throws IOException on i/o error
+         */
+        void writeClip(Shape s) throws IOException {
+            if (s == null) {
+                out.writeByte(CLIP_NONE);
+                return;
+            }
+            if (s instanceof Rectangle2D) {
+                Rectangle2D r = (Rectangle2D)s;
+                out.writeByte(CLIP_RECT);
+                out.writeDouble(r.getX());
+                out.writeDouble(r.getY());
+                out.writeDouble(r.getWidth());
+                out.writeDouble(r.getHeight());
+                return;
+            }
+            out.writeByte(s instanceof Area ? CLIP_AREA : CLIP_PATH);
+            PathIterator pi = s.getPathIterator(null);
+            out.writeInt(pi.getWindingRule());
+            double[] c = new double[6];
+            while (!pi.isDone()) {
+                int type = pi.currentSegment(c);
+                out.writeByte(type);
+                for (int i = 0; i < getCoordCount(type); i++) {
+                    out.writeDouble(c[i]);
+                }
+                pi.next();
+            }
+            out.writeByte(SEG_NONE);
+        }
+
+        void writeImage(BufferedImage img) throws IOException {
+            out.writeBoolean(img != null);
+            if (img != null) {
+                int w = img.getWidth();
+                int h = img.getHeight();
+                out.writeInt(w);
+                out.writeInt(h);
+                int[] row = new int[w];
+                for (int y = 0; y < h; y++) {
+                    img.getRGB(0, y, w, 1, row, 0, w);
+                    for (int x = 0; x < w; x++) {
+                        out.writeInt(row[x]);
+                    }
+                }
+            }
+        }
+
+        /** writes reference to the element. Elements not present
+         *  in the compiled document are written as null references.
+         * @param e element, may be null
+         * @throws IOException on i/o error
+         */
+        void writeElement(Element e) throws IOException {
+            Integer ix = e == null ? null : (Integer)index.get(e);
+            out.writeInt(ix == null ? -1 : ix.intValue());
+        }
+
+    }
+
+    static final class Input {
+
+        private final ByteBuffer buf;
+        private Element[] elements;
+
+        private Input(ByteBuffer b) {
+            buf = b;
+        }
+
+        private SVG read() throws IOException {
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException("not a compiled svg");
+            }
+            int n = buf.getInt();
+            if (n <= 0) {
+                throw new IOException("empty compiled svg");
+            }
+            checkCount(n, 1 + 4 + 4);
+            SVG svg = new SVG();
+            elements = new Element[n];
+            for (int i = 0; i < n; i++) {
+                int tag = buf.get();
+                int p = buf.getInt();
+                String id = readString();
+                if (tag < 0 || tag >= CLASSES.length || p >= i || (i == 0) != (p < 0)) {
+                    throw new IOException("corrupted compiled svg");
+                }
+                try {
+                    elements[i] = (Element)CLASSES[tag].newInstance();
+                } catch (IllegalAccessException e) {
+                    throw new Error(e);
+                } catch (InstantiationException e) {
+                    throw new Error(e);
+                }
+                elements[i].loaderRestore(svg, p < 0 ? null : elements[p], id);
+            }
+            if (!(elements[0] instanceof Root)) {
+                throw new IOException("corrupted compiled svg");
+            }
+            for (int i = 0; i < n; i++) {
+                elements[i].read(this);
+            }
+            svg.setRoot((Root)elements[0]);
+            return svg;
+        }
+
+        int readInt() {
+            return buf.getInt();
+        }
+
+        float readFloat() {
+            return buf.getFloat();
+        }
+
+        boolean readBoolean() {
+            return buf.get() != 0;
+        }
+
+        String readString() {
+            int n = buf.getInt();
+            if (n < 0) {
+                return null;
+            }
+            checkCount(n, 2);
+            char[] s = new char[n];
+            for (int i = 0; i < n; i++) {
+                s[i] = buf.getChar();
+            }
+            return new String(s);
+        }
+
+        float[] readFloats() {
+            int n = buf.getInt();
+            if (n < 0) {
+                return null;
+            }
+            checkCount(n, 4);
+            float[] a = new float[n];
+            for (int i = 0; i < n; i++) {
+                a[i] = buf.getFloat();
+            }
+            return a;
+        }
+
+        Color readColor() {
+            return readBoolean() ? new Color(buf.getInt(), true) : null;
+        }
+
+        Color[] readColors() {
+            int n = buf.getInt();
+            if (n < 0) {
+                return null;
+            }
+            checkCount(n, 1);
+            Color[] a = new Color[n];
+            for (int i = 0; i < n; i++) {
+                a[i] = readColor();
+            }
+            return a;
+        }
+
+        AffineTransform readTransform() {
+            if (!readBoolean()) {
+                return null;
+            }
+            double[] m = new double[6];
+            for (int i = 0; i < m.length; i++) {
+                m[i] = buf.getDouble();
+            }
+            return new AffineTransform(m);
+        }
+
+        Rectangle2D.Float readRect() {
+            if (!readBoolean()) {
+                return null;
+            }
+            return new Rectangle2D.Float(buf.getFloat(), buf.getFloat(), buf.getFloat(), buf.getFloat());
+        }
+
+        GeneralPath readShape() {
+            int rule = buf.getInt();
+            if (rule == SEG_NONE) {
+                return null;
+            }
+            int segments = buf.getInt();
+            checkCount(segments, 1);
+            byte[] types = new byte[segments];
+            buf.get(types);
+            int n = buf.getInt();
+            GeneralPath path = new GeneralPath(rule, Math.max(segments, 2));
+            int k = 0;
+            for (int i = 0; i < segments; i++) {
+                switch (types[i]) {
+                    case PathIterator.SEG_MOVETO:
+                        path.moveTo(buf.getFloat(), buf.getFloat());
+                        k += 2;
+                        break;
+                    case PathIterator.SEG_LINETO:
+                        path.lineTo(buf.getFloat(), buf.getFloat());
+                        k += 2;
+                        break;
+                    case PathIterator.SEG_QUADTO:
+                        path.quadTo(buf.getFloat(), buf.getFloat(), buf.getFloat(), buf.getFloat());
+                        k += 4;
+                        break;
+                    case PathIterator.SEG_CUBICTO:
+                        path.curveTo(buf.getFloat(), buf.getFloat(), buf.getFloat(), buf.getFloat(),
+                                buf.getFloat(), buf.getFloat());
+                        k += 6;
+                        break;
+                    default:
+                        path.closePath();
+                        break;
+                }
+            }
+            assert k == n : "k=" + k + " n=" + n;
+            return path;
+        }
+
+        Shape readClip() {
+            int kind = buf.get();
+            if (kind == CLIP_NONE) {
+                return null;
+            }
+            if (kind == CLIP_RECT) {
+                return new Rectangle2D.Double(buf.getDouble(), buf.getDouble(), buf.getDouble(), buf.getDouble());
+            }
+            int rule = buf.getInt();
+            ArrayList types = new ArrayList();
+            ArrayList coords = new ArrayList();
+            for (int type = buf.get(); type != SEG_NONE; type = buf.get()) {
+                if (type < PathIterator.SEG_MOVETO || type > PathIterator.SEG_CLOSE) {
+                    throw new BufferUnderflowException();
+                }
+                double[] c = new double[getCoordCount(type)];
+                for (int i = 0; i < c.length; i++) {
+                    c[i] = buf.getDouble();
+                }
+                types.add(new Integer(type));
+                coords.add(c);
+            }
+            Segments s = new Segments(rule, types, coords);
+            return kind == CLIP_AREA ? (Shape)new Area(s) : s;
+        }
+
+        BufferedImage readImage() {
+            if (!readBoolean()) {
+                return null;
+            }
+            int w = buf.getInt();
+            int h = buf.getInt();
+            checkCount(w, 0);
+            checkCount(h, 0);
+            checkCount((long)w * h, 4);
+            BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            int[] row = new int[w];
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    row[x] = buf.getInt();
+                }
+                img.setRGB(0, y, w, 1, row, 0, w);
+            }
+            return img;
+        }
+
+        /** guards array allocation against corrupted counts.
+         *  @param n number of items about to be read
+         *  @param size minimum number of bytes per item
+         *  @throws BufferUnderflowException if the remaining data cannot
+         *          hold n items, reported as IOException by decode()
+         */
+        private void checkCount(long n, int size) {
+            if (n < 0 || n * size > buf.remaining()) {
+                throw new BufferUnderflowException();
+            }
+        }
+
+        Element readElement() {
+            int ix = buf.getInt();
+            return ix < 0 || ix >= elements.length ? null : elements[ix];
+        }
+
+    }
+
+    /** Double precision path read by Input.readClip().
+     *  GeneralPath would round coordinates to float. Clips are only
+     *  iterated over, hit testing goes through temporary Area.
+     */
+    private static final class Segments implements Shape {
+
+        private final int rule;
+        private final ArrayList types; // Integer
+        private final ArrayList coords; // double[]
+
+        Segments(int rule, ArrayList types, ArrayList coords) {
+            this.rule = rule;
+            this.types = types;
+            this.coords = coords;
+        }
+
+        public PathIterator getPathIterator(final AffineTransform at) {
+            return new PathIterator() {
+                int i;
+
+                public int getWindingRule() {
+                    return rule;
+                }
+
+                public boolean isDone() {
+                    return i >= types.size();
+                }
+
+                public void next() {
+                    i++;
+                }
+
+                public int currentSegment(float[] c) {
+                    double[] d = new double[6];
+                    int type = currentSegment(d);
+                    for (int k = 0; k < 6; k++) {
+                        c[k] = (float)d[k];
+                    }
+                    return type;
+                }
+
+                public int currentSegment(double[] c) {
+                    double[] s = (double[])coords.get(i);
+                    if (at != null) {
+                        at.transform(s, 0, c, 0, s.length / 2);
+                    } else {
+                        System.arraycopy(s, 0, c, 0, s.length);
+                    }
+                    return ((Integer)types.get(i)).intValue();
+                }
+            };
+        }
+
+        public PathIterator getPathIterator(AffineTransform at, double flatness) {
+            return new FlatteningPathIterator(getPathIterator(at), flatness);
+        }
+
+        public Rectangle getBounds() {
+            return getBounds2D().getBounds();
+        }
+
+        public Rectangle2D getBounds2D() {
+            return new Area(this).getBounds2D();
+        }
+
+        public boolean contains(double x, double y) {
+            return new Area(this).contains(x, y);
+        }
+
+        public boolean contains(Point2D p) {
+            return contains(p.getX(), p.getY());
+        }
+
+        public boolean intersects(double x, double y, double w, double h) {
+            return new Area(this).intersects(x, y, w, h);
+        }
+
+        public boolean intersects(Rectangle2D r) {
+            return intersects(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        }
+
+        public boolean contains(double x, double y, double w, double h) {
+            return new Area(this).contains(x, y, w, h);
+        }
+
+        public boolean contains(Rectangle2D r) {
+            return contains(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        }
+
+    }
+
+    private Binary() { /* no instantiation */ }
+
+}
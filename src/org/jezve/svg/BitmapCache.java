@@ -0,0 +1,242 @@
+package org.jezve.svg;
+
+import org.jezve.util.Parallel;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/** Process wide cache of bitmap files referenced by image elements.
+ *  Bitmaps are keyed by canonical path, length and modification time,
+ *  so all documents referencing the same logo share a single decoded
+ *  image and a changed file is decoded again.
+ *  <p>
+ *  Decoding runs on a single background thread: loading a document only
+ *  queues its bitmaps (see Image.build()) and they appear once decoded
+ *  (see SVG.setImageListener() and SVG.waitForImages()). Decoded images
+ *  are evicted least recently requested first when they exceed BUDGET
+ *  bytes. Documents keep the images they already show, so an evicted
+ *  bitmap is decoded again only for documents loaded after eviction.
+ *  Bitmaps that fail to decode are dropped right away, documents loaded
+ *  later try again.
+ */
+final class BitmapCache {
+
+    static final long BUDGET = 64L * 1024 * 1024; // bytes of decoded images
+    private static final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true); // key(String) -> Bitmap
+    private static long size; // bytes of decoded images in entries
+    private static Parallel decoder;
+
+    private BitmapCache() {
+    }
+
+    /** returns the shared bitmap of the file, queueing it for decoding
+     *  if it is not cached.
+     * @param file bitmap file
+     * @return bitmap, possibly not decoded yet
+     */
+    static Bitmap get(File file) {
+        File f;
+        try {
+            f = file.getCanonicalFile();
+        } catch (IOException e) {
+            f = file.getAbsoluteFile();
+        }
+        String key = f.getPath() + '|' + f.length() + '|' + f.lastModified();
+        final Bitmap b;
+        synchronized (entries) {
+            Bitmap cached = (Bitmap)entries.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            b = new Bitmap(f, key);
+            entries.put(key, b);
+            if (decoder == null) {
+                decoder = new Parallel(1, "BitmapCache");
+            }
+            decoder.execute(new Runnable() {
+                public void run() {
+                    decode(b);
+                }
+            });
+        }
+        return b;
+    }
+
+    private static void decode(Bitmap b) {
+        BufferedImage bi = null;
+        try {
+            bi = ImageIO.read(b.file);
+        } catch (IOException e) {
+            // unreadable bitmap renders nothing
+        } catch (RuntimeException e) {
+            // same for decoder failures on corrupted files
+        }
+        synchronized (entries) {
+            if (bi == null) {
+                if (entries.get(b.key) == b) {
+                    entries.remove(b.key); // not counted by size, would never be evicted
+                }
+            } else if (entries.get(b.key) == b) {
+                size += getBytes(bi);
+                for (Iterator i = entries.values().iterator(); i.hasNext() && size > BUDGET;) {
+                    Bitmap e = (Bitmap)i.next();
+                    BufferedImage img = e.getImage();
+                    if (e != b && img != null) {
+                        size -= getBytes(img);
+                        i.remove();
+                    }
+                }
+            }
+        }
+        b.finish(bi);
+    }
+
+    private static long getBytes(BufferedImage bi) {
+        return (long)bi.getWidth() * bi.getHeight() * 4;
+    }
+
+    /** drops all cached bitmaps. */
+    static void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * @return bytes of cached decoded images
+     */
+    static long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /** bitmap file, decoded or being decoded. */
+    static final class Bitmap {
+
+        final File file;
+        final String key;
+        private BufferedImage image;
+        private boolean done;
+        private Dimension dimension;
+        private ArrayList listeners; // Runnable, until done
+
+        private Bitmap(File f, String k) {
+            file = f;
+            key = k;
+        }
+
+        /**
+         * @return decoded image or null if not decoded yet or not readable
+         */
+        synchronized BufferedImage getImage() {
+            return image;
+        }
+
+        /**
+         * @return true if decoding has finished (successfully or not)
+         */
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        /** calls r from the decoding thread once decoded or right away if done. */
+        void addListener(Runnable r) {
+            synchronized (this) {
+                if (!done) {
+                    if (listeners == null) {
+                        listeners = new ArrayList();
+                    }
+                    listeners.add(r);
+                    return;
+                }
+            }
+            r.run();
+        }
+
+        /** waits for decoding.
+         * @param timeout milliseconds, &lt;= 0 means no limit
+         * @return true if done
+         */
+        synchronized boolean waitFor(long timeout) {
+            long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+            while (!done) {
+                long ms = deadline - System.currentTimeMillis();
+                if (ms <= 0) {
+                    return false;
+                }
+                try {
+                    wait(timeout > 0 ? ms : 0);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** reads only the header of the file for elements that do not
+         *  specify their size.
+         * @return size in pixels or null if not readable
+         */
+        synchronized Dimension getDimension() {
+            if (image != null) {
+                return new Dimension(image.getWidth(), image.getHeight());
+            }
+            if (dimension == null && !done) {
+                dimension = readDimension(file);
+            }
+            return dimension;
+        }
+
+        private static Dimension readDimension(File f) {
+            ImageInputStream in = null;
+            try {
+                in = ImageIO.createImageInputStream(f);
+                Iterator readers = in == null ? null : ImageIO.getImageReaders(in);
+                if (readers == null || !readers.hasNext()) {
+                    return null;
+                }
+                ImageReader r = (ImageReader)readers.next();
+                try {
+                    r.setInput(in);
+                    return new Dimension(r.getWidth(0), r.getHeight(0));
+                } finally {
+                    r.dispose();
+                }
+            } catch (IOException e) {
+                return null;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        private void finish(BufferedImage bi) {
+            ArrayList ls;
+            synchronized (this) {
+                image = bi;
+                done = true;
+                ls = listeners;
+                listeners = null;
+                notifyAll();
+            }
+            for (int i = 0; ls != null && i < ls.size(); i++) {
+                ((Runnable)ls.get(i)).run();
+            }
+        }
+
+    }
+
+}
@@ -165,6 +165,15 @@ class Colors {
         colorTable = Collections.unmodifiableMap(m);
     }
 
+    /**
+     * @param s value
+     * @return true if parseColor() understands the value
+     */
+    static boolean isColor(String s) {
+        return s.length() > 1 && s.charAt(0) == '#' || s.startsWith("rgb(") && s.endsWith(")") ||
+               colorTable.containsKey(s.toLowerCase());
+    }
+
     static Color parseColor(String s) {
         if (s.charAt(0) == '#') {
             String x = s.substring(1);
@@ -0,0 +1,153 @@
+package org.jezve.svg;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/** Recorded drawing of an element subtree referenced by use.
+ *  Maps, badges and patterned drawings reference the same symbol hundreds
+ *  of times; replaying recorded fills skips traversal, style and paint
+ *  lookups and stroking, which is the most expensive part of shape setup.
+ *  <p>
+ *  Every drawing operation goes through SVG.fill(), stroke(), drawImage(),
+ *  clip() and unclip(). While a list is being recorded these append
+ *  operations with transforms relative to the transform at the start of
+ *  recording, so the list can be replayed under any transform (every use
+ *  has its own x, y and transform). Clips set inside the subtree are
+ *  recorded too; the clip in effect when recording started belongs to the
+ *  instance and is not.
+ *  <p>
+ *  Paints are in user space (gradients and patterns do not depend on the
+ *  device transform), so replay is exact. The only scale dependent part
+ *  is level of detail: a list remembers the level of detail settings and
+ *  the power of two scale bucket it was recorded at (see isValid()).
+ *  Style context inherited from use is applied at build time, once per
+ *  referenced element, so it is not part of the key.
+ */
+final class DisplayList {
+
+    static final int FILL = 0;
+    static final int IMAGE = 1;
+    static final int CLIP = 2;
+    static final int UNCLIP = 3;
+    static final int STROKE = 4;
+
+    private final ArrayList ops = new ArrayList(); // Op
+    private final AffineTransform inverse;
+    private final int stamp;
+    private final int bucket;
+    private final float minSize;
+    private final float tolerance;
+    private final float minStrokeWidth;
+
+    private static class Op {
+
+        final int kind;
+        final AffineTransform xform;
+        final Object shape; // Shape or BufferedImage
+        final Paint paint;
+        final float alpha;
+
+        Op(int kind, AffineTransform xform, Object shape, Paint paint, float alpha) {
+            this.kind = kind;
+            this.xform = xform;
+            this.shape = shape;
+            this.paint = paint;
+            this.alpha = alpha;
+        }
+    }
+
+    /**
+     * @param svg document
+     * @param base transform at the start of recording
+     */
+    DisplayList(SVG svg, AffineTransform base) {
+        AffineTransform i;
+        try {
+            i = base.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            i = null; // nothing is visible at degenerate transform, nothing is recorded
+        }
+        inverse = i;
+        stamp = svg.getModCount();
+        bucket = getBucket(svg, base);
+        minSize = svg.getLodMinSize();
+        tolerance = svg.getLodTolerance();
+        minStrokeWidth = svg.getLodMinStrokeWidth();
+    }
+
+    private static int getBucket(SVG svg, AffineTransform at) {
+        if (svg.getLodMinSize() <= 0 && svg.getLodTolerance() <= 0 && svg.getLodMinStrokeWidth() <= 0) {
+            return 0;
+        }
+        double scale = SVG.getScale(at);
+        return scale > 0 ? (int)Math.floor(Math.log(scale) / Math.log(2)) : Integer.MIN_VALUE;
+    }
+
+    /**
+     * @param svg document
+     * @param base transform the list is going to be replayed at
+     * @return true if document was not modified since recording
+     *         and level of detail would make the same decisions
+     */
+    boolean isValid(SVG svg, AffineTransform base) {
+        return inverse != null && stamp == svg.getModCount() &&
+               minSize == svg.getLodMinSize() && tolerance == svg.getLodTolerance() &&
+               minStrokeWidth == svg.getLodMinStrokeWidth() && bucket == getBucket(svg, base);
+    }
+
+    void add(int kind, AffineTransform current, Object shape, Paint paint, float alpha) {
+        if (inverse != null) {
+            AffineTransform xform = new AffineTransform(inverse);
+            xform.concatenate(current);
+            ops.add(new Op(kind, xform, shape, paint, alpha));
+        }
+    }
+
+    /** replays recorded operations through the document so that
+     *  enclosing recordings see them.
+     * @param svg document
+     * @param g graphics with the transform of the instance
+     */
+    void replay(SVG svg, Graphics2D g) {
+        AffineTransform base = g.getTransform();
+        LinkedList saved = new LinkedList(); // Object[]{AffineTransform, Shape} clip to restore
+        for (int i = 0; i < ops.size(); i++) {
+            Op op = (Op)ops.get(i);
+            if (op.kind == UNCLIP) {
+                Object[] s = (Object[])saved.removeLast();
+                g.setTransform((AffineTransform)s[0]);
+                svg.unclip(g, (Shape)s[1]);
+                continue;
+            }
+            AffineTransform t = new AffineTransform(base);
+            t.concatenate(op.xform);
+            if (op.kind == CLIP) {
+                saved.addLast(new Object[]{g.getTransform(), g.getClip()});
+            }
+            g.setTransform(t);
+            switch (op.kind) {
+                case FILL:
+                    svg.fill(g, (Shape)op.shape, op.paint, op.alpha);
+                    break;
+                case STROKE:
+                    svg.stroke(g, (Shape)op.shape, op.paint, op.alpha);
+                    break;
+                case IMAGE:
+                    svg.drawImage(g, (BufferedImage)op.shape, op.alpha);
+                    break;
+                case CLIP:
+                    svg.clip(g, (Shape)op.shape);
+                    break;
+                default:
+                    assert false : op.kind;
+            }
+        }
+        assert saved.isEmpty();
+        g.setTransform(base);
+    }
+
+}
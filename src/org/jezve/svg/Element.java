@@ -6,18 +6,25 @@ import org.xml.sax.SAXException;
 
 import java.awt.geom.AffineTransform;
 import java.awt.*;
+import java.io.IOException;
 import java.util.*;
 import java.util.List;
 
 
 abstract class Element {
 
-    private static float[] buf = new float[512];
+    private static final ThreadLocal buf = new ThreadLocal() { // float[] parseFloats() scratch
+        protected Object initialValue() {
+            return new float[512];
+        }
+    };
     private final static ArrayList EMPTY = new ArrayList();
     private Element parent;
     private ArrayList children;
     private String id;
-    private HashMap styles;
+    private String tag;
+    private Map styles; // inline and style sheet, see build()
+    private Map inline; // parsed style attribute
     private HashMap attrs;
     private SVG svg;
     private LinkedList contexts;
@@ -34,6 +41,22 @@ abstract class Element {
         return Collections.unmodifiableList(children == null ? EMPTY : children);
     }
 
+    /** must be called after any change of the element made after the
+     *  document is loaded so caches derived from it are rebuilt.
+     */
+    void invalidate() {
+        for (Element e = this; e != null; e = e.getParent()) {
+            e.invalidateCaches(); // bounds of ancestors include this element
+        }
+        if (svg != null) {
+            svg.invalidate();
+        }
+    }
+
+    /** drops values memoized by the element (see invalidate()). */
+    protected void invalidateCaches() {
+    }
+
     protected void loaderStartElement(SVG s, Attributes a, Element p) throws SAXException {
         parent = p;
         svg = s;
@@ -44,8 +67,9 @@ abstract class Element {
         }
         String style = a.getValue("style");
         if (style != null) {
-            styles = new HashMap();
-            parseStyle(style, styles);
+            inline = new HashMap();
+            parseStyle(style, inline);
+            styles = inline;
         }
         int n = a.getLength();
         if (n > 0) {
@@ -58,6 +82,23 @@ abstract class Element {
         }
     }
 
+    /** Restores element from compiled binary form (see Binary.Input)
+     *  the same way loaderStartElement does it from XML attributes.
+     * @param s document
+     * @param p parent element or null for the root
+     * @param i id of the element or null
+     */
+    void loaderRestore(SVG s, Element p, String i) {
+        svg = s;
+        id = i;
+        if (id != null) {
+            svg.put(id, this);
+        }
+        if (p != null) {
+            p.loaderAddChild(this);
+        }
+    }
+
     protected void loaderAddChild(Element child) {
         if (children == null) {
             children = new ArrayList();
@@ -76,34 +117,99 @@ abstract class Element {
         }
     }
 
-    protected void build() {
-        String classnames = getString("class");
-        if (classnames != null) {
-            for (StringTokenizer st = new StringTokenizer(classnames); st.hasMoreTokens(); ) {
-                String t = st.nextToken().trim();
-                Map m = getRoot().getStyle(t);
-                if (m != null) {
-                    if (styles == null) {
-                        styles = new HashMap();
-                    }
-                    styles.putAll(m);
-                }
+    /** changes attribute of an element of an editable document (see
+     *  SVG.readEditable()). The element has to be built again.
+     * @param name attribute name, "style" replaces all inline styles
+     * @param value new value or null to remove the attribute
+     */
+    void setAttribute(String name, String value) {
+        if ("id".equals(name)) {
+            throw new IllegalArgumentException("id cannot be changed");
+        }
+        if (attrs == null) {
+            attrs = new HashMap();
+        }
+        if (value == null) {
+            attrs.remove(name);
+        } else {
+            attrs.put(name, value);
+        }
+        if ("style".equals(name)) {
+            inline = null;
+            if (value != null) {
+                inline = new HashMap();
+                parseStyle(value, inline);
             }
         }
     }
 
+    /** changes single style property (see setAttribute()).
+     * @param name property name
+     * @param value new value or null to remove the inline property
+     */
+    void setStyle(String name, String value) {
+        if (inline == null) {
+            inline = new HashMap();
+        }
+        if (value == null) {
+            inline.remove(name);
+        } else {
+            inline.put(name, value);
+        }
+    }
+
+    /**
+     * @param name property name
+     * @return value of the inline property of the element itself or null
+     */
+    String getStyleProperty(String name) {
+        return inline == null ? null : (String)inline.get(name);
+    }
+
+    /** sets name of the element tag (lowercase, without namespace prefix). */
+    void loaderSetTag(String t) {
+        tag = t;
+    }
+
+    /** merges the style sheet properties (see StyleSheet.getStyle())
+     *  with the inline ones. Kept apart from the inline properties, so
+     *  building again after a change of class or of an ancestor picks
+     *  up the rules that match now.
+     */
+    protected void build() {
+        Map m = getRoot().getStyleSheet().getStyle(this);
+        if (m == null) {
+            styles = inline;
+        } else if (inline == null) {
+            styles = m; // shared, never modified
+        } else {
+            styles = new HashMap(m);
+            styles.putAll(inline);
+        }
+    }
+
     protected void resolve() {
     }
 
+    /** writes resolved state of the element in compiled binary form.
+     *  Subclasses must call super.write() first and read fields back
+     *  in exactly the same order in read().
+     * @param out binary output
+     * @throws IOException on i/o error
+     */
+    protected void write(Binary.Output out) throws IOException {
+    }
+
+    protected void read(Binary.Input in) {
+    }
+
     protected void clear() {
         if (attrs != null) {
             attrs.clear();
             attrs = null;
         }
-        if (styles != null) {
-            styles.clear();
-            styles = null;
-        }
+        styles = null; // may be shared with other elements (see build())
+        inline = null;
     }
 
     /**
@@ -129,6 +235,13 @@ abstract class Element {
         return id;
     }
 
+    /**
+     * @return tag name or null if the element was not loaded from XML
+     */
+    String getTag() {
+        return tag;
+    }
+
     private String getStyle(String name) {
         String a = styles == null ? null : (String)styles.get(name);
         if (a != null) {
@@ -145,6 +258,16 @@ abstract class Element {
         return parent != null ? parent.getStyle(name) : null;
     }
 
+    /**
+     * @param name property name
+     * @return inline style, style sheet or attribute value of the element
+     *         itself, for properties that are not inherited
+     */
+    String getLocalStyleString(String name) {
+        String a = styles == null ? null : (String)styles.get(name);
+        return a != null ? a : get(name);
+    }
+
     private String get(String name) {
         return attrs == null ? null : (String)attrs.get(name);
     }
@@ -202,17 +325,19 @@ abstract class Element {
             return null;
         }
         int ix = 0;
+        float[] b = (float[])buf.get();
         Parser.Double parser = new Parser.Double(s, ",");
         while (parser.getPosition() < s.length()) {
-            if (ix >= buf.length) {
-                float[] b2 = new float[buf.length * 2];
-                System.arraycopy(buf, 0, b2, 0, ix);
-                buf = b2;
+            if (ix >= b.length) {
+                float[] b2 = new float[b.length * 2];
+                System.arraycopy(b, 0, b2, 0, ix);
+                b = b2;
+                buf.set(b);
             }
-            buf[ix++] = parser.nextFloat();
+            b[ix++] = parser.nextFloat();
         }
         float[] r1 = new float[ix];
-        System.arraycopy(buf, 0, r1, 0, r1.length);
+        System.arraycopy(b, 0, r1, 0, r1.length);
         return r1;
     }
 
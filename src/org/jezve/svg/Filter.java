@@ -0,0 +1,614 @@
+package org.jezve.svg;
+
+import org.jezve.svg.batik.GraphicsUtil;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.*;
+import java.io.IOException;
+import java.util.*;
+
+/** Filter element with the primitives drop shadows and glows are made
+ *  of: feGaussianBlur, feOffset, feFlood and feMerge. A filter with any
+ *  other primitive is not applied at all and the element renders as if
+ *  it had no filter, rather than half filtered.
+ *  <p>
+ *  The element is rendered into an offscreen image covering the filter
+ *  region in device pixels (see SVG.renderFiltered()) and primitives
+ *  run on premultiplied ARGB int buffers taken from a pool. Gaussian
+ *  blur is approximated by three box blurs as the SVG specification
+ *  suggests: running sums make it O(1) per pixel for any deviation,
+ *  rows and columns are blurred in parallel stripes (see
+ *  GraphicsUtil.forStripes()). Primitive subregions are ignored and
+ *  colors are not converted to linearRGB (color-interpolation-filters).
+ */
+class Filter extends Element {
+
+    static final int UNITS_OBJECT_BOUNDING_BOX = 0;
+    static final int UNITS_USER_SPACE_ON_USE = 1;
+    static final int MAX_PIXELS = 2048 * 2048; // of the filter region in device pixels
+    private static final float[] DEFAULT_REGION = {-0.1f, -0.1f, 1.2f, 1.2f};
+    private static final int POOL_SIZE = 8; // buffers
+    private static final LinkedList pool = new LinkedList(); // int[], free buffers
+
+    private int filterUnits = UNITS_OBJECT_BOUNDING_BOX;
+    private int primitiveUnits = UNITS_USER_SPACE_ON_USE;
+    // x, y, width, height as fractions of the bounding box or in user units (see filterUnits), NaN for default
+    private float[] region = {Float.NaN, Float.NaN, Float.NaN, Float.NaN};
+    private boolean supported = true;
+
+    protected void loaderAddChild(Element child) {
+        super.loaderAddChild(child);
+        if (child instanceof Unsupported) {
+            supported = false;
+        }
+    }
+
+    protected void build() {
+        super.build();
+        filterUnits = "userSpaceOnUse".equalsIgnoreCase(getString("filterUnits")) ?
+                UNITS_USER_SPACE_ON_USE : UNITS_OBJECT_BOUNDING_BOX;
+        primitiveUnits = "objectBoundingBox".equalsIgnoreCase(getString("primitiveUnits")) ?
+                UNITS_OBJECT_BOUNDING_BOX : UNITS_USER_SPACE_ON_USE;
+        String[] names = {"x", "y", "width", "height"};
+        for (int i = 0; i < names.length; i++) {
+            Units u = getUnits(names[i]);
+            if (u == null) {
+                region[i] = Float.NaN;
+            } else if (u.getKind() == Units.KIND_PERCENT) {
+                // percents of the viewport in user space are approximated by the default
+                region[i] = filterUnits == UNITS_OBJECT_BOUNDING_BOX ? u.getValue() / 100 : Float.NaN;
+            } else {
+                region[i] = filterUnits == UNITS_OBJECT_BOUNDING_BOX ? u.getValue() :
+                        Units.convertUnitsToPixels(u.getKind(), u.getValue());
+            }
+        }
+    }
+
+    protected void write(Binary.Output out) throws IOException {
+        super.write(out);
+        out.writeInt(filterUnits);
+        out.writeInt(primitiveUnits);
+        out.writeFloats(region);
+        out.writeBoolean(supported);
+    }
+
+    protected void read(Binary.Input in) {
+        super.read(in);
+        filterUnits = in.readInt();
+        primitiveUnits = in.readInt();
+        region = in.readFloats();
+        supported = in.readBoolean();
+    }
+
+    /**
+     * @return true if all primitives of the filter are implemented
+     */
+    boolean isSupported() {
+        return supported && getChildren().size() > 0;
+    }
+
+    /**
+     * @param bbox bounding box of the filtered element without stroke
+     * @return filter region in the same coordinates as bbox
+     */
+    Rectangle2D getRegion(Rectangle2D bbox) {
+        double[] r = new double[4];
+        for (int i = 0; i < 4; i++) {
+            float v = region[i];
+            if (filterUnits == UNITS_USER_SPACE_ON_USE && !Float.isNaN(v)) {
+                r[i] = v;
+            } else {
+                double f = Float.isNaN(v) ? DEFAULT_REGION[i] : v;
+                double origin = i == 0 ? bbox.getX() : i == 1 ? bbox.getY() : 0;
+                r[i] = origin + f * (i % 2 == 0 ? bbox.getWidth() : bbox.getHeight());
+            }
+        }
+        return new Rectangle2D.Double(r[0], r[1], r[2], r[3]);
+    }
+
+    /** applies the primitives.
+     * @param source premultiplied ARGB pixels of the rendered element
+     *               covering the filter region, not modified
+     * @param w region width in pixels
+     * @param h region height in pixels
+     * @param sx device pixels per user unit horizontally
+     * @param sy device pixels per user unit vertically
+     * @param box device bounds of the element bounding box
+     * @return result pixels in a buffer taken from the pool
+     */
+    int[] apply(int[] source, int w, int h, double sx, double sy, Rectangle2D box) {
+        if (primitiveUnits == UNITS_OBJECT_BOUNDING_BOX) {
+            sx = box.getWidth();
+            sy = box.getHeight();
+        }
+        Context c = new Context(source, w, h, sx, sy);
+        for (Iterator i = getChildren().iterator(); i.hasNext();) {
+            Object o = i.next();
+            if (!(o instanceof Primitive)) {
+                continue; // desc, title
+            }
+            Primitive p = (Primitive)o;
+            c.last = p.apply(c);
+            if (p.result != null) {
+                c.results.put(p.result, c.last);
+            }
+        }
+        int[] out = c.last;
+        if (out == source) {
+            out = c.allocate();
+            System.arraycopy(source, 0, out, 0, w * h);
+        }
+        for (int i = 0; i < c.buffers.size(); i++) {
+            if (c.buffers.get(i) != out) {
+                release((int[])c.buffers.get(i));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param n number of pixels
+     * @return buffer of at least n pixels with undefined content
+     */
+    static int[] acquire(int n) {
+        synchronized (pool) {
+            for (Iterator i = pool.iterator(); i.hasNext();) {
+                int[] b = (int[])i.next();
+                if (b.length >= n && b.length <= n * 2) {
+                    i.remove();
+                    return b;
+                }
+            }
+        }
+        return new int[n];
+    }
+
+    /** returns the buffer to the pool. The buffer must not be used any more. */
+    static void release(int[] b) {
+        synchronized (pool) {
+            if (pool.size() == POOL_SIZE) {
+                pool.removeFirst();
+            }
+            pool.addLast(b);
+        }
+    }
+
+    /**
+     * @param pixels premultiplied ARGB pixels, at least w * h
+     * @param w width
+     * @param h height
+     * @return TYPE_INT_ARGB_PRE image drawing into and from pixels
+     */
+    static BufferedImage createImage(int[] pixels, int w, int h) {
+        DirectColorModel cm = (DirectColorModel)GraphicsUtil.sRGB_Pre;
+        DataBufferInt db = new DataBufferInt(pixels, w * h);
+        int[] masks = {cm.getRedMask(), cm.getGreenMask(), cm.getBlueMask(), cm.getAlphaMask()};
+        WritableRaster wr = Raster.createPackedRaster(db, w, h, w, masks, null);
+        return new BufferedImage(cm, wr, true, null);
+    }
+
+    /** filtered rendering of an element kept for the next render at the
+     *  same device scale and subpixel position (see SVG.renderFiltered()).
+     */
+    static final class Result {
+
+        final BufferedImage image;
+        private final double[] matrix = new double[4];
+        private final double fx; // translation relative to the image origin
+        private final double fy;
+        private final int stamp; // document modification count
+
+        Result(BufferedImage bi, AffineTransform at, Rectangle device, int modCount) {
+            image = bi;
+            at.getMatrix(matrix);
+            fx = at.getTranslateX() - device.x;
+            fy = at.getTranslateY() - device.y;
+            stamp = modCount;
+        }
+
+        boolean matches(AffineTransform at, Rectangle device, int modCount) {
+            return stamp == modCount && image.getWidth() == device.width && image.getHeight() == device.height &&
+                    at.getScaleX() == matrix[0] && at.getShearY() == matrix[1] &&
+                    at.getShearX() == matrix[2] && at.getScaleY() == matrix[3] &&
+                    Math.abs(at.getTranslateX() - device.x - fx) < 1e-6 &&
+                    Math.abs(at.getTranslateY() - device.y - fy) < 1e-6;
+        }
+    }
+
+    /** state of a filter application. */
+    private static final class Context {
+
+        final int[] source;
+        final int width;
+        final int height;
+        final double scaleX; // device pixels per primitive unit
+        final double scaleY;
+        final HashMap results = new HashMap(); // String -> int[]
+        final ArrayList buffers = new ArrayList(); // int[] from the pool
+        int[] sourceAlpha;
+        int[] last; // result of the previous primitive
+
+        Context(int[] s, int w, int h, double sx, double sy) {
+            source = s;
+            width = w;
+            height = h;
+            scaleX = sx;
+            scaleY = sy;
+        }
+
+        int[] allocate() {
+            int[] b = acquire(width * height);
+            buffers.add(b);
+            return b;
+        }
+
+        /**
+         * @param in value of the in attribute or null
+         * @return input pixels, not to be modified
+         */
+        int[] getInput(String in) {
+            if ("SourceGraphic".equals(in)) {
+                return source;
+            }
+            if ("SourceAlpha".equals(in)) {
+                if (sourceAlpha == null) {
+                    sourceAlpha = allocate();
+                    for (int i = width * height - 1; i >= 0; i--) {
+                        sourceAlpha[i] = source[i] & 0xFF000000;
+                    }
+                }
+                return sourceAlpha;
+            }
+            if (in != null && !results.containsKey(in) && (in.startsWith("Background") ||
+                    "FillPaint".equals(in) || "StrokePaint".equals(in))) {
+                int[] b = allocate(); // not available, transparent black
+                Arrays.fill(b, 0, width * height, 0);
+                results.put(in, b);
+            }
+            int[] r = in == null ? null : (int[])results.get(in);
+            if (r != null) {
+                return r;
+            }
+            return last != null ? last : source; // missing in or unknown result
+        }
+    }
+
+    /** filter primitive, children of filter. */
+    abstract static class Primitive extends Element {
+
+        private String in;
+        private String result;
+
+        protected void build() {
+            super.build();
+            in = getString("in");
+            result = getString("result");
+        }
+
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeString(in);
+            out.writeString(result);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            this.in = in.readString();
+            result = in.readString();
+        }
+
+        /**
+         * @param c filter state
+         * @return result pixels, a buffer allocated from c or an input
+         */
+        abstract int[] apply(Context c);
+
+        final int[] getInput(Context c) {
+            return c.getInput(in);
+        }
+    }
+
+    static class GaussianBlur extends Primitive {
+
+        private float deviationX;
+        private float deviationY;
+
+        protected void build() {
+            super.build();
+            float[] d = getFloats("stdDeviation");
+            deviationX = d == null || d.length == 0 ? 0 : d[0];
+            deviationY = d == null || d.length < 2 ? deviationX : d[1];
+        }
+
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeFloat(deviationX);
+            out.writeFloat(deviationY);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            deviationX = in.readFloat();
+            deviationY = in.readFloat();
+        }
+
+        int[] apply(Context c) {
+            int[] src = getInput(c);
+            int dx = getBoxSize(deviationX * c.scaleX);
+            int dy = getBoxSize(deviationY * c.scaleY);
+            if (dx <= 1 && dy <= 1) {
+                return src;
+            }
+            int[] a = c.allocate();
+            int[] b = c.allocate();
+            int[] in = src;
+            for (int pass = 0; pass < 6; pass++) {
+                boolean rows = pass < 3;
+                if (rows ? dx > 1 : dy > 1) {
+                    int[] out = in == a ? b : a;
+                    if (rows) {
+                        blurRows(in, out, c.width, c.height, dx, pass);
+                    } else {
+                        blurColumns(in, out, c.width, c.height, dy, pass - 3);
+                    }
+                    in = out;
+                }
+            }
+            return in;
+        }
+
+        /** box size d of the three box approximation (SVG 1.1, 15.17).
+         * @param s deviation in device pixels
+         * @return d, 1 or less for no blur
+         */
+        private static int getBoxSize(double s) {
+            return (int)Math.floor(s * 3 * Math.sqrt(2 * Math.PI) / 4 + 0.5);
+        }
+
+        /** For odd d all three passes are centered boxes of size d. For
+         *  even d the first two are boxes of size d shifted half a pixel
+         *  left then right and the third one a centered box of size d + 1.
+         * @return pixels before the center of the box of the pass
+         */
+        private static int getLeft(int d, int pass) {
+            return d % 2 == 1 ? d / 2 : pass == 0 ? d / 2 : pass == 1 ? d / 2 - 1 : d / 2;
+        }
+
+        private static int getRight(int d, int pass) {
+            return d % 2 == 1 ? d / 2 : pass == 0 ? d / 2 - 1 : d / 2;
+        }
+
+        private static void blurRows(final int[] src, final int[] dst, final int w, int h, int d, int pass) {
+            final int left = getLeft(d, pass);
+            final int right = getRight(d, pass);
+            final int mul = (1 << 23) / (left + right + 1);
+            GraphicsUtil.forStripes(w, h, new GraphicsUtil.Rows() {
+                public void run(int y0, int y1) {
+                    for (int y = y0; y < y1; y++) {
+                        int row = y * w;
+                        int sa = 0;
+                        int sr = 0;
+                        int sg = 0;
+                        int sb = 0;
+                        for (int i = 0; i < right && i < w; i++) {
+                            int p = src[row + i];
+                            sa += p >>> 24;
+                            sr += (p >> 16) & 0xFF;
+                            sg += (p >> 8) & 0xFF;
+                            sb += p & 0xFF;
+                        }
+                        for (int x = 0; x < w; x++) {
+                            if (x + right < w) {
+                                int p = src[row + x + right];
+                                sa += p >>> 24;
+                                sr += (p >> 16) & 0xFF;
+                                sg += (p >> 8) & 0xFF;
+                                sb += p & 0xFF;
+                            }
+                            dst[row + x] = pack(sa, sr, sg, sb, mul);
+                            if (x - left >= 0) {
+                                int p = src[row + x - left];
+                                sa -= p >>> 24;
+                                sr -= (p >> 16) & 0xFF;
+                                sg -= (p >> 8) & 0xFF;
+                                sb -= p & 0xFF;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        /** same as blurRows() for columns, stripes of columns are swept
+         *  top to bottom with a running sum per column.
+         */
+        private static void blurColumns(final int[] src, final int[] dst, final int w, final int h, int d, int pass) {
+            final int top = getLeft(d, pass);
+            final int bottom = getRight(d, pass);
+            final int mul = (1 << 23) / (top + bottom + 1);
+            GraphicsUtil.forStripes(h, w, new GraphicsUtil.Rows() {
+                public void run(int x0, int x1) {
+                    int n = x1 - x0;
+                    int[] sa = new int[n];
+                    int[] sr = new int[n];
+                    int[] sg = new int[n];
+                    int[] sb = new int[n];
+                    for (int i = 0; i < bottom && i < h; i++) {
+                        add(src, i * w + x0, sa, sr, sg, sb, n, 1);
+                    }
+                    for (int y = 0; y < h; y++) {
+                        if (y + bottom < h) {
+                            add(src, (y + bottom) * w + x0, sa, sr, sg, sb, n, 1);
+                        }
+                        int row = y * w + x0;
+                        for (int k = 0; k < n; k++) {
+                            dst[row + k] = pack(sa[k], sr[k], sg[k], sb[k], mul);
+                        }
+                        if (y - top >= 0) {
+                            add(src, (y - top) * w + x0, sa, sr, sg, sb, n, -1);
+                        }
+                    }
+                }
+            });
+        }
+
+        private static void add(int[] src, int offset, int[] sa, int[] sr, int[] sg, int[] sb, int n, int sign) {
+            for (int k = 0; k < n; k++) {
+                int p = src[offset + k];
+                sa[k] += sign * (p >>> 24);
+                sr[k] += sign * ((p >> 16) & 0xFF);
+                sg[k] += sign * ((p >> 8) & 0xFF);
+                sb[k] += sign * (p & 0xFF);
+            }
+        }
+
+        /** sums are at most 255 * size and mul is 2^23 / size, so the
+         *  products fit in int with the rounding half added.
+         */
+        private static int pack(int sa, int sr, int sg, int sb, int mul) {
+            int half = 1 << 22;
+            return ((sa * mul + half) >> 23) << 24 | ((sr * mul + half) >> 23) << 16 |
+                    ((sg * mul + half) >> 23) << 8 | ((sb * mul + half) >> 23);
+        }
+    }
+
+    static class Offset extends Primitive {
+
+        private float dx;
+        private float dy;
+
+        protected void build() {
+            super.build();
+            dx = getFloatUnits("dx", 0);
+            dy = getFloatUnits("dy", 0);
+        }
+
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeFloat(dx);
+            out.writeFloat(dy);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            dx = in.readFloat();
+            dy = in.readFloat();
+        }
+
+        int[] apply(Context c) {
+            int[] src = getInput(c);
+            int ox = (int)Math.round(dx * c.scaleX);
+            int oy = (int)Math.round(dy * c.scaleY);
+            if (ox == 0 && oy == 0) {
+                return src;
+            }
+            int w = c.width;
+            int h = c.height;
+            int[] dst = c.allocate();
+            Arrays.fill(dst, 0, w * h, 0);
+            int x0 = Math.max(0, ox);
+            int x1 = Math.min(w, w + ox);
+            for (int y = Math.max(0, oy); y < Math.min(h, h + oy) && x0 < x1; y++) {
+                System.arraycopy(src, (y - oy) * w + x0 - ox, dst, y * w + x0, x1 - x0);
+            }
+            return dst;
+        }
+    }
+
+    static class Flood extends Primitive {
+
+        private Color color = Color.BLACK;
+        private float opacity = 1;
+
+        protected void build() {
+            super.build();
+            color = getStyleColor("flood-color", Color.BLACK);
+            opacity = getStyleRatioValue("flood-opacity", 1);
+        }
+
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeColor(color);
+            out.writeFloat(opacity);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            color = in.readColor();
+            opacity = in.readFloat();
+        }
+
+        int[] apply(Context c) {
+            int[] dst = c.allocate();
+            int p = 0;
+            if (color != null) {
+                int a = Math.round(Math.max(0, Math.min(1, opacity)) * color.getAlpha());
+                p = a << 24 | (color.getRed() * a + 127) / 255 << 16 |
+                        (color.getGreen() * a + 127) / 255 << 8 | (color.getBlue() * a + 127) / 255;
+            }
+            Arrays.fill(dst, 0, c.width * c.height, p);
+            return dst;
+        }
+    }
+
+    static class Merge extends Primitive {
+
+        int[] apply(Context c) {
+            int n = c.width * c.height;
+            int[] dst = c.allocate();
+            Arrays.fill(dst, 0, n, 0);
+            for (Iterator i = getChildren().iterator(); i.hasNext();) {
+                Object o = i.next();
+                if (o instanceof MergeNode) {
+                    over(c.getInput(((MergeNode)o).in), dst, n);
+                }
+            }
+            return dst;
+        }
+
+        /** premultiplied source over destination. */
+        private static void over(int[] src, int[] dst, int n) {
+            for (int i = 0; i < n; i++) {
+                int s = src[i];
+                int sa = s >>> 24;
+                if (sa == 255) {
+                    dst[i] = s;
+                } else if (s != 0) {
+                    int d = dst[i];
+                    int k = 255 - sa;
+                    dst[i] = (sa + ((d >>> 24) * k + 127) / 255) << 24 |
+                            (((s >> 16) & 0xFF) + (((d >> 16) & 0xFF) * k + 127) / 255) << 16 |
+                            (((s >> 8) & 0xFF) + (((d >> 8) & 0xFF) * k + 127) / 255) << 8 |
+                            ((s & 0xFF) + ((d & 0xFF) * k + 127) / 255);
+                }
+            }
+        }
+    }
+
+    static class MergeNode extends Element {
+
+        private String in;
+
+        protected void build() {
+            super.build();
+            in = getString("in");
+        }
+
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeString(in);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            this.in = in.readString();
+        }
+    }
+
+    /** primitive that is not implemented, makes its filter unsupported. */
+    static class Unsupported extends Element {
+    }
+
+}
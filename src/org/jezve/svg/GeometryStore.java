@@ -0,0 +1,298 @@
+package org.jezve.svg;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/** Path coordinates of a document kept outside of the Java heap.
+ *  Documents with millions of path points otherwise hold them in
+ *  GeneralPath float arrays that the garbage collector has to trace and
+ *  copy for as long as the document lives.
+ *  <p>
+ *  Paths are copied into direct byte buffers allocated in chunks (an
+ *  arena per document) and handed out as read only Shape views
+ *  (see StoredPath). Layout of a path in its chunk (native byte order):
+ *  <pre>
+ *  float[coords] coordinates, byte[segments] segment types, padded to 4
+ *  </pre>
+ *  Polygon and polyline points (see Points) are stored as their float[]
+ *  of x, y pairs alone.
+ *  close() returns the chunks to a pool shared by all documents, so the
+ *  memory is reused by the next document right away instead of waiting
+ *  for the collector to find the buffers unreachable. Paths of a closed
+ *  store must not be used any more.
+ *  <p>
+ *  Storing is not thread safe (documents are built by a single thread),
+ *  reading is: views use absolute gets only.
+ */
+final class GeometryStore {
+
+    static final int CHUNK_SIZE = 1024 * 1024; // bytes
+    private static final int POOL_SIZE = 16; // chunks
+    private static final LinkedList pool = new LinkedList(); // ByteBuffer, free chunks of CHUNK_SIZE
+
+    private final ArrayList chunks = new ArrayList(); // ByteBuffer
+    private ByteBuffer chunk; // being filled
+    private int used; // bytes of chunk
+    private long size; // bytes of all stored paths
+    private volatile boolean closed;
+    private byte[] types = new byte[64]; // store() scratch
+    private float[] coords = new float[128];
+
+    /** copies path into the store.
+     * @param path path
+     * @return read only view of the path or path itself if the store is closed
+     */
+    Shape store(GeneralPath path) {
+        if (closed) {
+            return path;
+        }
+        PathIterator pi = path.getPathIterator(null);
+        float[] c = new float[6];
+        int segments = 0;
+        int n = 0;
+        while (!pi.isDone()) {
+            int type = pi.currentSegment(c);
+            int k = type == PathIterator.SEG_CLOSE ? 0 :
+                    type == PathIterator.SEG_QUADTO ? 4 :
+                    type == PathIterator.SEG_CUBICTO ? 6 : 2;
+            if (segments == types.length) {
+                byte[] t = new byte[segments * 2];
+                System.arraycopy(types, 0, t, 0, segments);
+                types = t;
+            }
+            if (n + k > coords.length) {
+                float[] f = new float[coords.length * 2 + k];
+                System.arraycopy(coords, 0, f, 0, n);
+                coords = f;
+            }
+            types[segments++] = (byte)type;
+            System.arraycopy(c, 0, coords, n, k);
+            n += k;
+            pi.next();
+        }
+        int bytes = n * 4 + (segments + 3) / 4 * 4;
+        ByteBuffer b = allocate(bytes);
+        int offset = used;
+        ByteBuffer d = b.duplicate();
+        d.order(b.order());
+        d.position(offset);
+        d.asFloatBuffer().put(coords, 0, n);
+        d.position(offset + n * 4);
+        d.put(types, 0, segments);
+        used += bytes;
+        size += bytes;
+        return new StoredPath(this, b, offset, offset + n * 4, segments, pi.getWindingRule(), path.getBounds2D());
+    }
+
+    /** copies points into the store.
+     * @param p points
+     * @return points viewing the copy or p itself if the store is closed
+     */
+    Points store(Points p) {
+        if (closed) {
+            return p;
+        }
+        float[] xy = p.getCoords();
+        int bytes = xy.length * 4;
+        ByteBuffer b = allocate(bytes);
+        ByteBuffer d = b.duplicate();
+        d.position(used);
+        d.limit(used + bytes);
+        FloatBuffer f = d.slice().order(b.order()).asFloatBuffer();
+        f.put(xy);
+        used += bytes;
+        size += bytes;
+        return new Points(p, f, this);
+    }
+
+    private ByteBuffer allocate(int bytes) {
+        if (chunk == null || used + bytes > chunk.capacity()) {
+            if (bytes > CHUNK_SIZE) { // huge path gets a chunk of its own
+                chunk = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            } else {
+                chunk = null;
+                synchronized (pool) {
+                    if (pool.size() > 0) {
+                        chunk = (ByteBuffer)pool.removeFirst();
+                    }
+                }
+                if (chunk == null) {
+                    chunk = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder());
+                }
+            }
+            chunks.add(chunk);
+            used = 0;
+        }
+        return chunk;
+    }
+
+    /**
+     * @return bytes used by stored paths
+     */
+    long getSize() {
+        return size;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /** releases the chunks for reuse. Idempotent. */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (pool) {
+            for (int i = 0; i < chunks.size(); i++) {
+                ByteBuffer b = (ByteBuffer)chunks.get(i);
+                if (b.capacity() == CHUNK_SIZE && pool.size() < POOL_SIZE) {
+                    pool.addLast(b);
+                }
+            }
+        }
+        chunks.clear();
+        chunk = null;
+        types = null;
+        coords = null;
+    }
+
+    /** Shape view of a path in the store. Java2D only asks shapes for
+     *  bounds and path iterators, the rest is answered by a temporary
+     *  GeneralPath.
+     */
+    static final class StoredPath implements Shape {
+
+        private final GeometryStore store;
+        private final ByteBuffer buf;
+        private final int coords; // byte offset of coordinates
+        private final int types; // byte offset of segment types
+        private final int segments;
+        private final int rule;
+        private final Rectangle2D bounds; // of the source path
+
+        private StoredPath(GeometryStore s, ByteBuffer b, int c, int t, int n, int wr, Rectangle2D r) {
+            store = s;
+            buf = b;
+            coords = c;
+            types = t;
+            segments = n;
+            rule = wr;
+            bounds = r;
+        }
+
+        public Rectangle getBounds() {
+            return bounds.getBounds();
+        }
+
+        public Rectangle2D getBounds2D() {
+            return (Rectangle2D)bounds.clone();
+        }
+
+        public boolean contains(double x, double y) {
+            return toGeneralPath().contains(x, y);
+        }
+
+        public boolean contains(Point2D p) {
+            return toGeneralPath().contains(p);
+        }
+
+        public boolean intersects(double x, double y, double w, double h) {
+            return toGeneralPath().intersects(x, y, w, h);
+        }
+
+        public boolean intersects(Rectangle2D r) {
+            return toGeneralPath().intersects(r);
+        }
+
+        public boolean contains(double x, double y, double w, double h) {
+            return toGeneralPath().contains(x, y, w, h);
+        }
+
+        public boolean contains(Rectangle2D r) {
+            return toGeneralPath().contains(r);
+        }
+
+        public PathIterator getPathIterator(AffineTransform at) {
+            if (store.isClosed()) {
+                throw new IllegalStateException("document closed");
+            }
+            return new Iterator(this, at);
+        }
+
+        public PathIterator getPathIterator(AffineTransform at, double flatness) {
+            return new FlatteningPathIterator(getPathIterator(at), flatness);
+        }
+
+        private GeneralPath toGeneralPath() {
+            GeneralPath gp = new GeneralPath(rule, Math.max(segments, 2));
+            gp.append(getPathIterator(null), false);
+            return gp;
+        }
+
+    }
+
+    private static final class Iterator implements PathIterator {
+
+        private final StoredPath path;
+        private final AffineTransform at;
+        private int segment;
+        private int coord; // byte offset of the current segment coordinates
+
+        Iterator(StoredPath p, AffineTransform t) {
+            path = p;
+            at = t == null || t.isIdentity() ? null : t;
+            coord = p.coords;
+        }
+
+        public int getWindingRule() {
+            return path.rule;
+        }
+
+        public boolean isDone() {
+            return segment >= path.segments;
+        }
+
+        public void next() {
+            coord += getCoordCount(path.buf.get(path.types + segment)) * 4;
+            segment++;
+        }
+
+        private static int getCoordCount(int type) {
+            return type == SEG_CLOSE ? 0 : type == SEG_QUADTO ? 4 : type == SEG_CUBICTO ? 6 : 2;
+        }
+
+        public int currentSegment(float[] c) {
+            int type = path.buf.get(path.types + segment);
+            int k = getCoordCount(type);
+            ByteBuffer b = path.buf;
+            for (int i = 0; i < k; i++) {
+                c[i] = b.getFloat(coord + i * 4);
+            }
+            if (at != null && k > 0) {
+                at.transform(c, 0, c, 0, k / 2);
+            }
+            return type;
+        }
+
+        public int currentSegment(double[] c) {
+            int type = path.buf.get(path.types + segment);
+            int k = getCoordCount(type);
+            ByteBuffer b = path.buf;
+            for (int i = 0; i < k; i++) {
+                c[i] = b.getFloat(coord + i * 4);
+            }
+            if (at != null && k > 0) {
+                at.transform(c, 0, c, 0, k / 2);
+            }
+            return type;
+        }
+
+    }
+
+}
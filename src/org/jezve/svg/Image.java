@@ -8,6 +8,8 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
 
 public class Image extends SVG.RenderableElement {
 
@@ -18,6 +20,7 @@ public class Image extends SVG.RenderableElement {
     private AffineTransform xform = GraphicsUtil.IDENTITY;
     private Rectangle2D bounds = GraphicsUtil.EMPTY_BOX;
     private BufferedImage img;
+    private BitmapCache.Bitmap bitmap; // external bitmap file, img is set once it is decoded, see updateImage()
     private boolean isVisible;
     private float opacity = 1f;
 
@@ -27,6 +30,10 @@ public class Image extends SVG.RenderableElement {
         y = getFloatUnits("y", 0);
         width = getFloatUnits("width", 0);
         height = getFloatUnits("height", 0);
+        img = null;
+        bitmap = null;
+        xform = GraphicsUtil.IDENTITY;
+        bounds = GraphicsUtil.EMPTY_BOX;
         try {
             String uri = getStyleHref();
             if (uri != null) {
@@ -49,29 +56,110 @@ public class Image extends SVG.RenderableElement {
                     }
                     is.close();
                 } else {
-//                  System.err.println("WARNING: external references not implemented: " + uri);
-                    return;
+                    File f = resolveFile(getRoot().getBase(), uri);
+                    if (f == null || !f.isFile()) {
+                        return;
+                    }
+                    bitmap = BitmapCache.get(f);
                 }
             }
         } catch (IOException e) {
             throw new Error(e);
         }
-        if (img == null) {
+        if (img != null) {
+            setImage(img);
+        } else if (bitmap != null) {
+            if (width == 0 || height == 0) {
+                Dimension d = bitmap.getDimension();
+                if (d == null) {
+                    bitmap = null;
+                    return;
+                }
+                width = width == 0 ? d.width : width;
+                height = height == 0 ? d.height : height;
+            }
+            getRoot().addBitmap(this, bitmap);
+        } else {
             return;
         }
+        bounds = new Rectangle2D.Float(this.x, this.y, this.width, this.height);
+        String v = getString("visibility");
+        isVisible = v == null || !"visible".equalsIgnoreCase(v);
+        opacity = getStyleRatioValue("opacity", 1f);
+    }
+
+    /** sets image and determines image xform, width and height default to the image size. */
+    private void setImage(BufferedImage bi) {
+        img = bi;
         if (width == 0) {
             width = img.getWidth();
         }
         if (height == 0) {
             height = img.getHeight();
         }
-        // Determine image xform
         xform = AffineTransform.getTranslateInstance(this.x, this.y);
         xform.scale(this.width / img.getWidth(), this.height / img.getHeight());
-        bounds = new Rectangle2D.Float(this.x, this.y, this.width, this.height);
-        String v = getString("visibility");
-        isVisible = v == null || !"visible".equalsIgnoreCase(v);
-        opacity = getStyleRatioValue("opacity", 1f);
+    }
+
+    /** resolves reference to a local bitmap file. Remote references
+     *  and references of documents not read from a file are ignored.
+     * @param base directory of the document or null
+     * @param uri absolute file: URI, absolute path or path relative to base
+     * @return file or null
+     */
+    static File resolveFile(File base, String uri) {
+        if (base == null) {
+            return null;
+        }
+        if (uri.indexOf(':') == 1) {
+            return new File(uri); // windows drive letter
+        }
+        try {
+            URI u;
+            try {
+                u = new URI(uri);
+            } catch (URISyntaxException e) {
+                u = new URI(null, null, uri, null); // unescaped, e.g. spaces
+            }
+            u = base.toURI().resolve(u);
+            return "file".equals(u.getScheme()) ? new File(u) : null; // not http:, data:...
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null; // e.g. file URI with authority
+        }
+    }
+
+    protected void write(Binary.Output out) throws IOException {
+        super.write(out);
+        out.writeFloat(x);
+        out.writeFloat(y);
+        out.writeFloat(width);
+        out.writeFloat(height);
+        out.writeTransform(xform);
+        out.writeRect(bounds);
+        out.writeString(bitmap == null ? null : bitmap.file.getPath());
+        out.writeImage(bitmap == null ? img : null); // bitmap files are decoded again, shared
+        out.writeBoolean(isVisible);
+        out.writeFloat(opacity);
+    }
+
+    protected void read(Binary.Input in) {
+        super.read(in);
+        x = in.readFloat();
+        y = in.readFloat();
+        width = in.readFloat();
+        height = in.readFloat();
+        xform = in.readTransform();
+        bounds = in.readRect();
+        String file = in.readString();
+        img = in.readImage();
+        if (file != null) {
+            bitmap = BitmapCache.get(new File(file));
+            getRoot().addBitmap(this, bitmap);
+        }
+        isVisible = in.readBoolean();
+        opacity = in.readFloat();
     }
 
     public float getX() {
@@ -97,27 +185,35 @@ public class Image extends SVG.RenderableElement {
         if (opacity <= 0) {
             return;
         }
-        beginLayer(g);
-        Composite saveComp = null;
-        if (opacity < 1) {
-            saveComp = g.getComposite();
-            Composite comp = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity);
-            g.setComposite(comp);
-        }
         if (img == null) {
             return;
         }
+        beginLayer(g);
         AffineTransform curXform = g.getTransform();
         g.transform(xform);
-        g.drawImage(img, 0, 0, null);
+        getRoot().drawImage(g, img, opacity);
         g.setTransform(curXform);
-        if (saveComp != null) {
-            g.setComposite(saveComp);
-        }
         finishLayer(g);
     }
 
-    public Rectangle2D getBoundingBox() {
+    /** takes the decoded bitmap, see SVG.updateImages().
+     * @return true if the element no longer waits for its bitmap
+     */
+    boolean updateImage() {
+        if (img != null || bitmap == null) {
+            return true;
+        }
+        if (!bitmap.isDone()) {
+            return false;
+        }
+        if (bitmap.getImage() != null) {
+            setImage(bitmap.getImage());
+            invalidate(); // caches of ancestors rendered without the image
+        }
+        return true;
+    }
+
+    Rectangle2D calculateBoundingBox(boolean stroke) {
         return boundsToParent(bounds);
     }
 
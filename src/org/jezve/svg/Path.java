@@ -2,11 +2,12 @@ package org.jezve.svg;
 
 import java.awt.*;
 import java.awt.geom.*;
+import java.io.IOException;
 import java.util.LinkedList;
 
 public class Path extends SVG.ShapeElement {
 
-    private GeneralPath path;
+    private Shape path; // GeneralPath or GeometryStore.StoredPath
 
     protected void build() {
         super.build();
@@ -14,7 +15,17 @@ public class Path extends SVG.ShapeElement {
         int fillRule = "evenodd".equalsIgnoreCase(fr) ?
                 GeneralPath.WIND_EVEN_ODD : GeneralPath.WIND_NON_ZERO;
         String d = getString("d", "");
-        path = PathCommand.buildPath(d, fillRule);
+        path = getRoot().storePath(PathCommand.buildPath(d, fillRule));
+    }
+
+    protected void write(Binary.Output out) throws IOException {
+        super.write(out);
+        out.writeShape(path);
+    }
+
+    protected void read(Binary.Input in) {
+        super.read(in);
+        path = getRoot().storePath(in.readShape());
     }
 
     void render(Graphics2D g) {
@@ -27,8 +38,8 @@ public class Path extends SVG.ShapeElement {
         return shapeToParent(path);
     }
 
-    Rectangle2D getBoundingBox() {
-        return boundsToParent(includeStrokeInBounds(path.getBounds2D()));
+    Rectangle2D calculateBoundingBox(boolean stroke) {
+        return boundsToParent(includeStrokeInBounds(path.getBounds2D(), stroke));
     }
 
     static abstract class PathCommand {
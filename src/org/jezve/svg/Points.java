@@ -0,0 +1,293 @@
+package org.jezve.svg;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.nio.FloatBuffer;
+
+/** Points of polygon and polyline kept as a single exactly sized float
+ *  array of x, y pairs and handed out as a Shape of straight segments.
+ *  GIS exports have polylines of hundreds of thousands of points: the
+ *  points attribute is scanned once to count the numbers, then parsed
+ *  straight into the array, instead of into a growing scratch buffer
+ *  that is copied and replayed into a GeneralPath point by point.
+ *  Documents read off heap keep the array in their GeometryStore
+ *  (see GeometryStore.store(Points)).
+ *  <p>
+ *  Immutable, so it may be shared and read by several threads.
+ */
+final class Points implements Shape {
+
+    private final FloatBuffer xy; // wrapped array or view of a store chunk, absolute gets only
+    private final int n; // number of coordinates
+    private final GeometryStore store; // null if xy is on heap
+    private final boolean closed;
+    private final int rule;
+    private final Rectangle2D bounds;
+
+    /**
+     * @param xy x, y pairs, at least one, not copied
+     * @param closed true for polygon
+     * @param rule winding rule
+     */
+    Points(float[] xy, boolean closed, int rule) {
+        assert xy.length >= 2 && xy.length % 2 == 0;
+        this.xy = FloatBuffer.wrap(xy);
+        this.n = xy.length;
+        this.store = null;
+        this.closed = closed;
+        this.rule = rule;
+        float minX = xy[0];
+        float minY = xy[1];
+        float maxX = minX;
+        float maxY = minY;
+        for (int i = 2; i < xy.length; i += 2) {
+            float x = xy[i];
+            float y = xy[i + 1];
+            if (x < minX) {
+                minX = x;
+            } else if (x > maxX) {
+                maxX = x;
+            }
+            if (y < minY) {
+                minY = y;
+            } else if (y > maxY) {
+                maxY = y;
+            }
+        }
+        bounds = new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    /** same points kept in a store.
+     * @param p points
+     * @param xy copy of the coordinates of p
+     * @param s store that owns xy
+     */
+    Points(Points p, FloatBuffer xy, GeometryStore s) {
+        this.xy = xy;
+        this.n = p.n;
+        this.store = s;
+        this.closed = p.closed;
+        this.rule = p.rule;
+        this.bounds = p.bounds;
+    }
+
+    /** parses the points attribute, an odd last coordinate is ignored.
+     *  e.g. Adobe Illustrator writes "1-1 4-1 4-4 1-4 " (orangeobject_background-ribbon.svg)
+     * @param s list of numbers separated by whitespace and commas or null
+     * @param closed true for polygon
+     * @param rule winding rule
+     * @return points or null if there are none
+     */
+    static Points parse(String s, boolean closed, int rule) {
+        if (s == null) {
+            return null;
+        }
+        int n = countNumbers(s) & ~1;
+        if (n == 0) {
+            return null;
+        }
+        float[] xy = new float[n];
+        Parser.Double parser = new Parser.Double(s, ",");
+        for (int i = 0; i < n; i++) {
+            xy[i] = parser.nextFloat();
+        }
+        return new Points(xy, closed, rule);
+    }
+
+    /** counts numbers the way Parser.Double splits them, e.g. "1.5.5-2e3"
+     *  is three numbers.
+     */
+    static int countNumbers(String s) {
+        int count = 0;
+        int len = s.length();
+        int i = 0;
+        while (i < len) {
+            char c = s.charAt(i);
+            int j = i;
+            if (c == '-' || c == '+') {
+                j++;
+            }
+            int digits = 0;
+            while (j < len && isDigit(s.charAt(j))) {
+                j++;
+                digits++;
+            }
+            if (j < len && s.charAt(j) == '.') {
+                j++;
+                while (j < len && isDigit(s.charAt(j))) {
+                    j++;
+                    digits++;
+                }
+            }
+            if (digits == 0) {
+                i++;
+                continue;
+            }
+            if (j < len && (s.charAt(j) == 'e' || s.charAt(j) == 'E')) {
+                j++;
+                if (j < len && (s.charAt(j) == '-' || s.charAt(j) == '+')) {
+                    j++;
+                }
+                while (j < len && isDigit(s.charAt(j))) {
+                    j++;
+                }
+            }
+            count++;
+            i = j;
+        }
+        return count;
+    }
+
+    private static boolean isDigit(char c) {
+        return '0' <= c && c <= '9';
+    }
+
+    /**
+     * @return number of points
+     */
+    int size() {
+        return n / 2;
+    }
+
+    /**
+     * @return x, y pairs, must not be modified
+     */
+    float[] getCoords() {
+        return store == null ? xy.array() : toArray();
+    }
+
+    private float[] toArray() {
+        float[] a = new float[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = xy.get(i);
+        }
+        return a;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int getWindingRule() {
+        return rule;
+    }
+
+    /** simplifies the points directly (see Simplify.simplify()), there
+     *  are no curves to flatten.
+     * @param tolerance maximum deviation
+     * @return simplified points or this if no point can be dropped
+     */
+    Points simplify(double tolerance) {
+        float[] pts = toArray();
+        int k = Simplify.simplify(pts, pts.length, tolerance);
+        if (k == pts.length) {
+            return this;
+        }
+        float[] r = new float[k];
+        System.arraycopy(pts, 0, r, 0, k);
+        return new Points(r, closed, rule);
+    }
+
+    public Rectangle getBounds() {
+        return bounds.getBounds();
+    }
+
+    public Rectangle2D getBounds2D() {
+        return (Rectangle2D)bounds.clone();
+    }
+
+    public boolean contains(double x, double y) {
+        return toGeneralPath().contains(x, y);
+    }
+
+    public boolean contains(Point2D p) {
+        return toGeneralPath().contains(p);
+    }
+
+    public boolean intersects(double x, double y, double w, double h) {
+        return toGeneralPath().intersects(x, y, w, h);
+    }
+
+    public boolean intersects(Rectangle2D r) {
+        return toGeneralPath().intersects(r);
+    }
+
+    public boolean contains(double x, double y, double w, double h) {
+        return toGeneralPath().contains(x, y, w, h);
+    }
+
+    public boolean contains(Rectangle2D r) {
+        return toGeneralPath().contains(r);
+    }
+
+    public PathIterator getPathIterator(AffineTransform at) {
+        if (store != null && store.isClosed()) {
+            throw new IllegalStateException("document closed");
+        }
+        return new Iterator(this, at);
+    }
+
+    public PathIterator getPathIterator(AffineTransform at, double flatness) {
+        return getPathIterator(at); // already flat
+    }
+
+    private GeneralPath toGeneralPath() {
+        GeneralPath gp = new GeneralPath(rule, n / 2 + 1);
+        gp.append(getPathIterator(null), false);
+        return gp;
+    }
+
+    private static final class Iterator implements PathIterator {
+
+        private final Points points;
+        private final AffineTransform at;
+        private final int segments;
+        private int segment;
+
+        Iterator(Points p, AffineTransform t) {
+            points = p;
+            at = t == null || t.isIdentity() ? null : t;
+            segments = p.n / 2 + (p.closed ? 1 : 0);
+        }
+
+        public int getWindingRule() {
+            return points.rule;
+        }
+
+        public boolean isDone() {
+            return segment >= segments;
+        }
+
+        public void next() {
+            segment++;
+        }
+
+        public int currentSegment(float[] c) {
+            int i = segment * 2;
+            if (i >= points.n) {
+                return SEG_CLOSE;
+            }
+            c[0] = points.xy.get(i);
+            c[1] = points.xy.get(i + 1);
+            if (at != null) {
+                at.transform(c, 0, c, 0, 1);
+            }
+            return segment == 0 ? SEG_MOVETO : SEG_LINETO;
+        }
+
+        public int currentSegment(double[] c) {
+            int i = segment * 2;
+            if (i >= points.n) {
+                return SEG_CLOSE;
+            }
+            c[0] = points.xy.get(i);
+            c[1] = points.xy.get(i + 1);
+            if (at != null) {
+                at.transform(c, 0, c, 0, 1);
+            }
+            return segment == 0 ? SEG_MOVETO : SEG_LINETO;
+        }
+
+    }
+
+}
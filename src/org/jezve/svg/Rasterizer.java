@@ -0,0 +1,269 @@
+package org.jezve.svg;
+
+import org.jezve.util.*;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+
+/** Headless batch renderer of SVG directory trees into PNG files.
+ *  <pre>
+ *  usage: Rasterizer [-sizes 16,32,48] [-threads n] [-lod] [-stream] [-offheap]
+ *                    -out dir (dir|file)...
+ *  </pre>
+ *  Each input file is rendered at every requested size into
+ *  out/NNxNN/relative/path/name.png (relative to the input directory).
+ *  Files are distributed across a pool of worker threads (default: number
+ *  of processors). Per file line "file,usec,status" is printed as files
+ *  complete, followed by a summary with failures and peak memory.
+ *  Exit code is 1 if any file failed.
+ *  -lod enables level of detail rendering (see SVG.setLevelOfDetail).
+ *  -stream renders while parsing (see SVG.stream()), the file is parsed
+ *  again for every size and -lod does not apply.
+ *  -offheap keeps path coordinates off heap (see SVG.read(InputStream, boolean)).
+ */
+public class Rasterizer {
+
+    private final int[] sizes;
+    private final File out;
+    private boolean lod;
+    private boolean stream;
+    private boolean offHeap;
+    private final List failures = new ArrayList(); // String
+    private long peakMemory;
+    private long totalTime;
+    private int rendered;
+
+    public Rasterizer(int[] sizes, File out) {
+        this.sizes = sizes;
+        this.out = out;
+    }
+
+    public void setLevelOfDetail(boolean b) {
+        lod = b;
+    }
+
+    public void setStream(boolean b) {
+        stream = b;
+    }
+
+    public void setOffHeap(boolean b) {
+        offHeap = b;
+    }
+
+    /** renders document at w x h honoring viewBox and preserveAspectRatio.
+     * @param svg document
+     * @param w width
+     * @param h height
+     * @return rendered image
+     */
+    public static BufferedImage render(SVG svg, int w, int h) {
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = bi.createGraphics();
+        try {
+            g.transform(svg.getRoot().getViewTransform(w, h));
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setRenderingHint(SVG.KEY_DEVICE_BOUNDS, new Rectangle(0, 0, w, h));
+            svg.render(g);
+        } finally {
+            g.dispose();
+        }
+        return bi;
+    }
+
+    /** renders document at w x h while parsing it (see SVG.stream()).
+     * @param f svg or svgz file
+     * @param w width
+     * @param h height
+     * @return rendered image
+     * @throws IOException on i/o error or if the file is not svg
+     */
+    public static BufferedImage stream(File f, int w, int h) throws IOException {
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = bi.createGraphics();
+        InputStream is = new FileInputStream(f);
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setRenderingHint(SVG.KEY_DEVICE_BOUNDS, new Rectangle(0, 0, w, h));
+            if (SVG.stream(is, g, w, h) == null) {
+                throw new IOException("not svg");
+            }
+        } finally {
+            IO.close(is);
+            g.dispose();
+        }
+        return bi;
+    }
+
+    /** renders all svg/svgz files found in the given files or directories.
+     * @param inputs files or directories
+     * @param threads number of worker threads, &lt;= 0 means number of processors
+     * @return number of failed files
+     */
+    public int run(File[] inputs, int threads) {
+        Parallel pool = new Parallel(threads, "Rasterizer");
+        try {
+            for (int i = 0; i < inputs.length; i++) {
+                File base = inputs[i].isDirectory() ? inputs[i] : inputs[i].getParentFile();
+                List files = new ArrayList();
+                getFiles(inputs[i], files);
+                Collections.sort(files);
+                for (Iterator j = files.iterator(); j.hasNext();) {
+                    final File f = (File)j.next();
+                    final String rel = getRelativePath(base, f);
+                    pool.execute(new Runnable() {
+                        public void run() {
+                            rasterize(f, rel);
+                        }
+                    });
+                }
+            }
+            pool.waitAll();
+        } finally {
+            pool.dispose();
+        }
+        return failures.size();
+    }
+
+    private void rasterize(File f, String rel) {
+        long time = Time.microseconds();
+        String status = "ok";
+        SVG svg = null;
+        try {
+            if (!stream) {
+                svg = SVG.read(f, offHeap);
+                if (svg == null) {
+                    throw new IOException("not svg");
+                }
+                svg.waitForImages(0);
+                if (lod) {
+                    svg.setLevelOfDetail(0.5f, 0.25f, 0.25f);
+                }
+            }
+            String name = rel.substring(0, rel.lastIndexOf('.')) + ".png";
+            for (int i = 0; i < sizes.length; i++) {
+                BufferedImage bi = stream ? stream(f, sizes[i], sizes[i]) :
+                        render(svg, sizes[i], sizes[i]);
+                File png = new File(new File(out, sizes[i] + "x" + sizes[i]), name);
+                png.getParentFile().mkdirs();
+                if (!ImageIO.write(bi, "png", png)) {
+                    throw new IOException("no png writer");
+                }
+            }
+        } catch (Throwable t) { // OutOfMemoryError and Errors from the parser included
+            status = "failed: " + t;
+        } finally {
+            if (svg != null) {
+                svg.close();
+            }
+        }
+        time = Time.microseconds() - time;
+        long used = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        synchronized (this) {
+            peakMemory = Math.max(peakMemory, used);
+            totalTime += time;
+            rendered++;
+            if (!"ok".equals(status)) {
+                failures.add(rel + ": " + status);
+            }
+            System.out.println("\"" + rel + "\"," + time + "," + status);
+        }
+    }
+
+    private synchronized void report(long wall) {
+        System.out.println(rendered + " files, " + failures.size() + " failed, " +
+                "wall " + wall / 1000 + " cpu " + totalTime / 1000 + " milliseconds, " +
+                "peak memory " + peakMemory / 1024 + " KB.");
+        for (Iterator i = failures.iterator(); i.hasNext();) {
+            System.out.println("\t" + i.next());
+        }
+    }
+
+    private static String getRelativePath(File base, File f) {
+        String b = base.getAbsolutePath();
+        String p = f.getAbsolutePath();
+        if (p.startsWith(b) && p.length() > b.length()) {
+            p = p.substring(b.length() + 1);
+        } else {
+            p = f.getName();
+        }
+        return p.replace(File.separatorChar, '/');
+    }
+
+    private static void getFiles(File f, List files) {
+        if (f.isDirectory()) {
+            File[] ls = f.listFiles();
+            for (int i = 0; ls != null && i < ls.length; i++) {
+                if (!ls[i].getName().startsWith(".")) { // do not go into hidden dirs
+                    getFiles(ls[i], files);
+                }
+            }
+        } else {
+            String name = f.getName().toLowerCase();
+            if (name.endsWith(".svg") || name.endsWith(".svgz")) {
+                files.add(f);
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: Rasterizer [-sizes 16,32,48] [-threads n] [-lod] [-stream] [-offheap] " +
+                "-out dir (dir|file)...");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        int[] sizes = {16, 32, 48};
+        int threads = 0;
+        boolean lod = false;
+        boolean stream = false;
+        boolean offHeap = false;
+        File out = null;
+        List inputs = new ArrayList();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-sizes".equals(args[i])) {
+                    StringTokenizer st = new StringTokenizer(args[++i], ",");
+                    sizes = new int[st.countTokens()];
+                    for (int k = 0; k < sizes.length; k++) {
+                        sizes[k] = Integer.parseInt(st.nextToken().trim());
+                    }
+                } else if ("-threads".equals(args[i])) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("-lod".equals(args[i])) {
+                    lod = true;
+                } else if ("-stream".equals(args[i])) {
+                    stream = true;
+                } else if ("-offheap".equals(args[i])) {
+                    offHeap = true;
+                } else if ("-out".equals(args[i])) {
+                    out = new File(args[++i]);
+                } else {
+                    inputs.add(new File(args[i]));
+                }
+            }
+        } catch (RuntimeException e) { // missing or malformed argument
+            usage();
+        }
+        if (out == null || inputs.size() == 0 || sizes.length == 0) {
+            usage();
+        }
+        Rasterizer r = new Rasterizer(sizes, out);
+        r.setLevelOfDetail(lod);
+        r.setStream(stream);
+        r.setOffHeap(offHeap);
+        long wall = Time.microseconds();
+        int failed = r.run((File[])inputs.toArray(new File[inputs.size()]), threads);
+        r.report(Time.microseconds() - wall);
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+}
@@ -0,0 +1,411 @@
+package org.jezve.svg;
+
+import org.jezve.util.*;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+
+/** Rendering statistics of a document, for finding out why it is slow.
+ *  <pre>
+ *  RenderStats rs = new RenderStats(10);
+ *  svg.setRenderStats(rs);
+ *  svg.render(g);
+ *  svg.setRenderStats(null);
+ *  rs.print(System.out);
+ *  </pre>
+ *  Collected:
+ *  <pre>
+ *  per element type  - number of rendered elements and self time (time
+ *                      spent in the element minus time spent in the
+ *                      children it rendered, so types add up to total)
+ *  fills, strokes    - drawing operations including display list replays
+ *  stroked paths     - stroke outlines created (replays do not create them)
+ *  gradient pixels   - device pixels covered by gradient fills and strokes
+ *  pattern pixels    - same for patterns (tiles rendering is counted as
+ *                      fills of its own)
+ *  clip changes      - clip set and restored by clip-path
+ *  slowest elements  - by self time, named by id or by the type and the
+ *                      id of the nearest ancestor that has one
+ *  </pre>
+ *  Pixels are estimated from device bounds of the shape clipped to the
+ *  clip bounds, which is the area paint contexts are asked to fill.
+ *  <p>
+ *  Statistics are not thread safe: collect into a separate instance per
+ *  document and render the document from a single thread.
+ *  <p>
+ *  usage: RenderStats [-size 256] [-slowest 10] [-warm] (file)...
+ *  prints statistics of rendering every file at size x size, -warm
+ *  renders once before collecting (caches and display lists populated).
+ *  Number of gradients folded at load time (see SVG.foldGradients()) is
+ *  printed too.
+ */
+public class RenderStats {
+
+    /** nanoseconds spent in Time.nanoseconds(), subtracted from element
+     *  times so that many small elements are not inflated by timing them.
+     */
+    private static final long TIMER_COST = measureTimerCost();
+
+    private final int slowestCount;
+    private final HashMap types = new HashMap(); // type(String) -> long[]{count, nanoseconds}
+    private final HashMap names = new HashMap(); // Class -> type(String)
+    private final LinkedList slowest = new LinkedList(); // Object[]{String name, Long nanoseconds}, slowest first
+    private long[] starts = new long[32];
+    private long[] nested = new long[32]; // time spent in children
+    private int[] children = new int[32]; // number of children timed
+    private int depth;
+    private int fills;
+    private int strokes;
+    private int strokedPaths;
+    private int clipChanges;
+    private long gradientPixels;
+    private long patternPixels;
+
+    public RenderStats() {
+        this(10);
+    }
+
+    /**
+     * @param slowest number of slowest elements to keep
+     */
+    public RenderStats(int slowest) {
+        slowestCount = slowest;
+    }
+
+    public void reset() {
+        types.clear();
+        slowest.clear();
+        depth = 0;
+        fills = 0;
+        strokes = 0;
+        strokedPaths = 0;
+        clipChanges = 0;
+        gradientPixels = 0;
+        patternPixels = 0;
+    }
+
+    private static long measureTimerCost() {
+        long cost = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) { // warm up, keep the fastest
+            long start = Time.nanoseconds();
+            for (int i = 0; i < 10000; i++) {
+                Time.nanoseconds();
+            }
+            cost = Math.min(cost, (Time.nanoseconds() - start) / 10001);
+        }
+        return cost;
+    }
+
+    void begin() {
+        if (depth == starts.length) {
+            long[] s = new long[depth * 2];
+            System.arraycopy(starts, 0, s, 0, depth);
+            starts = s;
+            long[] n = new long[depth * 2];
+            System.arraycopy(nested, 0, n, 0, depth);
+            nested = n;
+            int[] c = new int[depth * 2];
+            System.arraycopy(children, 0, c, 0, depth);
+            children = c;
+        }
+        nested[depth] = 0;
+        children[depth] = 0;
+        starts[depth++] = Time.nanoseconds();
+    }
+
+    void end(Element e) {
+        assert depth > 0;
+        long time = Time.nanoseconds() - starts[--depth];
+        // about one timer call falls into the element's own time and one
+        // more for every child timed (its begin() and end() halves)
+        long self = Math.max(0, time - nested[depth] - (1 + children[depth]) * TIMER_COST);
+        if (depth > 0) {
+            nested[depth - 1] += time;
+            children[depth - 1]++;
+        }
+        String type = getType(e);
+        long[] c = (long[])types.get(type);
+        if (c == null) {
+            c = new long[2];
+            types.put(type, c);
+        }
+        c[0]++;
+        c[1] += self;
+        if (slowestCount > 0 && (slowest.size() < slowestCount ||
+                self > ((Long)((Object[])slowest.getLast())[1]).longValue())) {
+            addSlowest(getName(e, type), self);
+        }
+    }
+
+    void fill(Graphics2D g, Shape s, Paint p) {
+        fills++;
+        addPixels(g, s, p);
+    }
+
+    void stroke(Graphics2D g, Shape s, Paint p) {
+        strokes++;
+        addPixels(g, s, p);
+    }
+
+    void strokedPath() {
+        strokedPaths++;
+    }
+
+    void clip() {
+        clipChanges++;
+    }
+
+    private void addPixels(Graphics2D g, Shape s, Paint p) {
+        boolean gradient = p instanceof org.jezve.svg.batik.MultipleGradientPaint || p instanceof GradientPaint;
+        boolean pattern = p instanceof SVG.PatternPaint || p instanceof TexturePaint;
+        if (!gradient && !pattern) {
+            return;
+        }
+        AffineTransform at = g.getTransform();
+        Rectangle r = at.createTransformedShape(s.getBounds2D()).getBounds();
+        Shape clip = g.getClip();
+        if (clip != null) {
+            r = r.intersection(at.createTransformedShape(clip.getBounds2D()).getBounds());
+        }
+        Rectangle device = SVG.getDeviceBounds(g);
+        if (device != null) {
+            r = r.intersection(device);
+        }
+        long pixels = r.isEmpty() ? 0 : (long)r.width * r.height;
+        if (gradient) {
+            gradientPixels += pixels;
+        } else {
+            patternPixels += pixels;
+        }
+    }
+
+    private void addSlowest(String name, long nanoseconds) {
+        Object[] entry = new Object[]{name, new Long(nanoseconds)};
+        ListIterator i = slowest.listIterator();
+        while (i.hasNext()) {
+            Object[] e = (Object[])i.next();
+            if (nanoseconds > ((Long)e[1]).longValue()) {
+                i.previous();
+                break;
+            }
+        }
+        i.add(entry);
+        if (slowest.size() > slowestCount) {
+            slowest.removeLast();
+        }
+    }
+
+    private String getType(Element e) {
+        String type = (String)names.get(e.getClass());
+        if (type == null) {
+            String n = e.getClass().getName();
+            type = n.substring(Math.max(n.lastIndexOf('.'), n.lastIndexOf('$')) + 1).toLowerCase();
+            names.put(e.getClass(), type);
+        }
+        return type;
+    }
+
+    private static String getName(Element e, String type) {
+        if (e.getId() != null) {
+            return "#" + e.getId();
+        }
+        for (Element p = e.getParent(); p != null; p = p.getParent()) {
+            if (p.getId() != null) {
+                return type + " in #" + p.getId();
+            }
+        }
+        return type;
+    }
+
+    /**
+     * @return element types rendered, sorted
+     */
+    public String[] getTypes() {
+        String[] a = (String[])types.keySet().toArray(new String[types.size()]);
+        Arrays.sort(a);
+        return a;
+    }
+
+    /**
+     * @param type element type (see getTypes())
+     * @return number of rendered elements of the type
+     */
+    public long getCount(String type) {
+        long[] c = (long[])types.get(type);
+        return c == null ? 0 : c[0];
+    }
+
+    /**
+     * @param type element type (see getTypes())
+     * @return self time of all elements of the type in nanoseconds
+     */
+    public long getNanoseconds(String type) {
+        long[] c = (long[])types.get(type);
+        return c == null ? 0 : c[1];
+    }
+
+    /**
+     * @return names of the slowest elements, slowest first
+     */
+    public String[] getSlowest() {
+        String[] a = new String[slowest.size()];
+        int k = 0;
+        for (Iterator i = slowest.iterator(); i.hasNext();) {
+            a[k++] = (String)((Object[])i.next())[0];
+        }
+        return a;
+    }
+
+    /**
+     * @return self times of getSlowest() elements in nanoseconds
+     */
+    public long[] getSlowestNanoseconds() {
+        long[] a = new long[slowest.size()];
+        int k = 0;
+        for (Iterator i = slowest.iterator(); i.hasNext();) {
+            a[k++] = ((Long)((Object[])i.next())[1]).longValue();
+        }
+        return a;
+    }
+
+    public int getFills() {
+        return fills;
+    }
+
+    public int getStrokes() {
+        return strokes;
+    }
+
+    public int getStrokedPaths() {
+        return strokedPaths;
+    }
+
+    public int getClipChanges() {
+        return clipChanges;
+    }
+
+    public long getGradientPixels() {
+        return gradientPixels;
+    }
+
+    public long getPatternPixels() {
+        return patternPixels;
+    }
+
+    public void print(PrintStream out) {
+        String[] t = getTypes();
+        long total = 0;
+        for (int i = 0; i < t.length; i++) {
+            total += getNanoseconds(t[i]);
+        }
+        out.println(pad("type", -16) + pad("count", 10) + pad("usec", 12) + pad("%", 6));
+        for (int i = 0; i < t.length; i++) {
+            long ns = getNanoseconds(t[i]);
+            out.println(pad(t[i], -16) + pad(String.valueOf(getCount(t[i])), 10) +
+                    pad(String.valueOf(ns / 1000), 12) +
+                    pad(String.valueOf(total > 0 ? ns * 100 / total : 0), 6));
+        }
+        out.println("fills " + fills + ", strokes " + strokes + ", stroked paths " + strokedPaths +
+                ", clip changes " + clipChanges);
+        out.println("gradient pixels " + gradientPixels + ", pattern pixels " + patternPixels);
+        String[] s = getSlowest();
+        long[] ns = getSlowestNanoseconds();
+        if (s.length > 0) {
+            out.println("slowest:");
+        }
+        for (int i = 0; i < s.length; i++) {
+            out.println(pad(String.valueOf(ns[i] / 1000), 12) + " usec " + s[i]);
+        }
+    }
+
+    /**
+     * @param s string
+     * @param width negative to pad on the right
+     * @return string padded with spaces
+     */
+    private static String pad(String s, int width) {
+        StringBuffer sb = new StringBuffer();
+        int n = Math.abs(width) - s.length();
+        if (width < 0) {
+            sb.append(s);
+        }
+        for (int i = 0; i < n; i++) {
+            sb.append(' ');
+        }
+        if (width > 0) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static void usage() {
+        System.err.println("usage: RenderStats [-size 256] [-slowest 10] [-warm] (file)...");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        int size = 256;
+        int slowest = 10;
+        boolean warm = false;
+        List files = new ArrayList();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-size".equals(args[i])) {
+                    size = Integer.parseInt(args[++i]);
+                } else if ("-slowest".equals(args[i])) {
+                    slowest = Integer.parseInt(args[++i]);
+                } else if ("-warm".equals(args[i])) {
+                    warm = true;
+                } else {
+                    files.add(new File(args[i]));
+                }
+            }
+        } catch (RuntimeException e) { // missing or malformed argument
+            usage();
+        }
+        if (files.size() == 0 || size <= 0) {
+            usage();
+        }
+        int failed = 0;
+        for (Iterator i = files.iterator(); i.hasNext();) {
+            File f = (File)i.next();
+            try {
+                InputStream is = new FileInputStream(f);
+                SVG svg;
+                try {
+                    svg = SVG.read(is);
+                } finally {
+                    IO.close(is);
+                }
+                if (svg == null) {
+                    throw new IOException("not svg");
+                }
+                if (warm) {
+                    Rasterizer.render(svg, size, size);
+                }
+                RenderStats rs = new RenderStats(slowest);
+                svg.setRenderStats(rs);
+                long time = Time.microseconds();
+                Rasterizer.render(svg, size, size);
+                time = Time.microseconds() - time;
+                svg.setRenderStats(null);
+                System.out.println(f + " " + size + "x" + size + " " + Time.milliseconds(time) + " ms");
+                System.out.println("gradients " + svg.getGradientCount() + ", folded duplicates " +
+                        svg.getFoldedGradientCount());
+                rs.print(System.out);
+                System.out.println();
+            } catch (Throwable t) { // OutOfMemoryError and Errors from the parser included
+                System.out.println(f + " failed: " + t);
+                failed++;
+            }
+        }
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.jezve.svg;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+/** Interruptible rendering of a document into an image.
+ *  SVG.render() cannot be stopped and heavy documents (esd.svg) take
+ *  seconds. RenderTask walks the element tree itself keeping its position
+ *  (group and child index, transform and clip of every open group) so
+ *  render(budget) may return after the time budget is spent and continue
+ *  from the same element on the next call, e.g. on the next frame:
+ *  <pre>
+ *  if (!task.render(30)) {
+ *      repaint(); // will call task.render() again
+ *  }
+ *  g.drawImage(task.getImage(), 0, 0, null);
+ *  </pre>
+ *  cancel() may be called from any thread; rendering stops before the next
+ *  element. Groups are expanded by the task, any other element (including
+ *  use, symbol and text) is rendered as a whole between budget checks.
+ *  <p>
+ *  With coarseFirst the document is first rendered at a low level of detail
+ *  (small elements, thin strokes and fine curve detail dropped) into a
+ *  separate preview image which getImage() returns until the full detail
+ *  pass is done. The preview is usually many times cheaper than the full
+ *  render, so something reasonable is on screen early.
+ *  <p>
+ *  Task is not thread safe and the document must not be rendered by
+ *  anybody else until the task is done or cancelled.
+ */
+public class RenderTask {
+
+    private static final float COARSE_MIN_SIZE = 2f;
+    private static final float COARSE_TOLERANCE = 1f;
+    private static final float COARSE_MIN_STROKE = 1f;
+
+    private final SVG svg;
+    private final AffineTransform view;
+    private final BufferedImage image;
+    private BufferedImage preview;
+    private final ArrayList stack = new ArrayList(); // Frame
+    private boolean coarse;
+    private boolean started;
+    private boolean done;
+    private volatile boolean cancelled;
+
+    private static class Frame {
+
+        final SVG.Group group;
+        final AffineTransform xform;
+        final Shape clip;
+        int next;
+
+        Frame(SVG.Group group, Graphics2D g) {
+            this.group = group;
+            xform = g.getTransform();
+            clip = g.getClip();
+        }
+    }
+
+    /**
+     * @param svg document
+     * @param image image to render to
+     * @param view document to image transform (see Root.getViewTransform)
+     * @param coarseFirst render low detail preview first
+     */
+    public RenderTask(SVG svg, BufferedImage image, AffineTransform view, boolean coarseFirst) {
+        this.svg = svg;
+        this.image = image;
+        this.view = view;
+        if (coarseFirst) {
+            preview = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            coarse = true;
+        }
+    }
+
+    /** continues rendering.
+     * @param budget milliseconds to spend, &lt;= 0 means no limit
+     * @return true if rendering is complete (or cancelled)
+     */
+    public boolean render(long budget) {
+        if (done || cancelled) {
+            return true;
+        }
+        long deadline = budget > 0 ? System.currentTimeMillis() + budget : Long.MAX_VALUE;
+        float minSize = svg.getLodMinSize();
+        float tolerance = svg.getLodTolerance();
+        float minStroke = svg.getLodMinStrokeWidth();
+        BufferedImage bi = coarse ? preview : image;
+        Graphics2D g = bi.createGraphics();
+        try {
+            g.setRenderingHint(SVG.KEY_DEVICE_BOUNDS, new Rectangle(0, 0, bi.getWidth(), bi.getHeight()));
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            if (coarse) {
+                svg.setLevelOfDetail(Math.max(minSize, COARSE_MIN_SIZE), Math.max(tolerance, COARSE_TOLERANCE),
+                        Math.max(minStroke, COARSE_MIN_STROKE));
+            }
+            if (!started) {
+                started = true;
+                svg.updateImages();
+                g.transform(view);
+                Root root = svg.getRoot();
+                if (root != null && !root.isCulled(g)) {
+                    root.applyLayer(g);
+                    stack.add(new Frame(root, g));
+                }
+            }
+            while (stack.size() > 0) {
+                if (cancelled || System.currentTimeMillis() >= deadline) {
+                    return cancelled;
+                }
+                step(g);
+            }
+        } finally {
+            svg.setLevelOfDetail(minSize, tolerance, minStroke);
+            g.dispose();
+        }
+        if (coarse) {
+            coarse = false;
+            started = false;
+            return false;
+        }
+        done = true;
+        preview = null;
+        return true;
+    }
+
+    /** renders next leaf element or opens/closes a group. */
+    private void step(Graphics2D g) {
+        Frame f = (Frame)stack.get(stack.size() - 1);
+        java.util.List children = f.group.getChildren();
+        if (f.next >= children.size()) {
+            stack.remove(stack.size() - 1);
+            return;
+        }
+        Element e = (Element)children.get(f.next++);
+        if (!(e instanceof SVG.RenderableElement)) {
+            return;
+        }
+        g.setTransform(f.xform);
+        g.setClip(f.clip);
+        if (isContainer(e)) {
+            SVG.Group group = (SVG.Group)e;
+            if (!group.isCulled(g)) {
+                group.applyLayer(g);
+                stack.add(new Frame(group, g));
+            }
+        } else {
+            svg.renderElement((SVG.RenderableElement)e, g);
+        }
+    }
+
+    /** groups are walked by the task; subclasses with their own
+     *  render() (symbol applies viewXform) and filtered groups are
+     *  rendered as a whole.
+     * @param e element
+     * @return true if element is a plain group
+     */
+    private static boolean isContainer(Element e) {
+        return (e.getClass() == SVG.Group.class || e.getClass() == SVG.A.class) &&
+                ((SVG.RenderableElement)e).getFilter() == null;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return coarse preview while the full detail pass is not complete
+     *         (if requested), the target image otherwise
+     */
+    public BufferedImage getImage() {
+        return preview != null ? preview : image;
+    }
+
+}
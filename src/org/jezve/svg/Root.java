@@ -1,6 +1,11 @@
 package org.jezve.svg;
 
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
+import java.io.IOException;
 
 public class Root extends SVG.Group {
 
@@ -23,8 +28,10 @@ public class Root extends SVG.Group {
     private int parAlignX = PA_X_MID;
     private int parAlignY = PA_Y_MID;
 
-    protected void loaderEndElement() {
-        super.loaderEndElement();
+    /* viewport is known at the start tag so streaming (see SVG.stream())
+       can set up the view transform before any content is rendered */
+    protected void loaderStartElement(SVG s, Attributes a, Element p) throws SAXException {
+        super.loaderStartElement(s, a, p);
         x = getUnits("x");
         y = getUnits("y");
         width = getUnits("width");
@@ -74,6 +81,42 @@ public class Root extends SVG.Group {
         }
     }
 
+    protected void write(Binary.Output out) throws IOException {
+        super.write(out);
+        writeUnits(out, x);
+        writeUnits(out, y);
+        writeUnits(out, width);
+        writeUnits(out, height);
+        out.writeRect(viewBox);
+        out.writeInt(parSpecifier);
+        out.writeInt(parAlignX);
+        out.writeInt(parAlignY);
+    }
+
+    protected void read(Binary.Input in) {
+        super.read(in);
+        x = readUnits(in);
+        y = readUnits(in);
+        width = readUnits(in);
+        height = readUnits(in);
+        viewBox = in.readRect();
+        parSpecifier = in.readInt();
+        parAlignX = in.readInt();
+        parAlignY = in.readInt();
+    }
+
+    private static void writeUnits(Binary.Output out, Units u) throws IOException {
+        out.writeBoolean(u != null);
+        if (u != null) {
+            out.writeFloat(u.getValue());
+            out.writeInt(u.getKind());
+        }
+    }
+
+    private static Units readUnits(Binary.Input in) {
+        return in.readBoolean() ? new Units(in.readFloat(), in.readInt()) : null;
+    }
+
     private boolean contains(String text, String find) {
         return text.indexOf(find) >= 0;
     }
@@ -121,4 +164,64 @@ public class Root extends SVG.Group {
     public int getParAlignY() {
         return parAlignY;
     }
+
+    /** computes transform from document user space to w x h device viewport
+     *  according to viewBox and preserveAspectRatio.
+     *  If the document has no viewBox x, y, width and height are used and
+     *  if those are absent too the bounding box of the drawing.
+     *  see http://www.w3.org/TR/SVG/coords.html#ViewBoxAttribute
+     * @param w viewport width
+     * @param h viewport height
+     * @return view transform
+     */
+    public AffineTransform getViewTransform(double w, double h) {
+        Rectangle2D vb = viewBox;
+        if (vb == null) {
+            float sx = getX();
+            float sy = getY();
+            float sw = getWidth();
+            float sh = getHeight();
+            if (sw == 0 || sh == 0) {
+                Rectangle2D bbox = getBoundingBox();
+                sx = (float)bbox.getX();
+                sw = (float)bbox.getWidth();
+                sy = (float)bbox.getY();
+                sh = (float)bbox.getHeight();
+            }
+            vb = new Rectangle2D.Float(sx, sy, sw, sh);
+        }
+        if (vb.getWidth() <= 0 || vb.getHeight() <= 0) {
+            return new AffineTransform();
+        }
+        double xscale = w / vb.getWidth();
+        double yscale = h / vb.getHeight();
+        AffineTransform sc;
+        if (parAlignX == PA_X_NONE || parAlignY == PA_Y_NONE) {
+            assert parAlignX == PA_X_NONE && parAlignY == PA_Y_NONE;
+            sc = AffineTransform.getScaleInstance(xscale, yscale);
+            sc.translate(-vb.getX(), -vb.getY());
+        } else {
+            double scale = parSpecifier == PS_MEET ? Math.min(xscale, yscale) : Math.max(xscale, yscale);
+            sc = AffineTransform.getScaleInstance(scale, scale);
+            double dx = w / scale - vb.getWidth();
+            double dy = h / scale - vb.getHeight();
+            if (parAlignX == PA_X_MIN) {
+                dx = 0;
+            } else if (parAlignX == PA_X_MID) {
+                dx = dx / 2;
+            } else {
+                // right aligned, keep dx
+            }
+            if (parAlignY == PA_Y_MIN) {
+                dy = 0;
+            } else if (parAlignY == PA_Y_MID) {
+                dy = dy / 2;
+            } else {
+                // bottom aligned, keep dy
+            }
+            sc.translate(dx - vb.getX(), dy - vb.getY());
+        }
+        return sc;
+    }
+
 }
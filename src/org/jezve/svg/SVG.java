@@ -17,6 +17,7 @@ import org.jezve.svg.batik.MultipleGradientPaint; // java 1.6 disambiguashion
 import org.jezve.svg.batik.RadialGradientPaint; // java 1.6 disambiguashion
 import org.jezve.svg.batik.LinearGradientPaint; // java 1.6 disambiguashion
 
+import org.jezve.util.IO;
 import org.jezve.util.Platform;
 
 public class SVG {
@@ -32,24 +33,552 @@ public class SVG {
         }
     }
 
+    /** rendering hint key, the value is the Rectangle of device space covered
+     *  by the surface rendered into, e.g. new Rectangle(0, 0, width, height)
+     *  for an image or the visible part of a component. Groups entirely
+     *  outside of it are not rendered (see Group.isCulled()). Without the
+     *  hint nothing is culled: bounds of the device configuration are the
+     *  image size only for images, for screens they are the monitor in
+     *  virtual desktop coordinates without the HiDPI scale of the transform.
+     */
+    public static final RenderingHints.Key KEY_DEVICE_BOUNDS = new RenderingHints.Key(0) {
+        public boolean isCompatibleValue(Object v) {
+            return v instanceof Rectangle;
+        }
+    };
+
     private Root root;
     private final HashMap map = new HashMap(); // id(String) -> Element
-    private final Map css = new HashMap(); // classname(String) -> parsedStyle(Map)
+    private final StyleSheet css = new StyleSheet();
     private final HashMap loadedFonts = new HashMap();
     private final static InputSource DUMMY = new InputSource(new ByteArrayInputStream(new byte[0]));
     private static BufferedImage bi1x1;
-
-    private SVG() {
+    private boolean deferred; // build and resolve are called by parse() caller
+    private float lodMinSize;
+    private float lodTolerance;
+    private float lodMinStrokeWidth;
+    private int modCount;
+    private final ArrayList recording = new ArrayList(); // DisplayList, nested use records into all
+    private RenderStats stats;
+    private int gradientCount;
+    private int foldedGradients;
+    private Graphics2D streaming; // not null while stream() renders
+    private int streamWidth;
+    private int streamHeight;
+    private GeometryStore geometry; // path and polygon coordinates off heap, see read(InputStream, boolean)
+    private boolean editable; // attributes kept after resolve, see readEditable()
+    private HashSet used; // Element, referenced by use, see isLocal()
+    private File base; // directory of the document file, see read(File)
+    private final LinkedHashSet bitmaps = new LinkedHashSet(); // BitmapCache.Bitmap referenced by image elements
+    private final LinkedHashSet waiting = new LinkedHashSet(); // Image without its bitmap yet, see updateImages()
+    private volatile Runnable imageListener;
+
+    SVG() {
     }
 
 
     public static SVG read(InputStream is) throws IOException {
+        return read(is, false);
+    }
+
+    /** reads the document optionally keeping path and polygon
+     *  coordinates off heap (see GeometryStore). Meant for documents with
+     *  millions of path points in long running processes: the memory is
+     *  not traced by the garbage collector and is released for reuse by
+     *  close().
+     * @param is input stream
+     * @param offHeap true to store paths in direct memory
+     * @return document or null if not svg
+     * @throws IOException on i/o or xml error
+     */
+    public static SVG read(InputStream is, boolean offHeap) throws IOException {
+        return read(is, offHeap, null);
+    }
+
+    /** reads the document from a file. Image elements referencing
+     *  bitmap files relative to it (or by absolute path or file: URI)
+     *  are rendered once the bitmaps are decoded in the background
+     *  (see setImageListener() and waitForImages()).
+     * @param file svg or svgz file
+     * @return document or null if not svg
+     * @throws IOException on i/o or xml error
+     */
+    public static SVG read(File file) throws IOException {
+        return read(file, false);
+    }
+
+    /** reads the document from a file (see read(File)) optionally
+     *  keeping path coordinates off heap (see read(InputStream, boolean)).
+     * @param file svg or svgz file
+     * @param offHeap true to store paths in direct memory
+     * @return document or null if not svg
+     * @throws IOException on i/o or xml error
+     */
+    public static SVG read(File file, boolean offHeap) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return read(is, offHeap, file);
+        } finally {
+            IO.close(is);
+        }
+    }
+
+    /**
+     * @param is input stream
+     * @param offHeap true to store paths in direct memory
+     * @param file file the document was read from, bitmap references are
+     *        resolved against it, or null to ignore them
+     * @return document or null if not svg
+     * @throws IOException on i/o or xml error
+     */
+    static SVG read(InputStream is, boolean offHeap, File file) throws IOException {
+        SVG svg = new SVG();
+        if (file != null) {
+            svg.base = file.getAbsoluteFile().getParentFile();
+        }
+        if (offHeap) {
+            svg.geometry = new GeometryStore();
+        }
+        try {
+            svg.load(new InputSource(createDocumentInputStream(is)));
+        } finally {
+            if (svg.getRoot() == null) {
+                svg.close();
+            }
+        }
+        return svg.getRoot() == null ? null : svg;
+    }
+
+    /**
+     * @return directory of the file the document was read from or null
+     */
+    File getBase() {
+        return base;
+    }
+
+    /** called by image elements referencing bitmap files, see waitForImages().
+     * @param e image element
+     * @param b bitmap of the element
+     */
+    void addBitmap(Image e, BitmapCache.Bitmap b) {
+        synchronized (waiting) {
+            waiting.add(e);
+        }
+        if (bitmaps.add(b)) {
+            b.addListener(new Runnable() {
+                public void run() {
+                    Runnable r = imageListener;
+                    if (r != null) {
+                        r.run();
+                    }
+                }
+            });
+        }
+    }
+
+    /** sets listener called when a bitmap referenced by the document
+     *  has been decoded, typically to repaint it. Called from the
+     *  decoding thread.
+     * @param r listener or null
+     */
+    public void setImageListener(Runnable r) {
+        imageListener = r;
+    }
+
+    /** hands bitmaps decoded since the last call to the image elements
+     *  waiting for them. Elements do not take them while rendering:
+     *  invalidating there would drop display lists and filter caches
+     *  being recorded or replayed. Called before rendering starts.
+     */
+    void updateImages() {
+        synchronized (waiting) {
+            for (Iterator i = waiting.iterator(); i.hasNext();) {
+                if (((Image)i.next()).updateImage()) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /** waits until all bitmaps referenced by the document are decoded,
+     *  e.g. before rendering it for printing or into a file.
+     * @param timeout milliseconds, &lt;= 0 means no limit
+     * @return true if all bitmaps are decoded (or failed to decode)
+     */
+    public boolean waitForImages(long timeout) {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        BitmapCache.Bitmap[] a = (BitmapCache.Bitmap[])bitmaps.toArray(new BitmapCache.Bitmap[bitmaps.size()]);
+        for (int i = 0; i < a.length; i++) {
+            long ms = timeout > 0 ? deadline - System.currentTimeMillis() : 0;
+            if (timeout > 0 && ms <= 0 || !a[i].waitFor(ms)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** reads the document keeping attributes and styles of all elements
+     *  after it is resolved, so they can be changed later (see
+     *  setAttribute() and setStyle()). Costs the memory of the attribute
+     *  maps that read() drops. Gradients are not folded because changing
+     *  one of them must not change the others.
+     * @param is input stream
+     * @return document or null if not svg
+     * @throws IOException on i/o or xml error
+     */
+    public static SVG readEditable(InputStream is) throws IOException {
+        SVG svg = new SVG();
+        svg.editable = true;
+        svg.load(new InputSource(createDocumentInputStream(is)));
+        return svg.getRoot() == null ? null : svg;
+    }
+
+    /** releases memory held outside of the heap (see read(InputStream, boolean)).
+     *  The document must not be rendered after it is closed.
+     *  Does nothing for documents read without offHeap.
+     */
+    public void close() {
+        if (geometry != null) {
+            geometry.close();
+        }
+    }
+
+    /**
+     * @param path built path
+     * @return path or its off heap view if the document stores paths off heap
+     */
+    Shape storePath(GeneralPath path) {
+        return geometry == null || path == null ? path : geometry.store(path);
+    }
+
+    /**
+     * @param points parsed points
+     * @return points or their off heap copy if the document stores paths off heap
+     */
+    Points storePoints(Points points) {
+        return geometry == null || points == null ? points : geometry.store(points);
+    }
+
+    /**
+     * @return bytes of path coordinates kept off heap
+     */
+    long getOffHeapSize() {
+        return geometry == null ? 0 : geometry.getSize();
+    }
+
+    /** reads the document without building and resolving it.
+     *  Used to measure loading phases separately (see SVGBenchmark).
+     *  Caller must call build() and then resolve() before rendering.
+     * @param is input stream
+     * @return parsed document or null
+     * @throws IOException on i/o or xml error
+     */
+    static SVG parse(InputStream is) throws IOException {
         SVG svg = new SVG();
+        svg.deferred = true;
         svg.load(new InputSource(createDocumentInputStream(is)));
         return svg.getRoot() == null ? null : svg;
     }
 
-    private static BufferedImage get1x1() {
+    /** renders the document while it is parsed. Meant for very large
+     *  machine generated documents (plots, maps) without forward
+     *  references. Groups are set up at their start tags, every other
+     *  element directly inside of them is built, rendered and dropped at
+     *  its end tag, so memory is bounded by the depth of the tree rather
+     *  than by the size of the document.
+     *  Retained are elements with an id (use, fill and clip-path may
+     *  reference them later), elements that do not render (defs, style,
+     *  gradients, clip paths...) and groups clipped to their own bounding
+     *  box, which are rendered as a whole at their end tag.
+     *  Differences from read() followed by render():
+     *  <pre>
+     *  - use of a group that was already streamed renders nothing,
+     *    groups are retained without the children that were streamed
+     *  - documents without viewBox, width and height are not fitted
+     *    (their bounding box is not known in advance)
+     *  - groups are not culled by level of detail, shapes still are
+     *  - gradients are not folded (see foldGradients())
+     *  </pre>
+     * @param is input stream
+     * @param g graphics to render into (not modified)
+     * @param w viewport width
+     * @param h viewport height
+     * @return document with retained elements only or null if not svg
+     * @throws IOException on i/o or xml error
+     */
+    public static SVG stream(InputStream is, Graphics2D g, int w, int h) throws IOException {
+        SVG svg = new SVG();
+        svg.streaming = (Graphics2D)g.create();
+        svg.streamWidth = w;
+        svg.streamHeight = h;
+        try {
+            svg.load(new InputSource(createDocumentInputStream(is)));
+        } finally {
+            svg.streaming.dispose();
+            svg.streaming = null;
+        }
+        return svg.getRoot() == null ? null : svg;
+    }
+
+    /** changes attribute of an element and rebuilds it, so the next
+     *  render shows the change. Only the element and its descendants are
+     *  built again. Elements that may be rendered from other places
+     *  (anything in defs, symbols, clip paths, gradients, patterns and
+     *  elements referenced by use) cause the whole document to be built
+     *  again and the whole document is reported dirty.
+     *  <pre>
+     *  AffineTransform view = svg.getRoot().getViewTransform(w, h);
+     *  Rectangle dirty = svg.setAttribute("needle", "transform", "rotate(42 50 50)", view);
+     *  if (dirty != null) {
+     *      component.repaint(dirty);
+     *  }
+     *  </pre>
+     *  Not thread safe, must not be called while the document is rendered.
+     * @param id id of the element
+     * @param name attribute name
+     * @param value new value or null to remove the attribute
+     * @param view transform the document is rendered with
+     * @return union of device bounds before and after the change grown by a
+     *         pixel for antialiasing or null if there is no such element
+     * @throws IllegalStateException if not read by readEditable()
+     */
+    public Rectangle setAttribute(String id, String name, String value, AffineTransform view) {
+        return change(id, name, value, false, view);
+    }
+
+    /** changes inline style property of an element (see setAttribute()).
+     * @param id id of the element
+     * @param name property name, e.g. "fill"
+     * @param value new value or null to remove the inline property
+     * @param view transform the document is rendered with
+     * @return dirty device rectangle or null if there is no such element
+     * @throws IllegalStateException if not read by readEditable()
+     */
+    public Rectangle setStyle(String id, String name, String value, AffineTransform view) {
+        return change(id, name, value, true, view);
+    }
+
+    private Rectangle change(String id, String name, String value, boolean style, AffineTransform view) {
+        if (!editable) {
+            throw new IllegalStateException("document is not editable");
+        }
+        Element e = get(id);
+        return e == null ? null : change(e, name, value, style, view);
+    }
+
+    /** changes attribute or inline style property of an element of an
+     *  editable document (see setAttribute()), e.g. one without id.
+     * @param e element
+     * @param name attribute or property name
+     * @param value new value or null to remove it
+     * @param style true for a style property
+     * @param view transform the document is rendered with
+     * @return dirty device rectangle
+     */
+    Rectangle change(Element e, String name, String value, boolean style, AffineTransform view) {
+        RenderableElement target = isLocal(e) ? (RenderableElement)e : root;
+        Rectangle2D before = getDocumentBounds(target);
+        if (style) {
+            e.setStyle(name, value);
+        } else {
+            e.setAttribute(name, value);
+        }
+        if (e instanceof Use) {
+            used = null; // href may have changed
+        }
+        build(target);
+        resolve(target, false);
+        invalidateCaches(target);
+        target.invalidate();
+        Rectangle2D after = getDocumentBounds(target);
+        Rectangle2D r = before == null ? after : after == null ? before : before.createUnion(after);
+        if (r == null) {
+            return new Rectangle();
+        }
+        Rectangle d = (view == null ? r : view.createTransformedShape(r).getBounds2D()).getBounds();
+        d.grow(1, 1);
+        return d;
+    }
+
+    /**
+     * @return true if read by readEditable()
+     */
+    boolean isEditable() {
+        return editable;
+    }
+
+    /**
+     * @param e element
+     * @return true if the element is rendered only as a part of its parent
+     */
+    private boolean isLocal(Element e) {
+        if (used == null) {
+            used = new HashSet();
+            collectUsed(root, used);
+        }
+        for (Element p = e; p != null; p = p.getParent()) {
+            Class c = p.getClass();
+            boolean group = c == Group.class || c == A.class || c == Root.class;
+            if (p != e && !group || !(p instanceof RenderableElement) || used.contains(p)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void collectUsed(Element e, HashSet used) {
+        if (e instanceof Use && ((Use)e).getElement() != null) {
+            used.add(((Use)e).getElement());
+        }
+        for (Iterator i = e.getChildren().iterator(); i.hasNext();) {
+            collectUsed((Element)i.next(), used);
+        }
+    }
+
+    private static void invalidateCaches(Element e) {
+        e.invalidateCaches();
+        for (Iterator i = e.getChildren().iterator(); i.hasNext();) {
+            invalidateCaches((Element)i.next());
+        }
+    }
+
+    /**
+     * @param e element rendered only as a part of its parent (see isLocal())
+     * @return bounds in root coordinates or null
+     */
+    private static Rectangle2D getDocumentBounds(RenderableElement e) {
+        Rectangle2D r = addFilterRegion(e, e.getBoundingBox());
+        for (Element p = e.getParent(); p != null && r != null; p = p.getParent()) {
+            AffineTransform at = ((TransformableElement)p).getTransform();
+            if (at != null) {
+                r = at.createTransformedShape(r).getBounds2D();
+            }
+            if (p instanceof RenderableElement) {
+                r = addFilterRegion((RenderableElement)p, r);
+            }
+        }
+        return r;
+    }
+
+    /** filtered element paints its filter region, which may be larger
+     *  than the element (e.g. blur), see renderFiltered().
+     * @param e element
+     * @param r bounds in parent coordinates of the element or null
+     * @return r extended by the filter region of the element
+     */
+    private static Rectangle2D addFilterRegion(RenderableElement e, Rectangle2D r) {
+        Filter f = e.getFilter();
+        Rectangle2D bbox = f == null || !f.isSupported() ? null : e.getBoundingBox(false);
+        if (r == null || bbox == null || bbox.isEmpty()) {
+            return r;
+        }
+        return r.createUnion(f.getRegion(bbox));
+    }
+
+    void build() {
+        build(root);
+    }
+
+    void resolve() {
+        if (!editable) {
+            foldGradients();
+        }
+        resolve(root, !editable);
+    }
+
+    /** Inkscape writes chains of gradients that differ only by id and
+     *  share stops through xlink:href. Before anything is resolved,
+     *  gradients equal in kind, geometry, units, spread, transform and
+     *  stops are folded: ids of the duplicates are mapped to the first
+     *  one, so all references resolve to a single object, and gradients
+     *  with equal stops share the stop arrays. Color tables are computed
+     *  per distinct stop list (see MultipleGradientPaintContext).
+     */
+    private void foldGradients() {
+        ArrayList gradients = new ArrayList();
+        collectGradients(root, gradients);
+        HashMap canonical = new HashMap(); // key(String) -> Gradient
+        HashMap stops = new HashMap(); // stops key(String) -> Gradient
+        gradientCount = gradients.size();
+        foldedGradients = 0;
+        StringBuffer sb = new StringBuffer();
+        for (Iterator i = gradients.iterator(); i.hasNext();) {
+            Gradient g = (Gradient)i.next();
+            g.resolve();
+            sb.setLength(0);
+            g.appendStopsKey(sb);
+            String sk = sb.toString();
+            Gradient same = (Gradient)stops.get(sk);
+            if (same == null) {
+                stops.put(sk, g);
+            } else {
+                g.shareStops(same);
+            }
+            sb.append('|');
+            g.appendKey(sb);
+            String key = sb.toString();
+            Gradient first = (Gradient)canonical.get(key);
+            if (first == null) {
+                canonical.put(key, g);
+            } else {
+                foldedGradients++;
+                if (g.getId() != null) {
+                    put(g.getId(), first);
+                }
+            }
+        }
+    }
+
+    private static void collectGradients(Element e, ArrayList gradients) {
+        if (e == null) {
+            return;
+        }
+        if (e instanceof Gradient) {
+            gradients.add(e);
+        }
+        for (Iterator i = e.getChildren().iterator(); i.hasNext();) {
+            collectGradients((Element)i.next(), gradients);
+        }
+    }
+
+    /**
+     * @return number of gradients in the loaded document
+     */
+    int getGradientCount() {
+        return gradientCount;
+    }
+
+    /**
+     * @return number of gradients folded into an equal one (see foldGradients())
+     */
+    int getFoldedGradientCount() {
+        return foldedGradients;
+    }
+
+    private static void build(Element e) {
+        if (e != null) {
+            for (Iterator i = e.getChildren().iterator(); i.hasNext();) {
+                Element c = (Element)i.next();
+                build(c);
+            }
+            e.build();
+        }
+    }
+
+    private static void resolve(Element e, boolean clear) {
+        if (e != null) {
+            e.resolve();
+            if (clear) {
+                e.clear();
+            }
+            for (Iterator i = e.getChildren().iterator(); i.hasNext();) {
+                Element c = (Element)i.next();
+                resolve(c, clear);
+            }
+        }
+    }
+
+    private static synchronized BufferedImage get1x1() {
         if (bi1x1 == null) {
             bi1x1 = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
             Graphics2D g = bi1x1.createGraphics();
@@ -151,19 +680,338 @@ public class SVG {
     }
 
     public void render(Graphics2D g) {
-        root.render(g);
+        updateImages();
+        renderElement(root, g);
     }
 
-    private void registerFont(Font font) {
-        loadedFonts.put(font.getFontFace().getFontFamily(), font);
+    /** renders element of the document. Containers render their children
+     *  through here so rendering can be measured (see RenderStats).
+     * @param e element
+     * @param g graphics
+     */
+    void renderElement(RenderableElement e, Graphics2D g) {
+        RenderStats rs = stats;
+        if (rs == null) {
+            renderFiltered(e, g);
+        } else {
+            rs.begin();
+            try {
+                renderFiltered(e, g);
+            } finally {
+                rs.end(e);
+            }
+        }
+    }
+
+    /** renders the element through its filter (see Filter). The element
+     *  is rendered offscreen into the filter region, filtered and drawn
+     *  as an image. Filtered images are kept by the element (softly) and
+     *  reused while the document is not changed and the element is
+     *  rendered at the same scale and subpixel position, e.g. scrolled.
+     *  Elements without filter, with a filter that is not supported or
+     *  with a region too large even when cut to the clip and the device
+     *  bounds (see KEY_DEVICE_BOUNDS) are rendered unfiltered.
+     * @param e element
+     * @param g graphics
+     */
+    private void renderFiltered(RenderableElement e, Graphics2D g) {
+        Filter f = e.getFilter();
+        Rectangle2D bbox = f == null || !f.isSupported() ? null : e.getBoundingBox(false);
+        if (bbox == null || bbox.isEmpty() || e instanceof ShapeElement && !((ShapeElement)e).isVisible()) {
+            e.render(g);
+            return;
+        }
+        AffineTransform at = g.getTransform();
+        Rectangle device = at.createTransformedShape(f.getRegion(bbox)).getBounds();
+        boolean cut = (long)device.width * device.height > Filter.MAX_PIXELS;
+        if (cut) {
+            Shape clip = g.getClip();
+            Rectangle visible = getDeviceBounds(g);
+            if (clip != null) {
+                Rectangle r = at.createTransformedShape(clip).getBounds();
+                visible = visible == null ? r : visible.intersection(r);
+            }
+            if (visible != null) {
+                device = device.intersection(visible);
+            }
+            if ((long)device.width * device.height > Filter.MAX_PIXELS) {
+                e.render(g);
+                return;
+            }
+        }
+        if (device.isEmpty()) {
+            return;
+        }
+        boolean lod = lodMinSize > 0 || lodTolerance > 0 || lodMinStrokeWidth > 0; // previews are not kept
+        Filter.Result r = cut || lod ? null : e.getFiltered(at, device, modCount);
+        if (r == null) {
+            AffineTransform local = new AffineTransform(at);
+            if (e.getTransform() != null) {
+                local.concatenate(e.getTransform());
+            }
+            double sx = Math.sqrt(local.getScaleX() * local.getScaleX() + local.getShearY() * local.getShearY());
+            double sy = Math.sqrt(local.getShearX() * local.getShearX() + local.getScaleY() * local.getScaleY());
+            int n = device.width * device.height;
+            int[] source = Filter.acquire(n);
+            Arrays.fill(source, 0, n, 0);
+            Graphics2D offscreen = Filter.createImage(source, device.width, device.height).createGraphics();
+            offscreen.setRenderingHints(g.getRenderingHints());
+            offscreen.setRenderingHint(KEY_DEVICE_BOUNDS, new Rectangle(0, 0, device.width, device.height));
+            offscreen.translate(-device.x, -device.y);
+            offscreen.transform(at);
+            ArrayList lists = new ArrayList(recording); // offscreen drawing is not recorded
+            recording.clear();
+            try {
+                e.render(offscreen);
+            } finally {
+                recording.addAll(lists);
+                offscreen.dispose();
+            }
+            int[] result = f.apply(source, device.width, device.height, sx, sy,
+                    at.createTransformedShape(bbox).getBounds2D());
+            Filter.release(source);
+            r = new Filter.Result(Filter.createImage(result, device.width, device.height), at, device, modCount);
+            if (!cut && !lod) {
+                e.setFiltered(r);
+            }
+        }
+        g.setTransform(AffineTransform.getTranslateInstance(device.x, device.y));
+        drawImage(g, r.image, 1);
+        g.setTransform(at);
+    }
+
+    /** enables collection of rendering statistics. Statistics are added
+     *  up over all subsequent renderings until disabled or reset.
+     *  Rendering without statistics pays a single null check per
+     *  element and per drawing operation.
+     * @param rs statistics to collect into or null to disable collection
+     */
+    public void setRenderStats(RenderStats rs) {
+        stats = rs;
+    }
+
+    public RenderStats getRenderStats() {
+        return stats;
+    }
+
+    /** interruptible variant of render(). Nothing is rendered until
+     *  RenderTask.render(budget) is called.
+     * @param bi image to render to, document is fit according to its viewBox
+     * @param coarseFirst render low detail preview first
+     * @return render task
+     */
+    public RenderTask render(BufferedImage bi, boolean coarseFirst) {
+        return new RenderTask(this, bi, root.getViewTransform(bi.getWidth(), bi.getHeight()), coarseFirst);
+    }
+
+    /** enables level of detail rendering for small target sizes.
+     *  All values are in device pixels, 0 disables the corresponding
+     *  simplification. Reasonable values for icon sizes are 0.5, 0.25, 0.25.
+     * @param minSize elements (and groups) with device bounds smaller
+     *        than minSize in both dimensions are not rendered
+     * @param tolerance paths are flattened and simplified to this deviation
+     * @param minStrokeWidth strokes thinner than that are not rendered
+     */
+    public void setLevelOfDetail(float minSize, float tolerance, float minStrokeWidth) {
+        lodMinSize = minSize;
+        lodTolerance = tolerance;
+        lodMinStrokeWidth = minStrokeWidth;
+    }
+
+    float getLodMinSize() {
+        return lodMinSize;
+    }
+
+    float getLodTolerance() {
+        return lodTolerance;
+    }
+
+    float getLodMinStrokeWidth() {
+        return lodMinStrokeWidth;
+    }
+
+    /**
+     * @param g graphics
+     * @return device bounds (see KEY_DEVICE_BOUNDS) or null if unknown
+     */
+    static Rectangle getDeviceBounds(Graphics2D g) {
+        Object r = g.getRenderingHint(KEY_DEVICE_BOUNDS);
+        return r instanceof Rectangle ? (Rectangle)r : null;
     }
 
-    private void registerStyle(String classNames, Map map) {
-        css.put(classNames, map);
+    /** device size of the local rectangle is approximated by the bounds
+     *  of the transformed rectangle (exact for scale, rotation and skew).
+     * @param at local to device transform
+     * @param r local bounds
+     * @return true if both device dimensions are smaller than minSize
+     */
+    static boolean isSmall(AffineTransform at, Rectangle2D r, float minSize) {
+        double w = r.getWidth();
+        double h = r.getHeight();
+        double dw = Math.abs(at.getScaleX()) * w + Math.abs(at.getShearX()) * h;
+        double dh = Math.abs(at.getShearY()) * w + Math.abs(at.getScaleY()) * h;
+        return dw < minSize && dh < minSize;
     }
 
-    Map getStyle(String className) {
-        return (Map)css.get(className);
+    /**
+     * @param at local to device transform
+     * @param r local bounds
+     * @param device device bounds
+     * @return true if device bounds of the transformed rectangle do not intersect device
+     */
+    static boolean isOutside(AffineTransform at, Rectangle2D r, Rectangle device) {
+        double x0 = r.getX();
+        double y0 = r.getY();
+        double x1 = x0 + r.getWidth();
+        double y1 = y0 + r.getHeight();
+        double[] p = {x0, y0, x1, y0, x1, y1, x0, y1};
+        at.transform(p, 0, p, 0, 4);
+        double minX = Math.min(Math.min(p[0], p[2]), Math.min(p[4], p[6]));
+        double maxX = Math.max(Math.max(p[0], p[2]), Math.max(p[4], p[6]));
+        double minY = Math.min(Math.min(p[1], p[3]), Math.min(p[5], p[7]));
+        double maxY = Math.max(Math.max(p[1], p[3]), Math.max(p[5], p[7]));
+        return maxX < device.x || minX > device.x + device.width ||
+               maxY < device.y || minY > device.y + device.height;
+    }
+
+    /**
+     * @param at transform
+     * @return average linear scale factor of the transform
+     */
+    static double getScale(AffineTransform at) {
+        return Math.sqrt(Math.abs(at.getDeterminant()));
+    }
+
+    /** incremented by Element.invalidate() on any change of the document.
+     * @return modification count
+     */
+    int getModCount() {
+        return modCount;
+    }
+
+    void invalidate() {
+        modCount++;
+    }
+
+    /* All drawing goes through fill(), stroke(), drawImage(), clip() and
+       unclip() so it can be recorded into display lists (see DisplayList)
+       and counted (see RenderStats). */
+
+    void startRecording(DisplayList dl) {
+        recording.add(dl);
+    }
+
+    void stopRecording(DisplayList dl) {
+        boolean b = recording.remove(dl);
+        assert b;
+    }
+
+    boolean isRecording() {
+        return recording.size() > 0;
+    }
+
+    private void record(int kind, Graphics2D g, Object shape, Paint paint, float alpha) {
+        if (recording.size() > 0) {
+            AffineTransform t = g.getTransform();
+            for (int i = 0; i < recording.size(); i++) {
+                ((DisplayList)recording.get(i)).add(kind, t, shape, paint, alpha);
+            }
+        }
+    }
+
+    /** fills shape with paint at alpha (SRC_OVER) in the current transform and clip.
+     * @param g graphics
+     * @param s shape
+     * @param p paint
+     * @param alpha opacity
+     * @return false if filling ran out of memory
+     */
+    boolean fill(Graphics2D g, Shape s, Paint p, float alpha) {
+        record(DisplayList.FILL, g, s, p, alpha);
+        if (stats != null) {
+            stats.fill(g, s, p);
+        }
+        return paint(g, s, p, alpha);
+    }
+
+    /** fills outline of the stroke (see fill()).
+     * @param g graphics
+     * @param s stroked shape
+     * @param p paint
+     * @param alpha opacity
+     * @return false if filling ran out of memory
+     */
+    boolean stroke(Graphics2D g, Shape s, Paint p, float alpha) {
+        record(DisplayList.STROKE, g, s, p, alpha);
+        if (stats != null) {
+            stats.stroke(g, s, p);
+        }
+        return paint(g, s, p, alpha);
+    }
+
+    private static boolean paint(Graphics2D g, Shape s, Paint p, float alpha) {
+        Composite cachedComposite = null;
+        if (alpha < 1) {
+            cachedComposite = g.getComposite();
+            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+        }
+        g.setPaint(p);
+        try {
+            g.fill(s);
+            return true;
+        } catch (OutOfMemoryError ignore) {
+            // ignore OSXSurfaceData bugs (see MultipleGradientContext.getRaster() notes)
+            return false;
+        } finally {
+            if (cachedComposite != null) {
+                g.setComposite(cachedComposite);
+            }
+        }
+    }
+
+    void drawImage(Graphics2D g, BufferedImage img, float alpha) {
+        record(DisplayList.IMAGE, g, img, null, alpha);
+        Composite cachedComposite = null;
+        if (alpha < 1) {
+            cachedComposite = g.getComposite();
+            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+        }
+        g.drawImage(img, 0, 0, null);
+        if (cachedComposite != null) {
+            g.setComposite(cachedComposite);
+        }
+    }
+
+    /** replaces clip (see RenderableElement.beginLayer()).
+     * @param g graphics
+     * @param s clip in current user space
+     */
+    void clip(Graphics2D g, Shape s) {
+        record(DisplayList.CLIP, g, s, null, 1);
+        if (stats != null) {
+            stats.clip();
+        }
+        g.setClip(s);
+    }
+
+    /** restores clip replaced by the matching clip() call.
+     * @param g graphics with transform restored to the one clip was saved in
+     * @param s saved clip
+     */
+    void unclip(Graphics2D g, Shape s) {
+        record(DisplayList.UNCLIP, g, null, null, 1);
+        if (stats != null) {
+            stats.clip();
+        }
+        g.setClip(s);
+    }
+
+    private void registerFont(Font font) {
+        loadedFonts.put(font.getFontFace().getFontFamily(), font);
+    }
+
+    StyleSheet getStyleSheet() {
+        return css;
     }
 
     Font getFont(String fontName) {
@@ -195,14 +1043,25 @@ public class SVG {
         private final HashMap nodeClasses = new HashMap();
         private final LinkedList buildStack = new LinkedList();
         private final HashSet ignoreClasses = new HashSet();
+        private int streamed; // bottom of buildStack made of groups set up by stream()
+        private int hidden; // invisible groups among them
+        private final ArrayList unresolved = new ArrayList(); // streamed Elements that do not render
 
         private Loader() {
             nodeClasses.put("a", A.class);
+            nodeClasses.put("animate", Animation.Animate.class);
+            nodeClasses.put("animatecolor", Animation.Animate.class);
+            nodeClasses.put("animatetransform", Animation.AnimateTransform.class);
             nodeClasses.put("circle", Circle.class);
             nodeClasses.put("clippath", ClipPath.class);
             nodeClasses.put("defs", Defs.class);
             nodeClasses.put("desc", Desc.class);
             nodeClasses.put("ellipse", Ellipse.class);
+            nodeClasses.put("feflood", Filter.Flood.class);
+            nodeClasses.put("fegaussianblur", Filter.GaussianBlur.class);
+            nodeClasses.put("femerge", Filter.Merge.class);
+            nodeClasses.put("femergenode", Filter.MergeNode.class);
+            nodeClasses.put("feoffset", Filter.Offset.class);
             nodeClasses.put("filter", Filter.class);
             nodeClasses.put("font", Font.class);
             nodeClasses.put("font-face", FontFace.class);
@@ -219,6 +1078,7 @@ public class SVG {
             nodeClasses.put("polyline", Polyline.class);
             nodeClasses.put("radialgradient", RadialGradient.class);
             nodeClasses.put("rect", Rect.class);
+            nodeClasses.put("set", Animation.Set.class);
             nodeClasses.put("shape", ShapeElement.class);
             nodeClasses.put("stop", Stop.class);
             nodeClasses.put("style", Style.class);
@@ -231,9 +1091,12 @@ public class SVG {
 
             ignoreClasses.add("midpointstop");
             ignoreClasses.add("namedview");
-            ignoreClasses.add("fegaussianblur");
-            ignoreClasses.add("feblend");
-            ignoreClasses.add("fecolormatrix");
+            String[] unsupported = {"feblend", "fecolormatrix", "fecomponenttransfer", "fecomposite",
+                    "feconvolvematrix", "fediffuselighting", "fedisplacementmap", "fedropshadow", "feimage",
+                    "femorphology", "fespecularlighting", "fetile", "feturbulence"};
+            for (int i = 0; i < unsupported.length; i++) {
+                nodeClasses.put(unsupported[i], Filter.Unsupported.class);
+            }
         }
 
         public void fatalError(SAXParseException e) throws SAXException {
@@ -275,7 +1138,11 @@ public class SVG {
                 if (buildStack.size() != 0) {
                     parent = (Element)buildStack.getLast();
                 }
+                e.loaderSetTag(name);
                 e.loaderStartElement(SVG.this, attrs, parent);
+                if (streaming != null && buildStack.size() == streamed) {
+                    streamStartElement(e);
+                }
                 buildStack.addLast(e);
             } catch (IllegalAccessException e) {
                 throw new Error(e);
@@ -300,35 +1167,101 @@ public class SVG {
             if (buildStack.size() != 0) {
                 parent = (Element)buildStack.getLast();
             }
-            if (parent != null) {
+            if (streaming != null && buildStack.size() <= streamed) {
+                streamEndElement(e, parent);
+            } else if (parent != null) {
                 parent.loaderAddChild(e);
             } else {
                 setRoot((Root)e);
-                build(e);
-                resolve(e);
+                if (!deferred) {
+                    build();
+                    resolve();
+                }
             }
         }
 
-        private void build(Element e) {
-            if (e != null) {
-                for (Iterator i = e.getChildren().iterator(); i.hasNext();) {
-                    Element c = (Element)i.next();
-                    build(c);
+        /** all ancestors of the element are streamed groups.
+         *  Plain groups are built and resolved right away and their
+         *  transform and clip applied for the content that follows.
+         * @param e element at its start tag
+         */
+        private void streamStartElement(Element e) {
+            Graphics2D g = streaming;
+            if (buildStack.size() == 0 && e instanceof Root) {
+                g.transform(((Root)e).getViewTransform(streamWidth, streamHeight));
+            }
+            Class c = e.getClass();
+            if (c != Root.class && c != Group.class && c != A.class) {
+                return;
+            }
+            Group group = (Group)e;
+            group.build();
+            resolveStreamed();
+            group.resolve();
+            if (group.isClippedToBoundingBox() || group.hasFilter()) {
+                return; // bounds are not known until the end tag
+            }
+            streamed++;
+            if (hidden > 0 || !group.isVisible()) {
+                hidden++;
+            } else {
+                group.beginLayer(g);
+            }
+        }
+
+        /** renders and drops the element unless it has to be retained.
+         * @param e element at its end tag, all ancestors are streamed groups
+         * @param parent parent element or null for the root
+         */
+        private void streamEndElement(Element e, Element parent) {
+            Graphics2D g = streaming;
+            if (buildStack.size() < streamed) { // streamed group itself
+                streamed--;
+                if (hidden > 0) {
+                    hidden--;
+                } else {
+                    ((Group)e).finishLayer(g);
                 }
-                e.build();
+                e.clear();
+            } else if (e instanceof RenderableElement) {
+                SVG.build(e);
+                resolveStreamed();
+                SVG.resolve(e, true);
+                if (hidden == 0) {
+                    renderElement((RenderableElement)e, g);
+                }
+            } else {
+                SVG.build(e);
+                unresolved.add(e);
+            }
+            if (parent == null) {
+                resolveStreamed();
+                setRoot((Root)e);
+            } else if (e.getId() != null || !(e instanceof RenderableElement)) {
+                parent.loaderAddChild(e);
             }
         }
 
-        private void resolve(Element e) {
-            if (e != null) {
+        /** clip paths, patterns... are resolved just before the next
+         *  element is rendered. Gradients are left to the first element
+         *  filled with them (see ShapeElement.resolve()) because they link
+         *  to gradients that often follow defs they are in.
+         */
+        private void resolveStreamed() {
+            for (int i = 0; i < unresolved.size(); i++) {
+                resolveStreamed((Element)unresolved.get(i));
+            }
+            unresolved.clear();
+        }
+
+        private void resolveStreamed(Element e) {
+            if (!(e instanceof Gradient)) {
                 e.resolve();
                 e.clear();
                 for (Iterator i = e.getChildren().iterator(); i.hasNext();) {
-                    Element c = (Element)i.next();
-                    resolve(c);
+                    resolveStreamed((Element)i.next());
                 }
             }
-
         }
 
         public void characters(char buf[], int offset, int len) throws SAXException {
@@ -364,6 +1297,16 @@ public class SVG {
             xform = t != null ? parseTransform(t) : null;
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeTransform(xform);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            xform = in.readTransform();
+        }
+
         protected final Shape shapeToParent(Shape shape) {
             return xform == null ? shape : xform.createTransformedShape(shape);
         }
@@ -383,6 +1326,14 @@ public class SVG {
         private Shape clipPath;
         private int clipPathUnits = ClipPath.CP_USER_SPACE_ON_USE;
         private String href;
+        private String filterHref;
+        private Filter filter;
+        private java.lang.ref.SoftReference filtered; // Filter.Result, see SVG.renderFiltered()
+        private DisplayList displayList; // recorded rendering when referenced by use
+        private Rectangle2D bounds; // with stroke, see getBoundingBox()
+        private Rectangle2D geometryBounds; // without stroke
+        boolean referencing; // bounds depend on elements referenced by use
+        private int boundsStamp; // document modification count the bounds were calculated at
 
         protected void build() {
             super.build();
@@ -397,6 +1348,15 @@ public class SVG {
                 vectorEffect = VECTOR_EFFECT_NONE;
             }
             href = parseHref(getStyleString("clip-path"));
+            clipPath = null; // built again after a change (see SVG.setAttribute())
+            clipPathUnits = ClipPath.CP_USER_SPACE_ON_USE;
+            filterHref = parseHref(getLocalStyleString("filter")); // not inherited
+            if (getLocalStyleString("mask") != null) {
+                // masks are not implemented, unmasked filtered glows would cover
+                // what the mask hides (oxygen icons), render as before filters
+                filterHref = null;
+            }
+            filter = null;
         }
 
         protected void resolve() {
@@ -410,15 +1370,93 @@ public class SVG {
                     href = null;
                 }
             }
+            if (filterHref != null) {
+                Element e = getRoot().get(filterHref);
+                if (e instanceof Filter) {
+                    filter = (Filter)e;
+                    filterHref = null;
+                }
+            }
+        }
+
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeInt(vectorEffect);
+            out.writeClip(clipPath);
+            out.writeInt(clipPathUnits);
+            out.writeElement(filter);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            vectorEffect = in.readInt();
+            clipPath = in.readClip();
+            clipPathUnits = in.readInt();
+            filter = (Filter)in.readElement();
         }
 
         abstract void render(Graphics2D g);
 
-        abstract Rectangle2D getBoundingBox();
+        /** bounding box including stroke, see getBoundingBox(boolean).
+         * @return bounds in parent coordinates or null
+         */
+        public Rectangle2D getBoundingBox() {
+            return getBoundingBox(true);
+        }
+
+        /** Bounds are memoized and cleared by invalidate() of the element
+         *  or any of its descendants. Bounds of use (and of groups that
+         *  contain use) also depend on the referenced element, which is
+         *  not a descendant, so they are recalculated after any change
+         *  of the document.
+         *  The returned rectangle is shared and must not be modified.
+         * @param stroke true to include stroke width
+         * @return bounds in parent coordinates or null
+         */
+        final Rectangle2D getBoundingBox(boolean stroke) {
+            SVG svg = getRoot();
+            int stamp = svg == null ? 0 : svg.getModCount();
+            if (referencing && boundsStamp != stamp) {
+                bounds = null;
+                geometryBounds = null;
+            }
+            Rectangle2D r = stroke ? bounds : geometryBounds;
+            if (r == null) {
+                r = calculateBoundingBox(stroke);
+                if (stroke) {
+                    bounds = r;
+                } else {
+                    geometryBounds = r;
+                }
+                boundsStamp = stamp;
+            }
+            return r;
+        }
+
+        /**
+         * @param stroke true to include stroke width
+         * @return bounds in parent coordinates or null
+         */
+        abstract Rectangle2D calculateBoundingBox(boolean stroke);
+
+        protected void invalidateCaches() {
+            super.invalidateCaches();
+            bounds = null;
+            geometryBounds = null;
+            filtered = null;
+        }
 
         protected void beginLayer(Graphics2D g) {
             savedXform = g.getTransform();
             savedClip = g.getClip();
+            applyLayer(g);
+        }
+
+        /** applies element transform and clip path without saving
+         *  the previous state (see RenderTask).
+         * @param g graphics
+         */
+        final void applyLayer(Graphics2D g) {
             if (getTransform() != null) {
                 g.transform(getTransform());
             }
@@ -439,19 +1477,67 @@ public class SVG {
                     g.setClip(cp);
                 }
 */
-                g.setClip(cp); // this is not accurate but much faster
+                getRoot().clip(g, cp); // this is not accurate but much faster
             }
         }
 
+        /**
+         * @return true if clip path is in object bounding box units
+         */
+        final boolean isClippedToBoundingBox() {
+            return clipPath != null && clipPathUnits == ClipPath.CP_OBJECT_BOUNDING_BOX;
+        }
+
+        /**
+         * @return filter applied to the element or null
+         */
+        final Filter getFilter() {
+            return filter;
+        }
+
+        /**
+         * @return true if the element refers to a filter, resolved or not
+         */
+        final boolean hasFilter() {
+            return filter != null || filterHref != null;
+        }
+
+        /**
+         * @param at transform the element is rendered with
+         * @param device filter region in device pixels
+         * @param stamp document modification count
+         * @return filtered rendering kept by the last render or null
+         */
+        final Filter.Result getFiltered(AffineTransform at, Rectangle device, int stamp) {
+            Filter.Result r = filtered == null ? null : (Filter.Result)filtered.get();
+            return r != null && r.matches(at, device, stamp) ? r : null;
+        }
+
+        final void setFiltered(Filter.Result r) {
+            filtered = r == null ? null : new java.lang.ref.SoftReference(r);
+        }
+
         protected void finishLayer(Graphics2D g) {
             g.setTransform(savedXform);
-            g.setClip(savedClip);
+            if (clipPath != null) {
+                getRoot().unclip(g, savedClip);
+            } else {
+                g.setClip(savedClip);
+            }
         }
 
         int getVectorEffect() {
             return vectorEffect;
         }
 
+        DisplayList getDisplayList() {
+            return displayList;
+        }
+
+        void setDisplayList(DisplayList dl) {
+            displayList = dl;
+        }
+
     }
 
     static abstract class ShapeElement extends RenderableElement {
@@ -474,6 +1560,7 @@ public class SVG {
         private float strokeOpacity = 1;
         private float strokeWidth = 1;
         private boolean hasStroke;
+        private Object[] simplified; // level of detail cache, see getSimplifiedShape()
 
         abstract void render(java.awt.Graphics2D g);
 
@@ -499,6 +1586,15 @@ public class SVG {
             if (!isVisible) {
                 return;
             }
+            fillElement = null; // built again after a change (see SVG.setAttribute())
+            hrefFillElement = null;
+            strokePaint = null;
+            strokeFill = null;
+            hrefStrokeFill = null;
+            hasStroke = false;
+            strokeDashArray = null;
+            strokeLinecap = BasicStroke.CAP_BUTT;
+            strokeLinejoin = BasicStroke.JOIN_MITER;
             String f = getStyleString("fill");
             if (f != null) {
                 if ("none".equalsIgnoreCase(f)) {
@@ -577,6 +1673,46 @@ public class SVG {
             strokeWidth = getStyleFloatUnits("stroke-width", 1);
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeFloat(strokeWidthScalar);
+            out.writeBoolean(isVisible);
+            out.writeColor((Color)fillPaint);
+            out.writeElement(fillElement);
+            out.writeFloat(opacity);
+            out.writeFloat(fillOpacity);
+            out.writeColor((Color)strokePaint);
+            out.writeElement(strokeFill);
+            out.writeFloats(strokeDashArray);
+            out.writeFloat(strokeDashOffset);
+            out.writeInt(strokeLinecap);
+            out.writeInt(strokeLinejoin);
+            out.writeFloat(strokeMiterLimit);
+            out.writeFloat(strokeOpacity);
+            out.writeFloat(strokeWidth);
+            out.writeBoolean(hasStroke);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            strokeWidthScalar = in.readFloat();
+            isVisible = in.readBoolean();
+            fillPaint = in.readColor();
+            fillElement = (FillElement)in.readElement();
+            opacity = in.readFloat();
+            fillOpacity = in.readFloat();
+            strokePaint = in.readColor();
+            strokeFill = (FillElement)in.readElement();
+            strokeDashArray = in.readFloats();
+            strokeDashOffset = in.readFloat();
+            strokeLinecap = in.readInt();
+            strokeLinejoin = in.readInt();
+            strokeMiterLimit = in.readFloat();
+            strokeOpacity = in.readFloat();
+            strokeWidth = in.readFloat();
+            hasStroke = in.readBoolean();
+        }
+
         protected void resolve() {
             super.resolve();
             if (hrefFillElement != null) {
@@ -601,6 +1737,20 @@ public class SVG {
             if (!isVisible) {
                 return;
             }
+            SVG svg = getRoot();
+            double scale = 1;
+            boolean lod = svg.getLodMinSize() > 0 || svg.getLodTolerance() > 0 || svg.getLodMinStrokeWidth() > 0;
+            if (lod) {
+                AffineTransform device = g.getTransform();
+                scale = getScale(device);
+                if (svg.getLodMinSize() > 0 &&
+                        isSmall(device, includeStrokeInBounds(shape.getBounds2D(), true), svg.getLodMinSize())) {
+                    return;
+                }
+                if (svg.getLodTolerance() > 0 && scale > 0) {
+                    shape = getSimplifiedShape(shape, svg.getLodTolerance() / scale);
+                }
+            }
             Paint paintFill = fillPaint;
             if (paintFill == null) {
                 if (fillElement != null) {
@@ -611,32 +1761,9 @@ public class SVG {
             }
             float opacityOfFill   = fillOpacity * opacity;
             if (paintFill != null && opacityOfFill > 0) {
-                if (opacityOfFill < 1) {
-                    Composite cachedComposite = g.getComposite();
-                    g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacityOfFill));
-                    g.setPaint(paintFill);
-                    g.fill(shape);
-                    g.setComposite(cachedComposite);
-                } else {
-                    g.setPaint(paintFill);
-                    if (shape instanceof GeneralPath) {
-                        try {
-                            g.fill(shape);
-                        } catch (OutOfMemoryError ignore) {
-                            // ignore OSXSurfaceData bugs (see MultipleGradientContext.getRaster() notes)
-                            fillElement = null;
-                            fillOpacity = 0;
-//                          System.err.println("OutOfMemory");
-                        }
-                    } else if (shape instanceof Rectangle) {
-                        g.fill(shape);
-                    } else  if (shape instanceof Rectangle2D) {
-                        g.fill(shape);
-                    } else  if (shape instanceof RoundRectangle2D) {
-                        g.fill(shape);
-                    } else {
-                        g.fill(shape);
-                    }
+                if (!svg.fill(g, shape, paintFill, opacityOfFill)) {
+                    fillElement = null;
+                    fillOpacity = 0;
                 }
             }
             Paint paintStroke = strokePaint;
@@ -648,8 +1775,11 @@ public class SVG {
                 }
             }
             float opacityOfStroke = strokeOpacity * opacity;
+            float widthOfStroke = strokeWidth * strokeWidthScalar;
+            if (lod && widthOfStroke * scale < svg.getLodMinStrokeWidth()) {
+                paintStroke = null;
+            }
             if (paintStroke != null && opacityOfStroke > 0) {
-                float widthOfStroke = strokeWidth * strokeWidthScalar;
                 BasicStroke stroke;
                 if (strokeDashArray == null) {
                     stroke = new BasicStroke(widthOfStroke, strokeLinecap, strokeLinejoin, strokeMiterLimit);
@@ -657,24 +1787,39 @@ public class SVG {
                     stroke = new BasicStroke(widthOfStroke, strokeLinecap, strokeLinejoin, strokeMiterLimit, strokeDashArray,
                             strokeDashOffset);
                 }
-                Shape strokeShape = stroke.createStrokedShape(shape);
-                if (opacityOfStroke < 1f) {
-                    Composite cachedComposite = g.getComposite();
-                    g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacityOfStroke));
-                    g.setPaint(paintStroke);
-                    g.fill(strokeShape);
-                    g.setComposite(cachedComposite);
-                } else {
-                    g.setPaint(paintStroke);
-                    g.fill(strokeShape);
+                if (svg.stats != null) {
+                    svg.stats.strokedPath();
                 }
+                svg.stroke(g, stroke.createStrokedShape(shape), paintStroke, opacityOfStroke);
+            }
+        }
+
+        /** simplified shapes are cached per element for power of two
+         *  tolerance buckets, so re-rendering at the same or a close scale
+         *  does not simplify again.
+         * @param shape local shape
+         * @param tolerance in local coordinates
+         * @return simplified shape
+         */
+        private Shape getSimplifiedShape(Shape shape, double tolerance) {
+            if (shape instanceof Rectangle2D) {
+                return shape;
             }
+            int bucket = (int)Math.floor(Math.log(tolerance) / Math.log(2));
+            Object[] c = simplified; // {Shape source, Integer bucket, Shape simplified}
+            if (c != null && c[0] == shape && ((Integer)c[1]).intValue() == bucket) {
+                return (Shape)c[2];
+            }
+            Shape s = shape instanceof Points ? ((Points)shape).simplify(Math.pow(2, bucket)) :
+                    Simplify.simplify(shape, Math.pow(2, bucket));
+            simplified = new Object[]{shape, new Integer(bucket), s};
+            return s;
         }
 
         abstract Shape getShape();
 
-        protected final Rectangle2D includeStrokeInBounds(Rectangle2D rect) {
-            if (hasStroke) {
+        protected final Rectangle2D includeStrokeInBounds(Rectangle2D rect, boolean stroke) {
+            if (stroke && hasStroke) {
                 rect.setRect(rect.getX() - strokeWidth / 2, rect.getY() - strokeWidth / 2,
                         rect.getWidth() + strokeWidth,
                         rect.getHeight() + strokeWidth);
@@ -685,24 +1830,48 @@ public class SVG {
 
     static class Group extends ShapeElement {
 
-        private Rectangle2D boundingBox;
         private Shape shape;
 
         void render(Graphics2D g) {
-            if (!isVisible()) {
+            if (isCulled(g)) {
                 return;
             }
             beginLayer(g);
+            SVG svg = getRoot();
             for (Iterator i = getChildren().iterator(); i.hasNext();) {
                 Element e = (Element)i.next();
                 if (e instanceof RenderableElement) {
-                    RenderableElement r = (RenderableElement)e;
-                    r.render(g);
+                    svg.renderElement((RenderableElement)e, g);
                 }
             }
             finishLayer(g);
         }
 
+        /** Device bounds rather than the clip are checked because clip-path
+         *  replaces the clip (see applyLayer()), so descendants may draw
+         *  outside of the clip of their ancestors. Pays off for tiles
+         *  (see ZoomCache) and zoomed in views. Display lists are replayed
+         *  at other positions, nothing is culled while recording them.
+         *  Nothing is culled either when the device bounds are not known
+         *  (see KEY_DEVICE_BOUNDS).
+         * @param g graphics with parent transform applied
+         * @return true if invisible, outside of the device or too small for
+         *         level of detail settings
+         */
+        boolean isCulled(Graphics2D g) {
+            if (!isVisible()) {
+                return true;
+            }
+            SVG svg = getRoot();
+            Rectangle device = SVG.getDeviceBounds(g);
+            if (device != null && !svg.isRecording() &&
+                    SVG.isOutside(g.getTransform(), getBoundingBox(), device)) {
+                return true;
+            }
+            float minSize = svg.getLodMinSize();
+            return minSize > 0 && SVG.isSmall(g.getTransform(), getBoundingBox(), minSize);
+        }
+
         Shape getShape() {
             return shape == null ? calculateShape() : shape;
         }
@@ -723,17 +1892,21 @@ public class SVG {
             return shape;
         }
 
-        public Rectangle2D getBoundingBox() {
-            return boundingBox == null ? calculateBoundingBox() : boundingBox;
+        protected void invalidateCaches() {
+            super.invalidateCaches();
+            shape = null;
         }
 
-        private Rectangle2D calculateBoundingBox() {
+        Rectangle2D calculateBoundingBox(boolean stroke) {
             Rectangle2D r = null;
             for (Iterator i = getChildren().iterator(); i.hasNext();) {
                 Element e = (Element)i.next();
                 if (e instanceof RenderableElement) {
                     RenderableElement re = (RenderableElement)e;
-                    Rectangle2D bounds = re.getBoundingBox();
+                    Rectangle2D bounds = re.getBoundingBox(stroke);
+                    if (re.referencing) {
+                        referencing = true;
+                    }
                     if (bounds != null) {
                         if (r == null) {
                             r = bounds;
@@ -746,8 +1919,7 @@ public class SVG {
             if (r == null) {
                 r = GraphicsUtil.EMPTY_BOX;
             }
-            boundingBox = boundsToParent(r);
-            return boundingBox;
+            return boundsToParent(r);
         }
     }
 
@@ -762,6 +1934,18 @@ public class SVG {
             title = getString("xlink:title");
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeString(href);
+            out.writeString(title);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            href = in.readString();
+            title = in.readString();
+        }
+
         String getHref() {
             return href;
         }
@@ -810,6 +1994,16 @@ public class SVG {
             }
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeRect(circle.getFrame());
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            circle.setFrame(in.readRect());
+        }
+
         void render(Graphics2D g) {
             beginLayer(g);
             renderShape(g, circle);
@@ -820,8 +2014,8 @@ public class SVG {
             return shapeToParent(circle);
         }
 
-        Rectangle2D getBoundingBox() {
-            return boundsToParent(includeStrokeInBounds(circle.getBounds2D()));
+        Rectangle2D calculateBoundingBox(boolean stroke) {
+            return boundsToParent(includeStrokeInBounds(circle.getBounds2D(), stroke));
         }
     }
 
@@ -842,6 +2036,16 @@ public class SVG {
             }
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeRect(ellipse.getFrame());
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            ellipse.setFrame(in.readRect());
+        }
+
         void render(Graphics2D g) {
             beginLayer(g);
             renderShape(g, ellipse);
@@ -852,8 +2056,8 @@ public class SVG {
             return shapeToParent(ellipse);
         }
 
-        Rectangle2D getBoundingBox() {
-            return boundsToParent(includeStrokeInBounds(ellipse.getBounds2D()));
+        Rectangle2D calculateBoundingBox(boolean stroke) {
+            return boundsToParent(includeStrokeInBounds(ellipse.getBounds2D(), stroke));
         }
 
     }
@@ -871,6 +2075,19 @@ public class SVG {
             line = new Line2D.Float(x1, y1, x2, y2);
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeFloat(line.x1);
+            out.writeFloat(line.y1);
+            out.writeFloat(line.x2);
+            out.writeFloat(line.y2);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            line = new Line2D.Float(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+        }
+
         void render(Graphics2D g) {
             beginLayer(g);
             renderShape(g, line);
@@ -881,8 +2098,8 @@ public class SVG {
             return shapeToParent(line);
         }
 
-        Rectangle2D getBoundingBox() {
-            return boundsToParent(includeStrokeInBounds(line.getBounds2D()));
+        Rectangle2D calculateBoundingBox(boolean stroke) {
+            return boundsToParent(includeStrokeInBounds(line.getBounds2D(), stroke));
         }
     }
 
@@ -899,10 +2116,6 @@ public class SVG {
         }
     }
 
-    static class Filter extends Element {
-
-    }
-
     static class Glyph extends MissingGlyph {
 
         private String text;
@@ -929,27 +2142,8 @@ public class SVG {
         protected void loaderEndElement() {
             super.loaderEndElement();
             type = getString("type");
-            String s = text.toString().trim();
-            for (;;) {
-                int ix = s.indexOf('{');
-                if (ix < 0) {
-                    break;
-                }
-                String className = s.substring(0, ix).trim();
-                if (className.startsWith(".")) {
-                    className = className.substring(1);
-                }
-                int ix2 = s.indexOf('}', ix);
-                if (ix2 < 0) {
-                    break;
-                }
-                String style = s.substring(ix + 1, ix2).trim();
-                Map m = new HashMap();
-                parseStyle(style, m);
-                if (m.size() > 0) {
-                    getRoot().registerStyle(className, m);
-                }
-                s = s.substring(ix2 + 1).trim();
+            if (type == null || "text/css".equalsIgnoreCase(type.trim())) {
+                getRoot().getStyleSheet().parse(text.toString());
             }
         }
 
@@ -978,6 +2172,18 @@ public class SVG {
             viewXform.translate(-viewBox.getX(), -viewBox.getY());
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeTransform(viewXform);
+            out.writeRect(viewBox);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            viewXform = in.readTransform();
+            viewBox = in.readRect();
+        }
+
         void render(Graphics2D g) {
             AffineTransform savedXform = g.getTransform();
             g.transform(viewXform);
@@ -990,8 +2196,8 @@ public class SVG {
             return viewXform.createTransformedShape(shape);
         }
 
-        public Rectangle2D getBoundingBox() {
-            Rectangle2D rect = super.getBoundingBox();
+        Rectangle2D calculateBoundingBox(boolean stroke) {
+            Rectangle2D rect = super.calculateBoundingBox(stroke);
             return viewXform.createTransformedShape(rect).getBounds2D();
         }
 
@@ -999,32 +2205,33 @@ public class SVG {
 
     static class Polygon extends ShapeElement {
 
-        private GeneralPath path;
+        private Points path;
 
         protected void build() {
             super.build();
-            String ps = getString("points");
             String fr = getStyleString("fill-rule", "nonzero");
             int fillRule = "evenodd".equalsIgnoreCase(fr) ?
                     GeneralPath.WIND_EVEN_ODD : GeneralPath.WIND_NON_ZERO;
             // http://download.openclipart.org/downloads/ daily_SVG_snapshot.tar.bz2 19-May-2008
             // daily_SVG_snapshot/Anonymous/Anonymous_Australia.svg  <polygon id="polygon1462" style="fill:#888888;stroke:none" />
-            if (ps != null) {
-                buildPath(fillRule, ps);
-            }
+            path = getRoot().storePoints(Points.parse(getString("points"), isClosed(), fillRule));
         }
 
-        private void buildPath(int fillRule, String ps) {
-            // Generator: Adobe Illustrator 11.0, SVG Export Plug-In . SVG Version: 6.0.0 Build 78)
-            // orangeobject/orangeobject_background-ribbon.svg
-            // <polygon i:knockout="Off" fill="none" points="1-1 4-1 4-4 1-4 "/>
-            float[] points = Element.parseFloats(ps);
-            path = new GeneralPath(fillRule, points.length / 2);
-            path.moveTo(points[0], points[1]);
-            for (int i = 2; i < points.length; i += 2) {
-                path.lineTo(points[i], points[i + 1]);
-            }
-            path.closePath();
+        boolean isClosed() {
+            return true;
+        }
+
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeFloats(path == null ? null : path.getCoords());
+            out.writeInt(path == null ? 0 : path.getWindingRule());
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            float[] xy = in.readFloats();
+            int rule = in.readInt();
+            path = xy == null ? null : getRoot().storePoints(new Points(xy, isClosed(), rule));
         }
 
         void render(Graphics2D g) {
@@ -1039,46 +2246,16 @@ public class SVG {
             return path == null ? GraphicsUtil.EMPTY_BOX : shapeToParent(path);
         }
 
-        Rectangle2D getBoundingBox() {
+        Rectangle2D calculateBoundingBox(boolean stroke) {
             return path == null ? GraphicsUtil.EMPTY_BOX :
-                    boundsToParent(includeStrokeInBounds(path.getBounds2D()));
+                    boundsToParent(includeStrokeInBounds(path.getBounds2D(), stroke));
         }
     }
 
-    static class Polyline extends ShapeElement {
+    static class Polyline extends Polygon {
 
-        private GeneralPath path;
-
-        protected void build() {
-            super.build();
-            String ps = getString("points");
-            String fr = getStyleString("fill-rule", "nonzero");
-            int fillRule = "evenodd".equalsIgnoreCase(fr) ?
-                    GeneralPath.WIND_EVEN_ODD : GeneralPath.WIND_NON_ZERO;
-            buildPath(fillRule, ps);
-        }
-
-        private void buildPath(int fillRule, String ps) {
-            float[] points = Element.parseFloats(ps);
-            path = new GeneralPath(fillRule, points.length / 2);
-            path.moveTo(points[0], points[1]);
-            for (int i = 2; i < points.length; i += 2) {
-                path.lineTo(points[i], points[i + 1]);
-            }
-        }
-
-        void render(Graphics2D g) {
-            beginLayer(g);
-            renderShape(g, path);
-            finishLayer(g);
-        }
-
-        Shape getShape() {
-            return shapeToParent(path);
-        }
-
-        Rectangle2D getBoundingBox() {
-            return boundsToParent(includeStrokeInBounds(path.getBounds2D()));
+        boolean isClosed() {
+            return false;
         }
 
     }
@@ -1148,6 +2325,17 @@ public class SVG {
             super.build();
             String cpu = getString("clipPathUnits");
             clipPathUnits = "objectBoundingBox".equalsIgnoreCase(cpu) ? CP_OBJECT_BOUNDING_BOX : CP_USER_SPACE_ON_USE;
+            clipShape = null;
+        }
+
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeInt(clipPathUnits);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            clipPathUnits = in.readInt();
         }
 
         int getClipPathUnits() {
@@ -1192,6 +2380,13 @@ public class SVG {
         private AffineTransform refXform;
         private String href;
 
+        /**
+         * @return referenced element or null
+         */
+        Element getElement() {
+            return element;
+        }
+
         protected void build() {
             super.build();
             x = getFloatUnits("x", 0);
@@ -1202,6 +2397,26 @@ public class SVG {
             refXform = AffineTransform.getTranslateInstance(this.x, this.y);
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeFloat(x);
+            out.writeFloat(y);
+            out.writeFloat(width);
+            out.writeFloat(height);
+            out.writeTransform(refXform);
+            out.writeElement(element);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            x = in.readFloat();
+            y = in.readFloat();
+            width = in.readFloat();
+            height = in.readFloat();
+            refXform = in.readTransform();
+            element = in.readElement();
+        }
+
         protected void resolve() {
             super.resolve();
             if (href != null) {
@@ -1214,16 +2429,30 @@ public class SVG {
         }
 
         void render(Graphics2D g) {
-            beginLayer(g);
-            AffineTransform saveXform = g.getTransform();
-            g.transform(refXform);
             if (element == null || !(element instanceof RenderableElement)) {
                 return;
             }
+            beginLayer(g);
+            AffineTransform saveXform = g.getTransform();
+            g.transform(refXform);
             RenderableElement re = (RenderableElement)element;
-            re.pushParentContext(this);
-            re.render(g);
-            re.popParentContext();
+            SVG svg = getRoot();
+            AffineTransform base = g.getTransform();
+            DisplayList dl = re.getDisplayList();
+            if (dl != null && dl.isValid(svg, base)) {
+                dl.replay(svg, g);
+            } else {
+                dl = new DisplayList(svg, base);
+                svg.startRecording(dl);
+                try {
+                    re.pushParentContext(this);
+                    svg.renderElement(re, g);
+                    re.popParentContext();
+                } finally {
+                    svg.stopRecording(dl);
+                }
+                re.setDisplayList(dl);
+            }
             g.setTransform(saveXform);
             finishLayer(g);
         }
@@ -1238,11 +2467,12 @@ public class SVG {
             return null;
         }
 
-        Rectangle2D getBoundingBox() {
+        Rectangle2D calculateBoundingBox(boolean stroke) {
+            referencing = true;
             if (element instanceof ShapeElement) {
                 ShapeElement se = (ShapeElement)element;
                 se.pushParentContext(this);
-                Rectangle2D bounds = se.getBoundingBox();
+                Rectangle2D bounds = se.getBoundingBox(stroke);
                 se.popParentContext();
                 bounds = refXform.createTransformedShape(bounds).getBounds2D();
                 bounds = boundsToParent(bounds);
@@ -1293,6 +2523,28 @@ public class SVG {
             }
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            boolean round = rect instanceof RoundRectangle2D;
+            out.writeBoolean(round);
+            out.writeRect(rect.getFrame());
+            if (round) {
+                out.writeFloat((float)((RoundRectangle2D)rect).getArcWidth());
+                out.writeFloat((float)((RoundRectangle2D)rect).getArcHeight());
+            }
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            boolean round = in.readBoolean();
+            Rectangle2D.Float r = in.readRect();
+            if (round) {
+                rect = new RoundRectangle2D.Float(r.x, r.y, r.width, r.height, in.readFloat(), in.readFloat());
+            } else {
+                rect = r;
+            }
+        }
+
         void render(Graphics2D g) {
             assert !(getParent() instanceof ClipPath);
             beginLayer(g);
@@ -1304,8 +2556,8 @@ public class SVG {
             return shapeToParent(rect);
         }
 
-        Rectangle2D getBoundingBox() {
-            return boundsToParent(includeStrokeInBounds(rect.getBounds2D()));
+        Rectangle2D calculateBoundingBox(boolean stroke) {
+            return boundsToParent(includeStrokeInBounds(rect.getBounds2D(), stroke));
         }
     }
 
@@ -1324,6 +2576,27 @@ public class SVG {
             y2 = getFloatUnits("y2", 0);
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeFloat(x1);
+            out.writeFloat(y1);
+            out.writeFloat(x2);
+            out.writeFloat(y2);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            x1 = in.readFloat();
+            y1 = in.readFloat();
+            x2 = in.readFloat();
+            y2 = in.readFloat();
+        }
+
+        void appendKey(StringBuffer sb) {
+            super.appendKey(sb);
+            sb.append(' ').append(x1).append(' ').append(y1).append(' ').append(x2).append(' ').append(y2);
+        }
+
         protected void resolve() {
             super.resolve();
             if (colors != null && colors.length == 1) {
@@ -1395,6 +2668,30 @@ public class SVG {
             r = getFloatUnits("r", 0.5f);
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeFloat(cx);
+            out.writeFloat(cy);
+            out.writeFloat(fx);
+            out.writeFloat(fy);
+            out.writeFloat(r);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            cx = in.readFloat();
+            cy = in.readFloat();
+            fx = in.readFloat();
+            fy = in.readFloat();
+            r = in.readFloat();
+        }
+
+        void appendKey(StringBuffer sb) {
+            super.appendKey(sb);
+            sb.append(' ').append(cx).append(' ').append(cy).append(' ').append(fx).append(' ').append(fy);
+            sb.append(' ').append(r);
+        }
+
         Paint getPaint(Rectangle2D bounds, AffineTransform xform) {
             MultipleGradientPaint.CycleMethodEnum method;
             switch (getSpreadMethod()) {
@@ -1479,7 +2776,7 @@ public class SVG {
             for (Iterator i = getChildren().iterator(); i.hasNext(); ) {
                 Element e = (Element)i.next();
                 if (e instanceof RenderableElement) {
-                    ((RenderableElement)e).render(g);
+                    getRoot().renderElement((RenderableElement)e, g);
                 }
             }
         }
@@ -1519,9 +2816,9 @@ public class SVG {
             return null;
         }
 
-        Rectangle2D getBoundingBox() {
+        Rectangle2D calculateBoundingBox(boolean stroke) {
             if (path != null) {
-                return boundsToParent(includeStrokeInBounds(path.getBounds2D()));
+                return boundsToParent(includeStrokeInBounds(path.getBounds2D(), stroke));
             }
             return null;
         }
@@ -1732,6 +3029,7 @@ public class SVG {
         protected Color[] colors;
         private Gradient ref;
         private String href;
+        private boolean resolved;
 
         protected void loaderAddChild(Element child) {
             super.loaderAddChild(child);
@@ -1743,6 +3041,11 @@ public class SVG {
 
         protected void build() {
             super.build();
+            resolved = false; // built again after a change (see SVG.setAttribute())
+            ref = null;
+            spreadMethod = SM_PAD;
+            gradientUnits = GU_OBJECT_BOUNDING_BOX;
+            gradientTransform = GraphicsUtil.IDENTITY;
             String sm = getString("spreadMethod");
             if (sm != null) {
                 sm = sm.toLowerCase();
@@ -1773,6 +3076,10 @@ public class SVG {
         }
 
         protected void resolve() {
+            if (resolved) { // referenced gradients and SVG.foldGradients() resolve ahead
+                return;
+            }
+            resolved = true;
             super.resolve();
             if (href != null) { // forward references:
                 Object obj = getRoot().get(href);
@@ -1785,6 +3092,24 @@ public class SVG {
             processStops();
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            out.writeInt(spreadMethod);
+            out.writeInt(gradientUnits);
+            out.writeTransform(gradientTransform);
+            out.writeFloats(offsets);
+            out.writeColors(colors);
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            spreadMethod = in.readInt();
+            gradientUnits = in.readInt();
+            gradientTransform = in.readTransform();
+            offsets = in.readFloats();
+            colors = in.readColors();
+        }
+
         private void processStops() {
             Gradient g = ref;
             ArrayList s = stops;
@@ -1846,6 +3171,32 @@ public class SVG {
         }
 
 
+        /** appends stop offsets and colors. */
+        void appendStopsKey(StringBuffer sb) {
+            for (int i = 0; offsets != null && i < offsets.length; i++) {
+                sb.append(offsets[i]).append(':');
+                sb.append(colors[i] == null ? "-" : Integer.toHexString(colors[i].getRGB())).append(' ');
+            }
+        }
+
+        /** appends everything but the stops the paint depends on. */
+        void appendKey(StringBuffer sb) {
+            double[] m = new double[6];
+            gradientTransform.getMatrix(m);
+            sb.append(getClass().getName()).append(' ').append(spreadMethod).append(' ').append(gradientUnits);
+            for (int i = 0; i < m.length; i++) {
+                sb.append(' ').append(m[i]);
+            }
+        }
+
+        /** uses stop arrays of an equal gradient.
+         * @param g gradient with the same offsets and colors
+         */
+        void shareStops(Gradient g) {
+            offsets = g.offsets;
+            colors = g.colors;
+        }
+
         float[] getStopOffsets() {
             return offsets;
         }
@@ -1888,6 +3239,10 @@ public class SVG {
 
         protected void build() {
             super.build();
+            gradientUnits = -1; // built again after a change (see SVG.setAttribute())
+            patternXform = GraphicsUtil.IDENTITY;
+            viewBox = null;
+            ref = null;
             String gu = getString("gradientUnits");
             if ("userspaceonuse".equalsIgnoreCase(gu)) {
                 gradientUnits = GU_USER_SPACE_ON_USE;
@@ -1998,6 +3353,7 @@ public class SVG {
                 Graphics2D g = buf.createGraphics();
                 g.setClip(0, 0, tileWidth, tileHeight);
                 g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setRenderingHint(KEY_DEVICE_BOUNDS, new Rectangle(0, 0, w, h));
                 if (tileWidth != 0 || tileHeight != 0) {
                     for (Iterator i = getChildren().iterator(); i.hasNext();) {
                         Element e = (Element)i.next();
@@ -2010,7 +3366,7 @@ public class SVG {
                                 xform.translate(-viewBox.x, -viewBox.y);
                             }
                             g.setTransform(xform);
-                            ((SVG.RenderableElement)e).render(g);
+                            getRoot().renderElement((SVG.RenderableElement)e, g);
                         }
                     }
                 } else {
@@ -2027,6 +3383,35 @@ public class SVG {
             }
         }
 
+        protected void write(Binary.Output out) throws IOException {
+            super.write(out);
+            if (texPaint instanceof TexturePaint) {
+                TexturePaint tp = (TexturePaint)texPaint;
+                out.writeInt(1);
+                out.writeImage(tp.getImage());
+                out.writeRect(tp.getAnchorRect());
+            } else if (texPaint instanceof PatternPaint) {
+                PatternPaint pp = (PatternPaint)texPaint;
+                out.writeInt(2);
+                out.writeImage(pp.source);
+                out.writeTransform(pp.xform);
+            } else {
+                out.writeInt(0);
+            }
+        }
+
+        protected void read(Binary.Input in) {
+            super.read(in);
+            int kind = in.readInt();
+            if (kind == 1) {
+                BufferedImage img = in.readImage();
+                texPaint = new TexturePaint(img, in.readRect());
+            } else if (kind == 2) {
+                BufferedImage img = in.readImage();
+                texPaint = new PatternPaint(img, in.readTransform());
+            }
+        }
+
         Paint getPaint(Rectangle2D bounds, AffineTransform xform) {
             return texPaint;
         }
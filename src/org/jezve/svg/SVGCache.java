@@ -0,0 +1,198 @@
+package org.jezve.svg;
+
+import org.jezve.util.IO;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** On-disk cache of compiled (see Binary) SVG documents.
+ *  Parsing XML, styles, transforms and path data of icons that never change
+ *  on every application start is a waste. The cache keeps built and resolved
+ *  documents in binary form which loads with a single sequential read.
+ *  <p>
+ *  Each cache file starts with a header: source file length, modification time
+ *  and MD5 digest of the source bytes. If length and modification time match,
+ *  the cache is used as is. If only the modification time differs (file touched
+ *  or copied) the digest decides and the header is refreshed. Otherwise the
+ *  source is parsed again and the cache file is rewritten.
+ *  <p>
+ *  Cache files are named after the digest of the canonical source path.
+ *  Any failure to read a cache file is treated as a cache miss. Cache files
+ *  are only opened for writing when stored or refreshed, so a read-only
+ *  cache (e.g. shipped with the application) is used as is.
+ */
+public class SVGCache {
+
+    private static final int HEADER_MAGIC = 0x4A535648; // "JSVH"
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 16;
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private final File dir;
+
+    public SVGCache(File dir) {
+        this.dir = dir;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /** reads the document from cache or, if cache is absent or stale,
+     *  parses the source and updates the cache.
+     * @param file svg or svgz file
+     * @return document or null if the file does not contain svg
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public SVG read(File file) throws IOException {
+        File src = file.getCanonicalFile();
+        File cache = getCacheFile(src);
+        long length = src.length();
+        long modified = src.lastModified();
+        if (cache.isFile()) {
+            try {
+                SVG svg = readCache(cache, src, length, modified);
+                if (svg != null) {
+                    return svg;
+                }
+            } catch (IOException e) {
+                // corrupted or incompatible cache file is a cache miss
+            } catch (RuntimeException e) {
+                // same as above (e.g. ClassCastException on bad reference)
+            }
+        }
+        byte[] bytes = IO.readFile(src);
+        SVG svg = SVG.read(new ByteArrayInputStream(bytes), false, src);
+        if (svg != null) {
+            writeCache(cache, svg, length, modified, digest(bytes));
+        }
+        return svg;
+    }
+
+    /** removes all cache files from the cache directory. */
+    public void clear() {
+        File[] ls = dir.listFiles();
+        for (int i = 0; ls != null && i < ls.length; i++) {
+            if (ls[i].getName().endsWith(".svgc")) {
+                ls[i].delete();
+            }
+        }
+    }
+
+    private File getCacheFile(File src) {
+        byte[] d = digest(src.getPath().getBytes());
+        return new File(dir, toHex(d) + ".svgc");
+    }
+
+    private SVG readCache(File cache, File src, long length, long modified) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(cache, "r");
+        boolean touched = false;
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != HEADER_MAGIC) {
+                return null;
+            }
+            long len = raf.readLong();
+            long mod = raf.readLong();
+            byte[] d = new byte[16];
+            raf.readFully(d);
+            if (len != length) {
+                return null;
+            }
+            if (mod != modified) {
+                if (!MessageDigest.isEqual(d, digest(IO.readFile(src)))) {
+                    return null;
+                }
+                touched = true;
+            }
+            FileChannel fc = raf.getChannel();
+            long size = fc.size() - HEADER_SIZE;
+            ByteBuffer buf;
+            if (size > MAP_THRESHOLD) {
+                buf = fc.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+            } else {
+                buf = ByteBuffer.allocate((int)size);
+                fc.position(HEADER_SIZE);
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                buf.flip();
+            }
+            SVG svg = Binary.decode(buf);
+            if (touched) {
+                writeModified(cache, modified);
+            }
+            return svg;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** refreshes modification time in the header of a cache file that
+     *  is still valid, read-only cache files are left alone.
+     */
+    private static void writeModified(File cache, long modified) {
+        if (!cache.canWrite()) {
+            return;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(cache, "rw");
+            try {
+                raf.seek(4 + 8);
+                raf.writeLong(modified);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // digest is checked again next time
+        }
+    }
+
+    private void writeCache(File cache, SVG svg, long length, long modified, byte[] digest) {
+        dir.mkdirs();
+        File tmp = null;
+        DataOutputStream out = null;
+        try {
+            byte[] body = Binary.encode(svg);
+            // unique name: concurrent writers of the same cache entry must not share it
+            tmp = File.createTempFile("." + cache.getName() + ".", ".tmp", dir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(HEADER_MAGIC);
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.write(digest);
+            out.write(body);
+            out.close();
+            out = null;
+            IO.move(tmp, cache);
+        } catch (IOException e) {
+            // cache is an optimization; failure to write it is not fatal
+            if (tmp != null) {
+                tmp.delete();
+            }
+        } finally {
+            IO.close(out);
+        }
+    }
+
+    private static byte[] digest(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuffer sb = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xFF;
+            sb.append(Character.forDigit(b >> 4, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,204 @@
+package org.jezve.svg;
+
+import java.io.*;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/** In memory cache of parsed documents shared by all windows and
+ *  components of the application that show the same files.
+ *  <p>
+ *  Documents are keyed by canonical path and held by soft references,
+ *  so unused documents go away when memory runs low. Length and
+ *  modification time of the file are checked on every get() and a
+ *  document whose file has changed on disk is loaded again.
+ *  <p>
+ *  Loading is single flight: concurrent get() of a file that is being
+ *  loaded wait for that load instead of parsing another copy. Different
+ *  files load in parallel. Misses are loaded through the on-disk cache
+ *  of compiled documents if one is given (see SVGCache).
+ *  <p>
+ *  Shared documents are read only (see SVG.readEditable() for documents
+ *  that change) and rendering is not thread safe: render them from a
+ *  single thread, e.g. the event dispatch thread.
+ */
+public class SVGDocumentCache {
+
+    private final SVGCache disk;
+    private final HashMap entries = new HashMap(); // canonical path(String) -> Entry
+    private final HashMap loading = new HashMap(); // canonical path(String) -> Load
+    private final ReferenceQueue queue = new ReferenceQueue(); // Entries with cleared documents
+    private int hits;
+    private int misses;
+
+    private static final class Entry extends SoftReference {
+
+        final String path;
+        final long length;
+        final long modified;
+
+        Entry(SVG svg, ReferenceQueue q, String p, long len, long mod) {
+            super(svg, q);
+            path = p;
+            length = len;
+            modified = mod;
+        }
+    }
+
+    /** load in progress, other threads wait for it. */
+    private static final class Load {
+
+        private boolean done;
+        private SVG svg;
+        private Throwable error;
+
+        synchronized void finish(SVG s, Throwable t) {
+            svg = s;
+            error = t;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized SVG await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (error instanceof IOException) {
+                throw (IOException)error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException)error;
+            } else if (error != null) {
+                throw (Error)error;
+            }
+            return svg;
+        }
+    }
+
+    public SVGDocumentCache() {
+        this(null);
+    }
+
+    /**
+     * @param disk cache of compiled documents to load misses from or null
+     */
+    public SVGDocumentCache(SVGCache disk) {
+        this.disk = disk;
+    }
+
+    /** returns the shared document, loading it if it is not cached or
+     *  its file has changed since it was loaded.
+     * @param file svg or svgz file
+     * @return document or null if the file does not contain svg
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public SVG get(File file) throws IOException {
+        File src = file.getCanonicalFile();
+        String path = src.getPath();
+        long length = src.length();
+        long modified = src.lastModified();
+        Load load;
+        boolean owner = false;
+        synchronized (this) {
+            purge();
+            Entry e = (Entry)entries.get(path);
+            SVG svg = e != null && e.length == length && e.modified == modified ? (SVG)e.get() : null;
+            if (svg != null) {
+                hits++;
+                return svg;
+            }
+            load = (Load)loading.get(path);
+            if (load == null) {
+                load = new Load();
+                loading.put(path, load);
+                owner = true;
+                misses++;
+            }
+        }
+        if (!owner) {
+            return load.await();
+        }
+        SVG svg = null;
+        Throwable error = null;
+        try {
+            svg = read(src);
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } catch (Error e) {
+            error = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                loading.remove(path);
+                if (svg != null) {
+                    entries.put(path, new Entry(svg, queue, path, length, modified));
+                } else {
+                    entries.remove(path);
+                }
+            }
+            load.finish(svg, error);
+        }
+        return svg;
+    }
+
+    private SVG read(File src) throws IOException {
+        if (disk != null) {
+            return disk.read(src);
+        }
+        return SVG.read(src);
+    }
+
+    /** drops entries whose documents were collected. */
+    private void purge() {
+        for (Entry e = (Entry)queue.poll(); e != null; e = (Entry)queue.poll()) {
+            if (entries.get(e.path) == e) {
+                entries.remove(e.path);
+            }
+        }
+    }
+
+    /** drops the document of the file, the next get() loads it again.
+     * @param file svg or svgz file
+     * @throws IOException if the canonical path cannot be determined
+     */
+    public synchronized void remove(File file) throws IOException {
+        entries.remove(file.getCanonicalFile().getPath());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        purge();
+    }
+
+    /**
+     * @return number of cached documents, including ones not yet purged
+     *         after being collected
+     */
+    public synchronized int size() {
+        purge();
+        return entries.size();
+    }
+
+    /**
+     * @return number of get() calls answered from memory
+     */
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return number of get() calls that loaded the file, concurrent
+     *         calls waiting for the same load are not counted
+     */
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+}
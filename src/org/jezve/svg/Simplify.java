@@ -0,0 +1,167 @@
+package org.jezve.svg;
+
+import java.awt.Shape;
+import java.awt.geom.*;
+
+/** Polyline simplification used for level of detail rendering.
+ *  Curves are flattened to the tolerance, then every subpath is thinned
+ *  by radial distance (drops runs of points closer than tolerance to each
+ *  other) and by Douglas-Peucker (drops points closer than tolerance to
+ *  the line between kept neighbours).
+ *  see: http://en.wikipedia.org/wiki/Ramer-Douglas-Peucker_algorithm
+ */
+final class Simplify {
+
+    /** simplifies shape to tolerance.
+     * @param s shape to simplify
+     * @param tolerance maximum deviation in shape coordinates
+     * @return path of straight segments with the same winding rule
+     */
+    static GeneralPath simplify(Shape s, double tolerance) {
+        PathIterator pi = new FlatteningPathIterator(s.getPathIterator(null), tolerance);
+        GeneralPath path = new GeneralPath(pi.getWindingRule());
+        float[] pts = new float[64];
+        int n = 0;
+        boolean seeded = false; // pts holds only the start of just closed subpath
+        float[] c = new float[6];
+        while (!pi.isDone()) {
+            int type = pi.currentSegment(c);
+            if (type == PathIterator.SEG_MOVETO) {
+                if (!seeded) {
+                    append(path, pts, n, false, tolerance);
+                }
+                n = 0;
+            }
+            seeded = false;
+            if (type == PathIterator.SEG_CLOSE) {
+                float x = pts[0];
+                float y = pts[1];
+                append(path, pts, n, true, tolerance);
+                // segments after close start at the first point of the closed subpath
+                pts[0] = x;
+                pts[1] = y;
+                n = 2;
+                seeded = true;
+            } else {
+                if (n + 2 > pts.length) {
+                    float[] p2 = new float[pts.length * 2];
+                    System.arraycopy(pts, 0, p2, 0, n);
+                    pts = p2;
+                }
+                pts[n++] = c[0];
+                pts[n++] = c[1];
+            }
+            pi.next();
+        }
+        if (!seeded) {
+            append(path, pts, n, false, tolerance);
+        }
+        return path;
+    }
+
+    /** simplifies polyline in place.
+     * @param pts x, y pairs
+     * @param n number of floats used in pts
+     * @param tolerance maximum deviation
+     * @return number of floats used in pts after simplification
+     */
+    static int simplify(float[] pts, int n, double tolerance) {
+        return douglasPeucker(pts, radialDistance(pts, n, tolerance), tolerance);
+    }
+
+    private static void append(GeneralPath path, float[] pts, int n, boolean closed, double tolerance) {
+        if (n == 0) {
+            return;
+        }
+        n = simplify(pts, n, tolerance);
+        path.moveTo(pts[0], pts[1]);
+        for (int i = 2; i < n; i += 2) {
+            path.lineTo(pts[i], pts[i + 1]);
+        }
+        if (closed) {
+            path.closePath();
+        }
+    }
+
+    private static int radialDistance(float[] pts, int n, double tolerance) {
+        if (n <= 4) {
+            return n;
+        }
+        double t2 = tolerance * tolerance;
+        int k = 2;
+        for (int i = 2; i < n - 2; i += 2) {
+            double dx = pts[i] - pts[k - 2];
+            double dy = pts[i + 1] - pts[k - 1];
+            if (dx * dx + dy * dy >= t2) {
+                pts[k++] = pts[i];
+                pts[k++] = pts[i + 1];
+            }
+        }
+        pts[k++] = pts[n - 2]; // last point is always kept
+        pts[k++] = pts[n - 1];
+        return k;
+    }
+
+    private static int douglasPeucker(float[] pts, int n, double tolerance) {
+        int count = n / 2;
+        if (count <= 2) {
+            return n;
+        }
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        int[] stack = new int[count * 2];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = count - 1;
+        double t2 = tolerance * tolerance;
+        while (sp > 0) {
+            int last = stack[--sp];
+            int first = stack[--sp];
+            double x0 = pts[first * 2];
+            double y0 = pts[first * 2 + 1];
+            double dx = pts[last * 2] - x0;
+            double dy = pts[last * 2 + 1] - y0;
+            double len2 = dx * dx + dy * dy;
+            double max = t2;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double px = pts[i * 2] - x0;
+                double py = pts[i * 2 + 1] - y0;
+                // distance to the segment (not the line) so spikes going
+                // back beyond the segment ends are preserved
+                double t = len2 == 0 ? 0 : (px * dx + py * dy) / len2;
+                if (t > 1) {
+                    t = 1;
+                } else if (t < 0) {
+                    t = 0;
+                }
+                double ex = px - t * dx;
+                double ey = py - t * dy;
+                double d2 = ex * ex + ey * ey;
+                if (d2 > max) {
+                    max = d2;
+                    index = i;
+                }
+            }
+            if (index >= 0) {
+                keep[index] = true;
+                stack[sp++] = first;
+                stack[sp++] = index;
+                stack[sp++] = index;
+                stack[sp++] = last;
+            }
+        }
+        int k = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                pts[k++] = pts[i * 2];
+                pts[k++] = pts[i * 2 + 1];
+            }
+        }
+        return k;
+    }
+
+    private Simplify() { /* no instantiation */ }
+
+}
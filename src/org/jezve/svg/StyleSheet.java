@@ -0,0 +1,419 @@
+package org.jezve.svg;
+
+import java.util.*;
+
+/** CSS rules of the document &lt;style&gt; elements.
+ *  Supported selectors are type, universal, class and id, compound
+ *  (rect.a.b#x), grouped (a, b) and descendant and child combinators
+ *  (g .a, g &gt; .a). Rules with anything else (pseudo classes, attribute
+ *  selectors, sibling combinators) and at-rules are skipped.
+ *  "!important" is dropped from values and has no effect on the cascade.
+ *  <p>
+ *  Illustrator exports carry hundreds of rules, so every rule is indexed
+ *  by the id, first class or type of its rightmost simple selector and
+ *  an element only looks at rules from its own buckets. Result of the
+ *  lookup is cached per element type, class list and id (if any rule is
+ *  indexed by it): for rules without ancestors in the selector the cached
+ *  entry holds the merged declarations shared by all such elements, rules
+ *  with ancestors are checked against the element each time.
+ *  <p>
+ *  Declarations are applied in the order of specificity, then of
+ *  appearance. Inline style attribute overrides the sheet, the sheet
+ *  overrides presentation attributes (see Element.build()).
+ */
+final class StyleSheet {
+
+    private final HashMap byId = new HashMap(); // String -> ArrayList(Rule)
+    private final HashMap byClass = new HashMap(); // String -> ArrayList(Rule)
+    private final HashMap byType = new HashMap(); // String -> ArrayList(Rule)
+    private final ArrayList universal = new ArrayList(); // Rule
+    private final HashMap cache = new HashMap(); // key(String) -> Entry
+    private int rules;
+
+    /** simple selector: type and/or classes and/or id. */
+    private static class Simple {
+
+        String type; // null for any
+        String id;
+        String[] classes = new String[0];
+        boolean child; // combinator to the previous simple selector is '>'
+
+        boolean matches(String t, String i, String[] c) {
+            if (type != null && !type.equals(t) || id != null && !id.equals(i)) {
+                return false;
+            }
+            for (int k = 0; k < classes.length; k++) {
+                if (!contains(c, classes[k])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Rule implements Comparable {
+
+        final Simple[] selector; // rightmost last
+        final int specificity;
+        final int order;
+        final Map declarations;
+
+        Rule(Simple[] selector, int order, Map declarations) {
+            this.selector = selector;
+            this.order = order;
+            this.declarations = declarations;
+            int ids = 0, classes = 0, types = 0;
+            for (int i = 0; i < selector.length; i++) {
+                ids += selector[i].id != null ? 1 : 0;
+                classes += selector[i].classes.length;
+                types += selector[i].type != null ? 1 : 0;
+            }
+            specificity = ids * 10000 + classes * 100 + types;
+        }
+
+        public int compareTo(Object o) {
+            Rule r = (Rule)o;
+            return specificity != r.specificity ? (specificity < r.specificity ? -1 : 1) :
+                   order < r.order ? -1 : order > r.order ? 1 : 0;
+        }
+    }
+
+    /** cached lookup result for an element type, class list and id. */
+    private static class Entry {
+
+        Map style; // merged declarations when candidates is null
+        Rule[] candidates; // all candidates in cascade order when some need ancestors
+    }
+
+    /** adds rules of a style sheet.
+     * @param css text of &lt;style&gt; element
+     */
+    void parse(String css) {
+        String s = stripComments(css);
+        int p = 0;
+        int n = s.length();
+        while (p < n) {
+            while (p < n && Character.isWhitespace(s.charAt(p))) {
+                p++;
+            }
+            if (p >= n) {
+                break;
+            }
+            int open = s.indexOf('{', p);
+            if (s.charAt(p) == '@') {
+                int semi = s.indexOf(';', p);
+                if (semi >= 0 && (open < 0 || semi < open)) {
+                    p = semi + 1; // @import, @charset
+                } else {
+                    p = open < 0 ? n : skipBlock(s, open); // @media, @font-face
+                }
+                continue;
+            }
+            if (open < 0) {
+                break;
+            }
+            int close = s.indexOf('}', open);
+            if (close < 0) {
+                close = n;
+            }
+            Map declarations = parseDeclarations(s.substring(open + 1, close));
+            if (declarations.size() > 0) {
+                for (StringTokenizer st = new StringTokenizer(s.substring(p, open), ","); st.hasMoreTokens();) {
+                    Simple[] selector = parseSelector(st.nextToken());
+                    if (selector != null) {
+                        add(new Rule(selector, rules++, declarations));
+                    }
+                }
+            }
+            p = close + 1;
+        }
+        cache.clear();
+    }
+
+    /** merged declarations of the rules matching the element.
+     * @param e element (its class attribute must not be cleared yet)
+     * @return read only map shared with other elements or null
+     */
+    Map getStyle(Element e) {
+        if (rules == 0) {
+            return null;
+        }
+        String type = e.getTag();
+        String id = e.getId();
+        String[] classes = getClasses(e);
+        StringBuffer sb = new StringBuffer(type == null ? "" : type);
+        String[] sorted = (String[])classes.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            sb.append('.').append(sorted[i]);
+        }
+        boolean byIdUsed = id != null && byId.containsKey(id);
+        if (byIdUsed) {
+            sb.append('#').append(id);
+        }
+        String key = sb.toString();
+        Entry entry = (Entry)cache.get(key);
+        if (entry == null) {
+            entry = createEntry(type, byIdUsed ? id : null, classes);
+            cache.put(key, entry);
+        }
+        if (entry.candidates == null) {
+            return entry.style;
+        }
+        Map m = null;
+        for (int i = 0; i < entry.candidates.length; i++) {
+            Rule r = entry.candidates[i];
+            if (matchesAncestors(r.selector, r.selector.length - 1, e)) {
+                if (m == null) {
+                    m = new HashMap();
+                }
+                m.putAll(r.declarations);
+            }
+        }
+        return m;
+    }
+
+    private Entry createEntry(String type, String id, String[] classes) {
+        ArrayList candidates = new ArrayList();
+        if (id != null) {
+            addMatching((ArrayList)byId.get(id), type, id, classes, candidates);
+        }
+        for (int i = 0; i < classes.length; i++) {
+            if (!contains(classes, classes[i], i)) {
+                addMatching((ArrayList)byClass.get(classes[i]), type, id, classes, candidates);
+            }
+        }
+        if (type != null) {
+            addMatching((ArrayList)byType.get(type), type, id, classes, candidates);
+        }
+        addMatching(universal, type, id, classes, candidates);
+        Collections.sort(candidates);
+        Entry entry = new Entry();
+        boolean contextual = false;
+        for (Iterator i = candidates.iterator(); i.hasNext();) {
+            contextual |= ((Rule)i.next()).selector.length > 1;
+        }
+        if (contextual) {
+            entry.candidates = (Rule[])candidates.toArray(new Rule[candidates.size()]);
+        } else if (candidates.size() == 1) {
+            entry.style = ((Rule)candidates.get(0)).declarations;
+        } else if (candidates.size() > 1) {
+            Map m = new HashMap();
+            for (Iterator i = candidates.iterator(); i.hasNext();) {
+                m.putAll(((Rule)i.next()).declarations);
+            }
+            entry.style = m;
+        }
+        return entry;
+    }
+
+    private static void addMatching(ArrayList bucket, String type, String id, String[] classes, ArrayList out) {
+        if (bucket != null) {
+            for (Iterator i = bucket.iterator(); i.hasNext();) {
+                Rule r = (Rule)i.next();
+                if (r.selector[r.selector.length - 1].matches(type, id, classes)) {
+                    out.add(r);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param selector selector
+     * @param i index of simple selector matched by e
+     * @param e element
+     * @return true if selector[0..i-1] match ancestors of e
+     */
+    private static boolean matchesAncestors(Simple[] selector, int i, Element e) {
+        if (i == 0) {
+            return true;
+        }
+        Simple s = selector[i - 1];
+        for (Element a = e.getParent(); a != null; a = a.getParent()) {
+            if (s.matches(a.getTag(), a.getId(), getClasses(a)) && matchesAncestors(selector, i - 1, a)) {
+                return true;
+            }
+            if (selector[i].child) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private void add(Rule r) {
+        Simple s = r.selector[r.selector.length - 1];
+        if (s.id != null) {
+            add(byId, s.id, r);
+        } else if (s.classes.length > 0) {
+            add(byClass, s.classes[0], r);
+        } else if (s.type != null) {
+            add(byType, s.type, r);
+        } else {
+            universal.add(r);
+        }
+    }
+
+    private static void add(HashMap index, String key, Rule r) {
+        ArrayList bucket = (ArrayList)index.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList();
+            index.put(key, bucket);
+        }
+        bucket.add(r);
+    }
+
+    private static String[] getClasses(Element e) {
+        String s = e.getString("class");
+        if (s == null) {
+            return new String[0];
+        }
+        StringTokenizer st = new StringTokenizer(s);
+        String[] a = new String[st.countTokens()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = st.nextToken();
+        }
+        return a;
+    }
+
+    /**
+     * @param s selector text, e.g. "g.layer > rect#bg"
+     * @return simple selectors rightmost last or null if not supported
+     */
+    private static Simple[] parseSelector(String s) {
+        ArrayList list = new ArrayList();
+        boolean child = false;
+        int p = 0;
+        int n = s.length();
+        while (p < n) {
+            char c = s.charAt(p);
+            if (Character.isWhitespace(c)) {
+                p++;
+                continue;
+            }
+            if (c == '>') {
+                if (list.isEmpty() || child) {
+                    return null;
+                }
+                child = true;
+                p++;
+                continue;
+            }
+            Simple simple = new Simple();
+            simple.child = child;
+            child = false;
+            ArrayList classes = new ArrayList();
+            int start = p;
+            while (p < n && !Character.isWhitespace(s.charAt(p)) && s.charAt(p) != '>') {
+                c = s.charAt(p);
+                int q = p + 1;
+                while (q < n && isNameChar(s.charAt(q))) {
+                    q++;
+                }
+                if (c == '.' || c == '#') {
+                    if (q == p + 1) {
+                        return null;
+                    }
+                    if (c == '.') {
+                        classes.add(s.substring(p + 1, q));
+                    } else {
+                        simple.id = s.substring(p + 1, q);
+                    }
+                } else if (c == '*' && p == start) {
+                    // universal
+                } else if (isNameChar(c) && p == start) {
+                    simple.type = s.substring(p, q).toLowerCase();
+                    int colon = simple.type.indexOf('|'); // svg|rect
+                    if (colon >= 0) {
+                        simple.type = simple.type.substring(colon + 1);
+                    }
+                } else {
+                    return null; // :hover, [attr], + and ~
+                }
+                p = q;
+            }
+            simple.classes = (String[])classes.toArray(new String[classes.size()]);
+            list.add(simple);
+        }
+        if (list.isEmpty() || child) {
+            return null;
+        }
+        return (Simple[])list.toArray(new Simple[list.size()]);
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '|';
+    }
+
+    private static Map parseDeclarations(String s) {
+        Map m = new HashMap();
+        for (StringTokenizer st = new StringTokenizer(s, ";"); st.hasMoreTokens();) {
+            String t = st.nextToken();
+            int ix = t.indexOf(':');
+            if (ix <= 0) {
+                continue;
+            }
+            String k = t.substring(0, ix).trim();
+            String v = t.substring(ix + 1).trim();
+            int imp = v.indexOf("!important");
+            if (imp >= 0) {
+                v = v.substring(0, imp).trim();
+            }
+            if (k.length() > 0 && v.length() > 0) {
+                m.put(k, v);
+            }
+        }
+        return m;
+    }
+
+    private static String stripComments(String s) {
+        int ix = s.indexOf("/*");
+        if (ix < 0) {
+            return s;
+        }
+        StringBuffer sb = new StringBuffer(s.length());
+        int p = 0;
+        while (ix >= 0) {
+            sb.append(s.substring(p, ix));
+            int end = s.indexOf("*/", ix + 2);
+            p = end < 0 ? s.length() : end + 2;
+            ix = s.indexOf("/*", p);
+        }
+        sb.append(s.substring(p));
+        return sb.toString();
+    }
+
+    /**
+     * @param s text
+     * @param open index of '{'
+     * @return index after the matching '}'
+     */
+    private static int skipBlock(String s, int open) {
+        int depth = 0;
+        for (int i = open; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return s.length();
+    }
+
+    private static boolean contains(String[] a, String s) {
+        return contains(a, s, a.length);
+    }
+
+    /**
+     * @return true if s is in a[0..n-1]
+     */
+    private static boolean contains(String[] a, String s, int n) {
+        for (int i = 0; i < n; i++) {
+            if (a[i].equals(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -6,6 +6,7 @@ import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Rectangle2D;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -230,6 +231,16 @@ class Text extends SVG.ShapeElement {
         }
     }
 
+    protected void write(Binary.Output out) throws IOException {
+        super.write(out);
+        out.writeShape(textShape);
+    }
+
+    protected void read(Binary.Input in) {
+        super.read(in);
+        textShape = in.readShape();
+    }
+
     void render(Graphics2D g) {
         beginLayer(g);
         renderShape(g, textShape);
@@ -240,8 +251,8 @@ class Text extends SVG.ShapeElement {
         return shapeToParent(textShape);
     }
 
-    Rectangle2D getBoundingBox() {
-        return boundsToParent(includeStrokeInBounds(textShape.getBounds2D()));
+    Rectangle2D calculateBoundingBox(boolean stroke) {
+        return boundsToParent(includeStrokeInBounds(textShape.getBounds2D(), stroke));
     }
 
     static class Tspan extends SVG.ShapeElement {
@@ -393,7 +404,7 @@ class Text extends SVG.ShapeElement {
                 if (path != null) {
                     renderShape(g, path);
                 } else {
-                    glyph.render(g);
+                    getRoot().renderElement(glyph, g);
                 }
                 if (x != null && posPtr < x.length) {
                     cursorX = x[posPtr];
@@ -421,7 +432,7 @@ class Text extends SVG.ShapeElement {
             return null;
         }
 
-        Rectangle2D getBoundingBox() {
+        Rectangle2D calculateBoundingBox(boolean stroke) {
             return null;
         }
 
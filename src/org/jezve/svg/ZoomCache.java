@@ -0,0 +1,340 @@
+package org.jezve.svg;
+
+import org.jezve.util.Parallel;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/** Tiled mipmap of a rendered document for zooming viewers.
+ *  Re-rendering a heavy document on every zoom step stalls the viewer
+ *  for the whole render. The cache keeps TILE x TILE images of the
+ *  document rendered at power of two scales (levels). A view at any
+ *  scale is painted from the next level up (downsampled, so sharp):
+ *  <pre>
+ *  level = ceil(log2(scale)), tiles drawn at scale / 2^level
+ *  </pre>
+ *  Tiles that are not rendered yet are queued for a background thread
+ *  and meanwhile painted from the nearest level that has them (finer
+ *  levels first, then coarser), so zooming shows a resampled picture at
+ *  once and sharpens as tiles arrive. Each arrival calls the listener,
+ *  which typically just repaints:
+ *  <pre>
+ *  ZoomCache zc = new ZoomCache(svg, 64 * 1024 * 1024);
+ *  zc.setListener(new Runnable() { public void run() { component.repaint(); } });
+ *  ...
+ *  public void paint(Graphics g) {
+ *      zc.paint((Graphics2D)g, scale, scrollX, scrollY, getWidth(), getHeight());
+ *  }
+ *  </pre>
+ *  Tiles are evicted least recently painted first when they exceed the
+ *  memory budget, tiles of the last painted view are never evicted.
+ *  Tiles queued for a view that has been scrolled or zoomed away are
+ *  dropped, the one being rendered is abandoned at the next element
+ *  (see RenderTask).
+ *  <p>
+ *  The cache renders the document from its own thread, nobody else may
+ *  render it until dispose(). Changes of the document are not tracked,
+ *  call clear() after changing it.
+ */
+public class ZoomCache {
+
+    public static final int TILE = 256;
+    private static final int MIN_LEVEL = -16;
+    private static final int MAX_LEVEL = 16;
+    private static final int FALLBACK_LEVELS = 4; // searched up and down for a substitute
+    private static final long SLICE = 50; // milliseconds of rendering between checks
+    private static final Object EMPTY = new Object(); // tile without any drawing on it
+
+    private final SVG svg;
+    private final long budget;
+    private final Parallel worker = new Parallel(1, "ZoomCache");
+    private final LinkedHashMap tiles = new LinkedHashMap(64, 0.75f, true); // Key -> BufferedImage or EMPTY
+    private final HashSet visible = new HashSet(); // Key, sharp tiles of the last painted view
+    private final HashSet queued = new HashSet(); // Key
+    private Runnable listener;
+    private long size; // bytes of cached images
+    private int generation; // incremented by clear(), tiles rendered before are dropped
+    private boolean disposed;
+
+    private static final class Key {
+
+        final int level;
+        final int x;
+        final int y;
+
+        Key(int level, int x, int y) {
+            this.level = level;
+            this.x = x;
+            this.y = y;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return level == k.level && x == k.x && y == k.y;
+        }
+
+        public int hashCode() {
+            return (level * 31 + x) * 31 + y;
+        }
+    }
+
+    /**
+     * @param svg document
+     * @param budget bytes of tile images to keep
+     */
+    public ZoomCache(SVG svg, long budget) {
+        this.svg = svg;
+        this.budget = budget;
+    }
+
+    /**
+     * @param r called from the rendering thread when a tile is ready or null
+     */
+    public synchronized void setListener(Runnable r) {
+        listener = r;
+    }
+
+    /**
+     * @param scale view scale
+     * @return mipmap level the view is painted from
+     */
+    public static int getLevel(double scale) {
+        int level = (int)Math.ceil(Math.log(scale) / Math.log(2) - 1e-9);
+        return Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+    }
+
+    /** paints the document at scale. Device pixel (0, 0) of g shows
+     *  the document point (x / scale, y / scale).
+     * @param g graphics
+     * @param scale device pixels per document unit
+     * @param x view origin in device pixels at scale
+     * @param y view origin in device pixels at scale
+     * @param w view width
+     * @param h view height
+     * @return true if painted at full resolution, false if some tiles were
+     *         substituted and the listener will be called when they arrive
+     */
+    public boolean paint(Graphics2D g, double scale, double x, double y, int w, int h) {
+        int level = getLevel(scale);
+        double r = scale / Math.pow(2, level);
+        int x0 = (int)Math.floor(x / (TILE * r));
+        int y0 = (int)Math.floor(y / (TILE * r));
+        int x1 = (int)Math.floor((x + w - 1) / (TILE * r));
+        int y1 = (int)Math.floor((y + h - 1) / (TILE * r));
+        // whole map: an unset interpolation hint cannot be restored by setRenderingHint()
+        RenderingHints hints = g.getRenderingHints();
+        Shape clip = g.getClip();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        boolean sharp = true;
+        ArrayList missing = new ArrayList(); // Key
+        try {
+            synchronized (this) {
+                visible.clear();
+                for (int j = y0; j <= y1; j++) {
+                    for (int i = x0; i <= x1; i++) {
+                        Key k = new Key(level, i, j);
+                        visible.add(k);
+                        Object tile = tiles.get(k);
+                        if (tile != null) {
+                            drawTile(g, tile, r, i, j, x, y);
+                        } else {
+                            missing.add(k);
+                        }
+                    }
+                }
+                for (int n = 0; n < missing.size(); n++) {
+                    Key k = (Key)missing.get(n);
+                    Rectangle d = getDeviceRect(r, k.x, k.y, x, y);
+                    g.setClip(clip);
+                    g.clip(d);
+                    substitute(g, scale, level, d, x, y);
+                    if (queued.add(k)) {
+                        queue(k);
+                    }
+                    sharp = false;
+                }
+            }
+        } finally {
+            g.setClip(clip);
+            g.setRenderingHints(hints);
+        }
+        return sharp;
+    }
+
+    /** paints the device rectangle from the nearest level that covers it best. */
+    private void substitute(Graphics2D g, double scale, int level, Rectangle d, double x, double y) {
+        int best = 0;
+        int bestLevel = level;
+        for (int n = 1; n <= FALLBACK_LEVELS * 2 && best < 100; n++) {
+            int f = level + (n % 2 == 1 ? (n + 1) / 2 : -n / 2); // finer first
+            if (f < MIN_LEVEL || f > MAX_LEVEL) {
+                continue;
+            }
+            int c = getCoverage(scale, f, d, x, y);
+            if (c > best) {
+                best = c;
+                bestLevel = f;
+            }
+        }
+        if (best == 0) {
+            return;
+        }
+        double r = scale / Math.pow(2, bestLevel);
+        int x0 = (int)Math.floor((d.x + x) / (TILE * r));
+        int y0 = (int)Math.floor((d.y + y) / (TILE * r));
+        int x1 = (int)Math.floor((d.x + d.width - 1 + x) / (TILE * r));
+        int y1 = (int)Math.floor((d.y + d.height - 1 + y) / (TILE * r));
+        for (int j = y0; j <= y1; j++) {
+            for (int i = x0; i <= x1; i++) {
+                Object tile = tiles.get(new Key(bestLevel, i, j));
+                if (tile != null) {
+                    drawTile(g, tile, r, i, j, x, y);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return percentage of tiles of the level covering device rectangle that are cached
+     */
+    private int getCoverage(double scale, int level, Rectangle d, double x, double y) {
+        double r = scale / Math.pow(2, level);
+        int x0 = (int)Math.floor((d.x + x) / (TILE * r));
+        int y0 = (int)Math.floor((d.y + y) / (TILE * r));
+        int x1 = (int)Math.floor((d.x + d.width - 1 + x) / (TILE * r));
+        int y1 = (int)Math.floor((d.y + d.height - 1 + y) / (TILE * r));
+        int total = (x1 - x0 + 1) * (y1 - y0 + 1);
+        if (total > 64) { // much finer level, not worth it
+            return 0;
+        }
+        int found = 0;
+        for (int j = y0; j <= y1; j++) {
+            for (int i = x0; i <= x1; i++) {
+                if (tiles.containsKey(new Key(level, i, j))) {
+                    found++;
+                }
+            }
+        }
+        return found * 100 / total;
+    }
+
+    /** neighbour tiles share rounded edges so there are no gaps between them. */
+    private static Rectangle getDeviceRect(double r, int i, int j, double x, double y) {
+        int dx0 = (int)Math.round(i * TILE * r - x);
+        int dy0 = (int)Math.round(j * TILE * r - y);
+        int dx1 = (int)Math.round((i + 1) * TILE * r - x);
+        int dy1 = (int)Math.round((j + 1) * TILE * r - y);
+        return new Rectangle(dx0, dy0, dx1 - dx0, dy1 - dy0);
+    }
+
+    private static void drawTile(Graphics2D g, Object tile, double r, int i, int j, double x, double y) {
+        if (tile == EMPTY) {
+            return;
+        }
+        Rectangle d = getDeviceRect(r, i, j, x, y);
+        if (d.width > 0 && d.height > 0) {
+            g.drawImage((BufferedImage)tile, d.x, d.y, d.x + d.width, d.y + d.height, 0, 0, TILE, TILE, null);
+        }
+    }
+
+    private void queue(final Key k) {
+        worker.execute(new Runnable() {
+            public void run() {
+                render(k);
+            }
+        });
+    }
+
+    /** renders the tile unless the view has moved away from it. */
+    private void render(Key k) {
+        int gen;
+        synchronized (this) {
+            if (disposed || !visible.contains(k)) {
+                queued.remove(k);
+                return;
+            }
+            gen = generation;
+        }
+        double ls = Math.pow(2, k.level);
+        Object tile = EMPTY;
+        Rectangle2D bounds = svg.getRoot().getBoundingBox();
+        Rectangle2D area = new Rectangle2D.Double(k.x * TILE / ls, k.y * TILE / ls, TILE / ls, TILE / ls);
+        if (bounds != null && bounds.intersects(area)) {
+            BufferedImage bi = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+            AffineTransform view = AffineTransform.getTranslateInstance(-k.x * TILE, -k.y * TILE);
+            view.scale(ls, ls);
+            RenderTask task = new RenderTask(svg, bi, view, false);
+            while (!task.render(SLICE)) {
+                synchronized (this) {
+                    if (disposed || !visible.contains(k)) {
+                        task.cancel();
+                    }
+                }
+            }
+            if (task.isCancelled()) {
+                synchronized (this) {
+                    queued.remove(k);
+                }
+                return;
+            }
+            tile = bi;
+        }
+        Runnable r;
+        synchronized (this) {
+            queued.remove(k);
+            if (disposed || gen != generation) {
+                return;
+            }
+            tiles.put(k, tile);
+            if (tile != EMPTY) {
+                size += TILE * TILE * 4;
+            }
+            evict();
+            r = listener;
+        }
+        if (r != null) {
+            r.run();
+        }
+    }
+
+    /** drops least recently painted tiles outside of the view until within budget. */
+    private void evict() {
+        for (Iterator i = tiles.entrySet().iterator(); i.hasNext() && size > budget;) {
+            Map.Entry e = (Map.Entry)i.next();
+            if (!visible.contains(e.getKey())) {
+                if (e.getValue() != EMPTY) {
+                    size -= TILE * TILE * 4;
+                }
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @return bytes of cached tile images
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /** drops all tiles, e.g. after the document has changed. */
+    public synchronized void clear() {
+        tiles.clear();
+        size = 0;
+        generation++;
+    }
+
+    /** stops rendering and drops all tiles. */
+    public synchronized void dispose() {
+        disposed = true;
+        worker.dispose();
+        clear();
+    }
+
+}
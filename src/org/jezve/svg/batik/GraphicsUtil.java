@@ -18,6 +18,8 @@
  */
 package org.jezve.svg.batik;
 
+import org.jezve.util.Parallel;
+
 import java.awt.*;
 import java.awt.color.ColorSpace;
 import java.awt.geom.AffineTransform;
@@ -38,6 +40,31 @@ public class GraphicsUtil {
     public static final AffineTransform IDENTITY = new AffineTransform();
     public static final boolean WARN_DESTINATION;
 
+    /**
+     * Default threshold: rasters of at least this many pixels are converted
+     * and copied in row stripes by a shared pool of threads (when there is
+     * more than one processor). Below it thread hand off costs more than it
+     * saves.
+     */
+    public static final int STRIPE_PIXELS = 256 * 256;
+
+    /**
+     * 0x00FF0000 / alpha, fixed point reciprocals for unpremultiplying
+     * without a division per pixel (same results as dividing).
+     */
+    private static final int[] DIVIDE_FP = new int[256];
+
+    private static Parallel pool;
+    private static boolean poolChecked;
+    private static int stripePixels = STRIPE_PIXELS;
+
+    /**
+     * Operation on a range of raster rows, relative to the raster minY.
+     */
+    public interface Rows {
+        void run(int y0, int y1);
+    }
+
     static {
         boolean warn = true;
         try {
@@ -50,6 +77,59 @@ public class GraphicsUtil {
         } finally {
             WARN_DESTINATION = warn;
         }
+        for (int a = 1; a < 256; a++) {
+            DIVIDE_FP[a] = 0x00FF0000 / a;
+        }
+    }
+
+    /**
+     * @return shared pool or null on single processor machines
+     */
+    private static synchronized Parallel getPool() {
+        if (!poolChecked) {
+            poolChecked = true;
+            if (Parallel.getProcessorCount() > 1) {
+                pool = new Parallel(0, "GraphicsUtil");
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @param pixels rasters of at least this many pixels are processed in
+     *               parallel stripes, Integer.MAX_VALUE disables striping
+     */
+    public static void setStripePixels(int pixels) {
+        stripePixels = pixels;
+    }
+
+    /**
+     * Runs op on all rows, split into stripes processed in parallel
+     * if the raster is at least stripe pixels large.
+     *
+     * @param width  raster width
+     * @param height raster height
+     * @param op     rows operation, stripes must be independent
+     */
+    public static void forStripes(int width, int height, final Rows op) {
+        Parallel p = height > 1 && (long)width * height >= stripePixels ? getPool() : null;
+        if (p == null) {
+            op.run(0, height);
+            return;
+        }
+        int n = Math.min(height, p.getThreadCount() * 2);
+        int rows = (height + n - 1) / n;
+        Runnable[] tasks = new Runnable[(height + rows - 1) / rows];
+        for (int i = 0; i < tasks.length; i++) {
+            final int y0 = i * rows;
+            final int y1 = Math.min(height, y0 + rows);
+            tasks[i] = new Runnable() {
+                public void run() {
+                    op.run(y0, y1);
+                }
+            };
+        }
+        p.invokeAll(tasks);
     }
 
     /**
@@ -157,26 +237,31 @@ public class GraphicsUtil {
         final int[] dstPixels = dstDB.getBankData()[0];
         final int dstBase = (dstDB.getOffset() +
                 dstSPPSM.getOffset(x0 - dst.getSampleModelTranslateX(), y0 - dst.getSampleModelTranslateY()));
-        if ((srcScanStride == dstScanStride) && (srcScanStride == width)) {
-            //  System.out.println("VERY Fast copyData");
-            System.arraycopy(srcPixels, srcBase, dstPixels, dstBase, width * height);
-        } else if (width > 128) {
-            int srcSP = srcBase;
-            int dstSP = dstBase;
-            for (int y = 0; y < height; y++) {
-                System.arraycopy(srcPixels, srcSP, dstPixels, dstSP, width);
-                srcSP += srcScanStride;
-                dstSP += dstScanStride;
-            }
-        } else {
-            for (int y = 0; y < height; y++) {
-                int srcSP = srcBase + y * srcScanStride;
-                int dstSP = dstBase + y * dstScanStride;
-                for (int x = 0; x < width; x++) {
-                    dstPixels[dstSP++] = srcPixels[srcSP++];
+        final int w = width;
+        forStripes(width, height, new Rows() {
+            public void run(int y0, int y1) {
+                if ((srcScanStride == dstScanStride) && (srcScanStride == w)) {
+                    //  System.out.println("VERY Fast copyData");
+                    System.arraycopy(srcPixels, srcBase + y0 * w, dstPixels, dstBase + y0 * w, w * (y1 - y0));
+                } else if (w > 128) {
+                    int srcSP = srcBase + y0 * srcScanStride;
+                    int dstSP = dstBase + y0 * dstScanStride;
+                    for (int y = y0; y < y1; y++) {
+                        System.arraycopy(srcPixels, srcSP, dstPixels, dstSP, w);
+                        srcSP += srcScanStride;
+                        dstSP += dstScanStride;
+                    }
+                } else {
+                    for (int y = y0; y < y1; y++) {
+                        int srcSP = srcBase + y * srcScanStride;
+                        int dstSP = dstBase + y * dstScanStride;
+                        for (int x = 0; x < w; x++) {
+                            dstPixels[dstSP++] = srcPixels[srcSP++];
+                        }
+                    }
                 }
             }
-        }
+        });
     }
 
     public static void copyData_FALLBACK(Raster src, WritableRaster dst) {
@@ -758,23 +843,27 @@ public class GraphicsUtil {
 
         //  Access the pixel data array
         final int[] pixels = db.getBankData()[0];
-        for (int y = 0; y < wr.getHeight(); y++) {
-            int sp = base + y * scanStride;
-            final int end = sp + width;
-            while (sp < end) {
-                int pixel = pixels[sp];
-                int a = pixel >>> 24;
-                if (a <= 0) {
-                    pixels[sp] = 0x00FFFFFF;
-                } else if (a < 255) {
-                    int aFP = (0x00FF0000 / a);
-                    pixels[sp] = ((a << 24) | (((((pixel & 0xFF0000) >> 16) * aFP) & 0xFF0000)) |
-                            (((((pixel & 0x00FF00) >> 8) * aFP) & 0xFF0000) >> 8) |
-                            (((((pixel & 0x0000FF)) * aFP) & 0xFF0000) >> 16));
+        forStripes(width, wr.getHeight(), new Rows() {
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int sp = base + y * scanStride;
+                    final int end = sp + width;
+                    while (sp < end) {
+                        int pixel = pixels[sp];
+                        int a = pixel >>> 24;
+                        if (a <= 0) {
+                            pixels[sp] = 0x00FFFFFF;
+                        } else if (a < 255) {
+                            int aFP = DIVIDE_FP[a];
+                            pixels[sp] = ((a << 24) | (((((pixel & 0xFF0000) >> 16) * aFP) & 0xFF0000)) |
+                                    (((((pixel & 0x00FF00) >> 8) * aFP) & 0xFF0000) >> 8) |
+                                    (((((pixel & 0x0000FF)) * aFP) & 0xFF0000) >> 16));
+                        }
+                        sp++;
+                    }
                 }
-                sp++;
             }
-        }
+        });
     }
 
     protected static void mult_INT_PACK_Data(WritableRaster wr) {
@@ -788,20 +877,24 @@ public class GraphicsUtil {
                 wr.getMinY() - wr.getSampleModelTranslateY()));
         //  Access the pixel data array
         final int[] pixels = db.getBankData()[0];
-        for (int y = 0; y < wr.getHeight(); y++) {
-            int sp = base + y * scanStride;
-            final int end = sp + width;
-            while (sp < end) {
-                int pixel = pixels[sp];
-                int a = pixel >>> 24;
-                if ((a >= 0) && (a < 255)) {   //  this does NOT include a == 255 (0xff) !
-                    pixels[sp] = ((a << 24) | ((((pixel & 0xFF0000) * a) >> 8) & 0xFF0000) |
-                            ((((pixel & 0x00FF00) * a) >> 8) & 0x00FF00) |
-                            ((((pixel & 0x0000FF) * a) >> 8) & 0x0000FF));
+        forStripes(width, wr.getHeight(), new Rows() {
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int sp = base + y * scanStride;
+                    final int end = sp + width;
+                    while (sp < end) {
+                        int pixel = pixels[sp];
+                        int a = pixel >>> 24;
+                        if ((a >= 0) && (a < 255)) {   //  this does NOT include a == 255 (0xff) !
+                            pixels[sp] = ((a << 24) | ((((pixel & 0xFF0000) * a) >> 8) & 0xFF0000) |
+                                    ((((pixel & 0x00FF00) * a) >> 8) & 0x00FF00) |
+                                    ((((pixel & 0x0000FF) * a) >> 8) & 0x0000FF));
+                        }
+                        sp++;
+                    }
                 }
-                sp++;
             }
-        }
+        });
     }
 
     protected static void divide_BYTE_COMP_Data(WritableRaster wr) {
@@ -813,32 +906,37 @@ public class GraphicsUtil {
         final int pixStride = csm.getPixelStride();
         final int[] bandOff = csm.getBandOffsets();
         DataBufferByte db = (DataBufferByte)wr.getDataBuffer();
+        //  getOffset() includes the offset of band 0, bandOff are added per band
         final int base = (db.getOffset() + csm.getOffset(wr.getMinX() - wr.getSampleModelTranslateX(),
-                wr.getMinY() - wr.getSampleModelTranslateY()));
-        int aOff = bandOff[bandOff.length - 1];
-        int bands = bandOff.length - 1;
+                wr.getMinY() - wr.getSampleModelTranslateY()) - bandOff[0]);
+        final int aOff = bandOff[bandOff.length - 1];
+        final int bands = bandOff.length - 1;
 
         //  Access the pixel data array
         final byte[] pixels = db.getBankData()[0];
-        for (int y = 0; y < wr.getHeight(); y++) {
-            int sp = base + y * scanStride;
-            final int end = sp + width * pixStride;
-            while (sp < end) {
-                int a = pixels[sp + aOff] & 0xFF;
-                if (a == 0) {
-                    for (int b = 0; b < bands; b++) {
-                        pixels[sp + bandOff[b]] = (byte)0xFF;
-                    }
-                } else if (a < 255) {         //  this does NOT include a == 255 (0xff) !
-                    int aFP = (0x00FF0000 / a);
-                    for (int b = 0; b < bands; b++) {
-                        int i = sp + bandOff[b];
-                        pixels[i] = (byte)(((pixels[i] & 0xFF) * aFP) >>> 16);
+        forStripes(width, wr.getHeight(), new Rows() {
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int sp = base + y * scanStride;
+                    final int end = sp + width * pixStride;
+                    while (sp < end) {
+                        int a = pixels[sp + aOff] & 0xFF;
+                        if (a == 0) {
+                            for (int b = 0; b < bands; b++) {
+                                pixels[sp + bandOff[b]] = (byte)0xFF;
+                            }
+                        } else if (a < 255) {         //  this does NOT include a == 255 (0xff) !
+                            int aFP = DIVIDE_FP[a];
+                            for (int b = 0; b < bands; b++) {
+                                int i = sp + bandOff[b];
+                                pixels[i] = (byte)(((pixels[i] & 0xFF) * aFP) >>> 16);
+                            }
+                        }
+                        sp += pixStride;
                     }
                 }
-                sp += pixStride;
             }
-        }
+        });
     }
 
     protected static void mult_BYTE_COMP_Data(WritableRaster wr) {
@@ -850,27 +948,32 @@ public class GraphicsUtil {
         final int pixStride = csm.getPixelStride();
         final int[] bandOff = csm.getBandOffsets();
         DataBufferByte db = (DataBufferByte)wr.getDataBuffer();
+        //  getOffset() includes the offset of band 0, bandOff are added per band
         final int base = (db.getOffset() + csm.getOffset(wr.getMinX() - wr.getSampleModelTranslateX(),
-                wr.getMinY() - wr.getSampleModelTranslateY()));
-        int aOff = bandOff[bandOff.length - 1];
-        int bands = bandOff.length - 1;
+                wr.getMinY() - wr.getSampleModelTranslateY()) - bandOff[0]);
+        final int aOff = bandOff[bandOff.length - 1];
+        final int bands = bandOff.length - 1;
 
         //  Access the pixel data array
         final byte[] pixels = db.getBankData()[0];
-        for (int y = 0; y < wr.getHeight(); y++) {
-            int sp = base + y * scanStride;
-            final int end = sp + width * pixStride;
-            while (sp < end) {
-                int a = pixels[sp + aOff] & 0xFF;
-                if (a != 0xFF) {
-                    for (int b = 0; b < bands; b++) {
-                        int i = sp + bandOff[b];
-                        pixels[i] = (byte)(((pixels[i] & 0xFF) * a) >> 8);
+        forStripes(width, wr.getHeight(), new Rows() {
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int sp = base + y * scanStride;
+                    final int end = sp + width * pixStride;
+                    while (sp < end) {
+                        int a = pixels[sp + aOff] & 0xFF;
+                        if (a != 0xFF) {
+                            for (int b = 0; b < bands; b++) {
+                                int i = sp + bandOff[b];
+                                pixels[i] = (byte)(((pixels[i] & 0xFF) * a) >> 8);
+                            }
+                        }
+                        sp += pixStride;
                     }
                 }
-                sp += pixStride;
             }
-        }
+        });
     }
 
 }
@@ -27,6 +27,9 @@ import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.*;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This is the superclass for all PaintContexts which use a multiple color
@@ -178,6 +181,119 @@ abstract class MultipleGradientPaintContext implements PaintContext {
      * satisfactory performance for the common case (fast lookup).
      */
     private static final int MAX_GRADIENT_ARRAY_SIZE = 5000;
+    /**
+     * Color tables of recently used stop lists. Every fill creates a new
+     * context, while documents use a handful of stop lists for hundreds
+     * of shapes. Tables are never modified after they are computed, so
+     * contexts share them.
+     */
+    private static final int MAX_CACHED_TABLES = 64;
+    private static final LinkedHashMap tables = new LinkedHashMap(16, 0.75f, true) { // TablesKey -> Tables, LRU
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > MAX_CACHED_TABLES;
+        }
+    };
+
+    /**
+     * Everything color tables depend on.
+     */
+    private static final class TablesKey {
+
+        private final float[] fractions;
+        private final int[] colors;
+        private final Object cycleMethod;
+        private final Object colorSpace;
+        private final ColorSpace cs;
+        private final boolean premultiplied;
+        private final int hash;
+
+        TablesKey(ColorModel cm, float[] fractions, Color[] colors, Object cycleMethod, Object colorSpace) {
+            this.fractions = (float[])fractions.clone();
+            this.colors = new int[colors.length];
+            int h = cycleMethod.hashCode() * 31 + colorSpace.hashCode();
+            for (int i = 0; i < colors.length; i++) {
+                this.colors[i] = colors[i].getRGB();
+                h = h * 31 + this.colors[i];
+            }
+            for (int i = 0; i < fractions.length; i++) {
+                h = h * 31 + Float.floatToIntBits(fractions[i]);
+            }
+            this.cycleMethod = cycleMethod;
+            this.colorSpace = colorSpace;
+            cs = cm.getColorSpace();
+            premultiplied = cm.isAlphaPremultiplied();
+            hash = h;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof TablesKey)) {
+                return false;
+            }
+            TablesKey k = (TablesKey)o;
+            return hash == k.hash && cycleMethod == k.cycleMethod && colorSpace == k.colorSpace &&
+                    cs == k.cs && premultiplied == k.premultiplied &&
+                    Arrays.equals(fractions, k.fractions) && Arrays.equals(colors, k.colors);
+        }
+    }
+
+    /**
+     * Results of the constructor that do not depend on the transform.
+     */
+    private static final class Tables {
+
+        private final float[] fractions;
+        private final float[] normalizedIntervals;
+        private final int gradientUnderflow;
+        private final int gradientOverflow;
+        private final boolean hasDiscontinuity;
+        private final boolean isSimpleLookup;
+        private final int transparencyTest;
+        private final int[][] gradients;
+        private final int gradientsLength;
+        private final int[] gradient;
+        private final int fastGradientArraySize;
+        private final int gradientAverage;
+        private final ColorModel dataModel;
+        private final ColorModel model;
+
+        Tables(MultipleGradientPaintContext c) {
+            fractions = c.fractions;
+            normalizedIntervals = c.normalizedIntervals;
+            gradientUnderflow = c.gradientUnderflow;
+            gradientOverflow = c.gradientOverflow;
+            hasDiscontinuity = c.hasDiscontinuity;
+            isSimpleLookup = c.isSimpleLookup;
+            transparencyTest = c.transparencyTest;
+            gradients = c.gradients;
+            gradientsLength = c.gradientsLength;
+            gradient = c.gradient;
+            fastGradientArraySize = c.fastGradientArraySize;
+            gradientAverage = c.gradientAverage;
+            dataModel = c.dataModel;
+            model = c.model;
+        }
+
+        void copyTo(MultipleGradientPaintContext c) {
+            c.fractions = fractions;
+            c.normalizedIntervals = normalizedIntervals;
+            c.gradientUnderflow = gradientUnderflow;
+            c.gradientOverflow = gradientOverflow;
+            c.hasDiscontinuity = hasDiscontinuity;
+            c.isSimpleLookup = isSimpleLookup;
+            c.transparencyTest = transparencyTest;
+            c.gradients = gradients;
+            c.gradientsLength = gradientsLength;
+            c.gradient = gradient;
+            c.fastGradientArraySize = fastGradientArraySize;
+            c.gradientAverage = gradientAverage;
+            c.dataModel = dataModel;
+            c.model = model;
+        }
+    }
 
     /**
      * Constructor for superclass. Does some initialization, but leaves most
@@ -190,6 +306,19 @@ abstract class MultipleGradientPaintContext implements PaintContext {
             AffineTransform t, RenderingHints hints, float[] fractions, Color[] colors,
             MultipleGradientPaint.CycleMethodEnum cycleMethod, MultipleGradientPaint.ColorSpaceEnum colorSpace)
             throws NoninvertibleTransformException {
+        setInverseTransform(t);
+        // copy some flags
+        this.cycleMethod = cycleMethod;
+        this.colorSpace = colorSpace;
+        TablesKey key = new TablesKey(cm, fractions, colors, cycleMethod, colorSpace);
+        Tables cached;
+        synchronized (tables) {
+            cached = (Tables)tables.get(key);
+        }
+        if (cached != null) {
+            cached.copyTo(this);
+            return;
+        }
         // We have to deal with the cases where the 1st gradient stop is not
         // equal to 0 and/or the last gradient stop is not equal to 1.
         // In both cases, create a new point and replicate the previous
@@ -250,6 +379,22 @@ abstract class MultipleGradientPaintContext implements PaintContext {
             this.fractions[idx] = 1;
         }
 
+        //  Setup an example Model, we may refine it later.
+        if (cm.getColorSpace() == lrgbmodel_A.getColorSpace()) {
+            dataModel = lrgbmodel_A;
+        } else if (cm.getColorSpace() == srgbmodel_A.getColorSpace()) {
+            dataModel = srgbmodel_A;
+        } else {
+            throw new IllegalArgumentException("Unsupported ColorSpace for interpolation");
+        }
+        calculateGradientFractions(loColors, hiColors);
+        model = GraphicsUtil.coerceColorModel(dataModel, cm.isAlphaPremultiplied());
+        synchronized (tables) {
+            tables.put(key, new Tables(this));
+        }
+    }
+
+    private void setInverseTransform(AffineTransform t) throws NoninvertibleTransformException {
         //  The inverse transform is needed to from device to user space.
         //  Get all the components of the inverse transform matrix.
         AffineTransform tInv = t.createInverse();
@@ -261,21 +406,6 @@ abstract class MultipleGradientPaintContext implements PaintContext {
         a11 = (float)m[3];
         a02 = (float)m[4];
         a12 = (float)m[5];
-
-        // copy some flags
-        this.cycleMethod = cycleMethod;
-        this.colorSpace = colorSpace;
-
-        //  Setup an example Model, we may refine it later.
-        if (cm.getColorSpace() == lrgbmodel_A.getColorSpace()) {
-            dataModel = lrgbmodel_A;
-        } else if (cm.getColorSpace() == srgbmodel_A.getColorSpace()) {
-            dataModel = srgbmodel_A;
-        } else {
-            throw new IllegalArgumentException("Unsupported ColorSpace for interpolation");
-        }
-        calculateGradientFractions(loColors, hiColors);
-        model = GraphicsUtil.coerceColorModel(dataModel, cm.isAlphaPremultiplied());
     }
 
     /**
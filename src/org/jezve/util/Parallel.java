@@ -0,0 +1,208 @@
+/**
+* Copyright (c) 2007-2008, jezve.org and its Contributors
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*     * Redistributions of source code must retain the above copyright
+*       notice, this list of conditions and the following disclaimer.
+*     * Redistributions in binary form must reproduce the above copyright
+*       notice, this list of conditions and the following disclaimer in the
+*       documentation and/or other materials provided with the distribution.
+*     * Neither the name of the jezve.org nor the
+*       names of its contributors may be used to endorse or promote products
+*       derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY jezve.org AND SOFTWARE CONTRIBUTORS ``AS IS'' AND ANY
+* EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL jezve.org or CONTRIBUTORS BE LIABLE FOR ANY
+* DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.jezve.util;
+
+import java.util.LinkedList;
+
+/** Fixed pool of worker threads executing queued Runnables.
+ *  Plain threads and wait/notify so it works on 1.4 (no java.util.concurrent).
+ *  Workers are daemon threads and exit on dispose().
+ *  Throwable escaping a task is kept and rethrown (as Error) by waitAll().
+ */
+public final class Parallel {
+
+    private final LinkedList queue = new LinkedList(); // Runnable
+    private final Thread[] workers;
+    private int running;
+    private boolean disposed;
+    private Throwable failure;
+
+    /**
+     * @param threads number of worker threads, &lt;= 0 means number of processors
+     * @param name used to name worker threads
+     */
+    public Parallel(int threads, String name) {
+        if (threads <= 0) {
+            threads = getProcessorCount();
+        }
+        workers = new Thread[threads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public static int getProcessorCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    /** queues task for execution by one of the workers.
+     * @param r task
+     */
+    public synchronized void execute(Runnable r) {
+        assert !disposed;
+        queue.addLast(r);
+        notifyAll();
+    }
+
+    /** runs tasks on the workers and in the calling thread and blocks
+     *  until all of them are finished. Unlike waitAll() it does not wait for
+     *  other queued tasks, so several threads may share the pool. Tasks that
+     *  no worker has picked up yet are run by the caller, which makes it safe
+     *  to call from a worker thread (nested calls do not deadlock).
+     *  Rethrows first failure of the tasks (as Error).
+     * @param tasks tasks to run
+     */
+    public void invokeAll(Runnable[] tasks) {
+        Batch b = new Batch(tasks);
+        int helpers = Math.min(workers.length, tasks.length - 1);
+        for (int i = 0; i < helpers; i++) {
+            execute(b);
+        }
+        b.run();
+        synchronized (b) {
+            while (b.done < tasks.length) {
+                try {
+                    b.wait();
+                } catch (InterruptedException e) {
+                    throw new Error(e);
+                }
+            }
+        }
+        if (b.failure != null) {
+            throw b.failure instanceof Error ? (Error)b.failure : new Error(b.failure);
+        }
+    }
+
+    /** tasks of invokeAll() taken one by one by whoever runs the batch. */
+    private static class Batch implements Runnable {
+
+        private final Runnable[] tasks;
+        private int next;
+        private int done;
+        private Throwable failure;
+
+        Batch(Runnable[] tasks) {
+            this.tasks = tasks;
+        }
+
+        public void run() {
+            for (;;) {
+                int i;
+                synchronized (this) {
+                    if (next >= tasks.length) {
+                        return;
+                    }
+                    i = next++;
+                }
+                Throwable t = null;
+                try {
+                    tasks[i].run();
+                } catch (Throwable x) {
+                    t = x;
+                }
+                synchronized (this) {
+                    if (t != null && failure == null) {
+                        failure = t;
+                    }
+                    done++;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /** blocks until all queued tasks are finished.
+     *  rethrows first failure of any task since previous waitAll().
+     */
+    public synchronized void waitAll() {
+        while (queue.size() > 0 || running > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new Error(e);
+            }
+        }
+        if (failure != null) {
+            Throwable t = failure;
+            failure = null;
+            throw t instanceof Error ? (Error)t : new Error(t);
+        }
+    }
+
+    /** drops queued tasks and stops workers after current tasks complete. */
+    public synchronized void dispose() {
+        disposed = true;
+        queue.clear();
+        notifyAll();
+    }
+
+    private void work() {
+        for (;;) {
+            Runnable r;
+            synchronized (this) {
+                while (queue.size() == 0 && !disposed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (disposed) {
+                    return;
+                }
+                r = (Runnable)queue.removeFirst();
+                running++;
+            }
+            try {
+                r.run();
+            } catch (Throwable t) {
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = t;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    running--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+}
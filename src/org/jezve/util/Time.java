@@ -36,6 +36,7 @@ public final class Time {
     private static Object sun_misc_Perf;
     private static long ticksPerSecond;
     private static Method highResCounter;
+    private static final Method nanoTime = getNanoTime();
 
     /** @return microsecond count (since some point in time)
      */
@@ -58,6 +59,31 @@ public final class Time {
         }
     }
 
+    /** @return nanosecond count (since some point in time), resolution
+     *  is milliseconds before Java 1.5
+     */
+    public static long nanoseconds() {
+        if (nanoTime != null) {
+            try {
+                return ((Long)nanoTime.invoke(null, Call.NONE)).longValue();
+            } catch (InvocationTargetException e) { /* ignore */
+            } catch (IllegalAccessException e) { /* ignore */
+            }
+        }
+        return System.currentTimeMillis() * 1000000L;
+    }
+
+    /** resolved once, so that nanoseconds() costs a single reflective call.
+     * @return System.nanoTime() or null before Java 1.5
+     */
+    private static Method getNanoTime() {
+        try {
+            return System.class.getMethod("nanoTime", Call.VOID);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
     /**
      * @param microseconds time to format into string
      * @return string formated milliseconds like 1234 microseconds becomes "1.23" milliseconds
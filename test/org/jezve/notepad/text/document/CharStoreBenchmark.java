@@ -0,0 +1,152 @@
+package org.jezve.notepad.text.document;
+
+import org.jezve.util.Time;
+
+import java.util.*;
+
+/** Timing of random position edits of a large document in the gap buffer
+ *  (CharBuffer) and in the rope (CharRope) behind StyledText.
+ *  Output is CSV, total milliseconds of every operation:
+ *  <pre>
+ *  op,count,gap,rope,speedup
+ *  </pre>
+ *  Both stores get the same edits and are compared at the end.
+ *  <p>
+ *  usage: CharStoreBenchmark [-size megabytes] [-edits n]
+ *  don't forget: -Xmx1g
+ */
+public class CharStoreBenchmark {
+
+    private static final String[] OPS = {"load", "insert", "delete", "at", "snapshot"};
+
+    private static int megabytes = 100;
+    private static int edits = 1000;
+
+    public static void main(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if ("-size".equals(args[i])) {
+                megabytes = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("-edits".equals(args[i])) {
+                edits = Math.max(1, Integer.parseInt(args[++i]));
+            }
+        }
+        char[] text = createText(megabytes * 1024 * 1024 / 2); // chars are two bytes
+        System.out.println("document " + megabytes + "MB, " + text.length + " chars");
+        System.out.println("op,count,gap,rope,speedup");
+        long[] gap = new long[OPS.length];
+        long[] rope = new long[OPS.length];
+        CharBuffer cb = new CharBuffer();
+        CharRope cr = new CharRope();
+        gap[0] = load(cb, text);
+        rope[0] = load(cr, text);
+        text = null;
+        for (int op = 1; op < OPS.length; op++) {
+            gap[op] = measure(op, cb, null);
+            rope[op] = measure(op, null, cr);
+        }
+        for (int op = 0; op < OPS.length; op++) {
+            System.out.println("\"" + OPS[op] + "\"," + (op == 0 ? 1 : edits) + "," +
+                    Time.milliseconds(gap[op]) + "," + Time.milliseconds(rope[op]) + "," +
+                    (rope[op] > 0 ? gap[op] * 100 / rope[op] / 100.0 : 0));
+        }
+        if (!same(cb, cr)) {
+            throw new Error("gap buffer and rope differ");
+        }
+    }
+
+    private static char[] createText(int length) {
+        char[] text = new char[length];
+        Random r = new Random(length);
+        for (int i = 0; i < length; i++) {
+            int c = r.nextInt(64);
+            text[i] = c == 0 ? '\n' : c < 10 ? ' ' : (char)('a' + c % 26);
+        }
+        return text;
+    }
+
+    private static long load(Object store, char[] text) {
+        long t = Time.microseconds();
+        if (store instanceof CharBuffer) {
+            ((CharBuffer)store).replace(0, 0, text, 0, text.length);
+        } else {
+            ((CharRope)store).replace(0, 0, text, 0, text.length);
+        }
+        return Time.microseconds() - t;
+    }
+
+    /**
+     * @return total time of edits operations in microseconds, the same
+     *         random positions are used for both stores
+     */
+    private static long measure(int op, CharBuffer cb, CharRope cr) {
+        Random r = new Random(op);
+        String word = "inserted ";
+        int checksum = 0;
+        long t = Time.microseconds();
+        for (int n = 0; n < edits; n++) {
+            int length = cb != null ? cb.length() : cr.length();
+            int pos = r.nextInt(length - 16);
+            switch (op) {
+                case 1:
+                    if (cb != null) {
+                        cb.replace(pos, pos, word, 0, word.length());
+                    } else {
+                        cr.replace(pos, pos, word, 0, word.length());
+                    }
+                    break;
+                case 2:
+                    if (cb != null) {
+                        cb.replace(pos, pos + 16, (char[])null, 0, 0);
+                    } else {
+                        cr.replace(pos, pos + 16, (char[])null, 0, 0);
+                    }
+                    break;
+                case 3:
+                    checksum += cb != null ? cb.at(pos) : cr.at(pos);
+                    break;
+                case 4:
+                    // what StyledText.extract() needs for undo: a copy of the whole text
+                    if (cb != null) {
+                        CharBuffer copy = new CharBuffer(length);
+                        char[] chars = new char[length];
+                        cb.at(0, length, chars, 0);
+                        copy.replace(0, 0, chars, 0, length);
+                        checksum += copy.length();
+                    } else {
+                        checksum += cr.snapshot().length();
+                    }
+                    break;
+            }
+            if (op == 4 && n == 4 && cb != null) {
+                // full copies take long, extrapolate from the first five
+                return (Time.microseconds() - t) * edits / 5;
+            }
+        }
+        t = Time.microseconds() - t;
+        if (checksum == 42) {
+            System.out.print(""); // keep at() from being optimized away
+        }
+        return t;
+    }
+
+    private static boolean same(CharBuffer cb, CharRope cr) {
+        int length = cb.length();
+        if (length != cr.length()) {
+            return false;
+        }
+        char[] a = new char[CharRope.kLeafSize * 64];
+        char[] b = new char[a.length];
+        for (int start = 0; start < length; start += a.length) {
+            int limit = Math.min(length, start + a.length);
+            cb.at(start, limit, a, 0);
+            cr.at(start, limit, b, 0);
+            for (int i = 0; i < limit - start; i++) {
+                if (a[i] != b[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
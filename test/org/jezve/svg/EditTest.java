@@ -0,0 +1,117 @@
+package org.jezve.svg;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/** Checks that changes of editable documents (see SVG.readEditable())
+ *  are rendered: class changes pick up the style sheet rules that match
+ *  now and inline properties keep overriding the sheet. Dirty rectangles
+ *  returned by the changes must cover all pixels that changed, including
+ *  the filter regions of the element and its ancestors.
+ *  <p>
+ *  usage: java org.jezve.svg.EditTest
+ */
+public class EditTest {
+
+    private static final String DOC =
+            "<svg xmlns='http://www.w3.org/2000/svg' width='10' height='10'>" +
+            "<style>.a{fill:#ff0000} .b{fill:#0000ff} g.b rect{fill:#00ff00}</style>" +
+            "<g id='g'><rect id='r' class='a' width='10' height='10'/></g>" +
+            "</svg>";
+
+    private static final String BLUR =
+            "<svg xmlns='http://www.w3.org/2000/svg' width='80' height='80'>" +
+            "<filter id='f'><feGaussianBlur stdDeviation='4'/></filter>" +
+            "<circle id='c' cx='20' cy='20' r='6' fill='red' filter='url(#f)'/>" +
+            "<g filter='url(#f)' transform='translate(40 40)'>" +
+            "<circle id='d' cx='20' cy='20' r='6' fill='red'/></g>" +
+            "</svg>";
+
+    private static SVG read(String doc) throws IOException {
+        return SVG.readEditable(new ByteArrayInputStream(doc.getBytes("UTF-8")));
+    }
+
+    private static BufferedImage render(SVG svg, int size) {
+        BufferedImage bi = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = bi.createGraphics();
+        try {
+            svg.render(g);
+        } finally {
+            g.dispose();
+        }
+        return bi;
+    }
+
+    private static int render(SVG svg) {
+        return render(svg, 10).getRGB(5, 5);
+    }
+
+    /** changes fill of the element and compares the returned dirty
+     *  rectangle with the pixels that actually changed. */
+    private static void checkDirty(SVG svg, String id, String fill) {
+        BufferedImage before = render(svg, 80);
+        Rectangle dirty = svg.setStyle(id, "fill", fill, new AffineTransform());
+        BufferedImage after = render(svg, 80);
+        Rectangle changed = null;
+        for (int y = 0; y < 80; y++) {
+            for (int x = 0; x < 80; x++) {
+                if (before.getRGB(x, y) != after.getRGB(x, y)) {
+                    Rectangle p = new Rectangle(x, y, 1, 1);
+                    changed = changed == null ? p : changed.union(p);
+                }
+            }
+        }
+        if (changed == null || !dirty.contains(changed)) {
+            throw new Error(id + ": dirty " + dirty + " changed " + changed);
+        }
+    }
+
+    private static void check(SVG svg, String fill) {
+        String s = svg.get("r").getStyleString("fill");
+        if (!fill.equals(s)) {
+            throw new Error("fill " + s + " instead of " + fill);
+        }
+        int rgb = render(svg);
+        if ((rgb & 0xFFFFFF) != Integer.parseInt(fill.substring(1), 16)) {
+            throw new Error("rendered " + Integer.toHexString(rgb) + " instead of " + fill);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        AffineTransform view = new AffineTransform();
+        SVG svg = read(DOC);
+        check(svg, "#ff0000");
+        svg.setAttribute("r", "class", "b", view);
+        check(svg, "#0000ff");
+        svg.setAttribute("r", "class", "a", view);
+        check(svg, "#ff0000");
+
+        // contextual selector matched after a class change of an ancestor
+        svg.setAttribute("g", "class", "b", view);
+        check(svg, "#00ff00");
+        svg.setAttribute("g", "class", null, view);
+        check(svg, "#ff0000");
+
+        // inline properties override the sheet across class changes
+        svg.setStyle("r", "fill", "#ffff00", view);
+        check(svg, "#ffff00");
+        svg.setAttribute("r", "class", "b", view);
+        check(svg, "#ffff00");
+        svg.setStyle("r", "fill", null, view);
+        check(svg, "#0000ff");
+        svg.setAttribute("r", "style", "fill:#00ffff", view);
+        check(svg, "#00ffff");
+        svg.setAttribute("r", "style", null, view);
+        check(svg, "#0000ff");
+
+        // filtered element and element inside of a filtered group
+        SVG blur = read(BLUR);
+        checkDirty(blur, "c", "blue");
+        checkDirty(blur, "d", "blue");
+        System.out.println("ok");
+    }
+
+}
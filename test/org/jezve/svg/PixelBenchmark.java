@@ -0,0 +1,106 @@
+package org.jezve.svg;
+
+import org.jezve.svg.batik.GraphicsUtil;
+import org.jezve.util.*;
+
+import java.awt.image.*;
+import java.util.*;
+
+/** Timing of GraphicsUtil raster conversions on one thread and in
+ *  parallel row stripes (see GraphicsUtil.setStripePixels()).
+ *  Output is CSV, median milliseconds of every operation:
+ *  <pre>
+ *  op,size,single,striped,speedup
+ *  </pre>
+ *  int operations work on TYPE_INT_ARGB rasters, byte operations on
+ *  TYPE_4BYTE_ABGR. Sizes that do not fit in memory are reported as
+ *  skipped.
+ *  <p>
+ *  usage: PixelBenchmark [-sizes 512,2048,8192] [-iterations n]
+ *  don't forget: -Djava.awt.headless=true -Xmx1g
+ */
+public class PixelBenchmark {
+
+    private static final String[] OPS = {"copy int", "multiply int", "divide int", "multiply byte", "divide byte"};
+
+    private static int[] sizes = {512, 2048, 8192};
+    private static int iterations = 5;
+
+    public static void main(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if ("-iterations".equals(args[i])) {
+                iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("-sizes".equals(args[i])) {
+                StringTokenizer st = new StringTokenizer(args[++i], ",");
+                sizes = new int[st.countTokens()];
+                for (int k = 0; k < sizes.length; k++) {
+                    sizes[k] = Integer.parseInt(st.nextToken().trim());
+                }
+            }
+        }
+        System.out.println("processors " + Parallel.getProcessorCount());
+        System.out.println("op,size,single,striped,speedup");
+        for (int k = 0; k < sizes.length; k++) {
+            for (int op = 0; op < OPS.length; op++) {
+                int s = sizes[k];
+                try {
+                    WritableRaster src = createRaster(op, s);
+                    WritableRaster dst = createRaster(op, s);
+                    GraphicsUtil.setStripePixels(Integer.MAX_VALUE);
+                    long single = measure(op, src, dst);
+                    GraphicsUtil.setStripePixels(GraphicsUtil.STRIPE_PIXELS);
+                    long striped = measure(op, src, dst);
+                    System.out.println("\"" + OPS[op] + "\"," + s + "," + Time.milliseconds(single) + "," +
+                            Time.milliseconds(striped) + "," + (striped > 0 ? single * 100 / striped / 100.0 : 0));
+                } catch (OutOfMemoryError e) {
+                    System.out.println("\"" + OPS[op] + "\"," + s + ",skipped,skipped,0");
+                } finally {
+                    GraphicsUtil.setStripePixels(GraphicsUtil.STRIPE_PIXELS);
+                }
+            }
+        }
+    }
+
+    private static WritableRaster createRaster(int op, int size) {
+        int type = op <= 2 ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_4BYTE_ABGR;
+        WritableRaster wr = new BufferedImage(size, size, type).getRaster();
+        int[] row = new int[size * wr.getNumBands()];
+        Random r = new Random(size);
+        for (int y = 0; y < size; y++) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = r.nextInt(256);
+            }
+            wr.setPixels(0, y, size, 1, row);
+        }
+        return wr;
+    }
+
+    /**
+     * @return median time of the operation in microseconds
+     */
+    private static long measure(int op, WritableRaster src, WritableRaster dst) {
+        long[] times = new long[iterations];
+        for (int n = -1; n < iterations; n++) { // first run is warmup
+            long t = Time.microseconds();
+            switch (op) {
+                case 0:
+                    GraphicsUtil.copyData(src, dst);
+                    break;
+                case 1:
+                case 3:
+                    GraphicsUtil.multiplyAlpha(dst);
+                    break;
+                case 2:
+                case 4:
+                    GraphicsUtil.divideAlpha(dst);
+                    break;
+            }
+            if (n >= 0) {
+                times[n] = Time.microseconds() - t;
+            }
+        }
+        Arrays.sort(times);
+        return times[iterations / 2];
+    }
+
+}
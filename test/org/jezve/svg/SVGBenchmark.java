@@ -0,0 +1,244 @@
+package org.jezve.svg;
+
+import org.jezve.util.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.List;
+
+/** Per file, per phase timing of SVG loading and rendering.
+ *  Unlike SVGTest it does not measure from inside Swing paint() and
+ *  runs warmup iterations before measuring, so results are stable
+ *  enough to compare between releases.
+ *  <p>
+ *  Phases:
+ *  <pre>
+ *  parse   - XML parsing and element creation (file bytes are in memory)
+ *  build   - Element.build() of the whole tree
+ *  resolve - Element.resolve() of the whole tree
+ *  first   - first render of the freshly loaded document at the largest size
+ *  warmNNN - render of already rendered document into NNNxNNN image
+ *  </pre>
+ *  For every phase the median time and the bytes allocated by the
+ *  benchmark thread are reported. Allocation is measured with
+ *  com.sun.management.ThreadMXBean when present (-1 otherwise), GC count is
+ *  the number of collections during measured iterations of the file.
+ *  Output is CSV on stdout, one line per file and phase.
+ *  <p>
+ *  usage: SVGBenchmark [-warmup n] [-iterations n] [-sizes 16,64,256] [-lod] [dir|file]...
+ *  -lod enables level of detail rendering (see SVG.setLevelOfDetail)
+ *  default directory is test/svg (including test/svg/slow).
+ *  don't forget: -Djava.awt.headless=true -Xmx512m
+ */
+public class SVGBenchmark {
+
+    private static int warmup = 5;
+    private static int iterations = 10;
+    private static int[] sizes = {16, 64, 256};
+    private static boolean lod;
+
+    private static Object threadBean;
+    private static Method allocatedBytes;
+    private static Object[] gcBeans;
+    private static Method gcCount;
+
+    private static class Sample {
+
+        final String name;
+        final long[] usecs;
+        final long[] bytes;
+
+        Sample(String name, int n) {
+            this.name = name;
+            usecs = new long[n];
+            bytes = new long[n];
+        }
+
+        long median(long[] a) {
+            long[] s = (long[])a.clone();
+            Arrays.sort(s);
+            return s[s.length / 2];
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List files = new ArrayList();
+        for (int i = 0; i < args.length; i++) {
+            if ("-warmup".equals(args[i])) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if ("-iterations".equals(args[i])) {
+                iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("-lod".equals(args[i])) {
+                lod = true;
+            } else if ("-sizes".equals(args[i])) {
+                StringTokenizer st = new StringTokenizer(args[++i], ",");
+                sizes = new int[st.countTokens()];
+                for (int k = 0; k < sizes.length; k++) {
+                    sizes[k] = Integer.parseInt(st.nextToken().trim());
+                }
+            } else {
+                getFiles(new File(args[i]), files);
+            }
+        }
+        if (files.size() == 0) {
+            getFiles(new File("test/svg"), files);
+        }
+        Collections.sort(files);
+        initManagement();
+        System.out.println("file,phase,median_usec,alloc_bytes,gc_count");
+        for (Iterator i = files.iterator(); i.hasNext();) {
+            File f = (File)i.next();
+            try {
+                benchmark(f);
+            } catch (IOException e) {
+                System.err.println(f + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void benchmark(File f) throws IOException {
+        byte[] bytes = IO.readFile(f);
+        Sample parse = new Sample("parse", iterations);
+        Sample build = new Sample("build", iterations);
+        Sample resolve = new Sample("resolve", iterations);
+        Sample first = new Sample("first", iterations);
+        Sample[] warm = new Sample[sizes.length];
+        for (int k = 0; k < sizes.length; k++) {
+            warm[k] = new Sample("warm" + sizes[k], iterations);
+        }
+        BufferedImage[] images = new BufferedImage[sizes.length];
+        for (int k = 0; k < sizes.length; k++) {
+            images[k] = new BufferedImage(sizes[k], sizes[k], BufferedImage.TYPE_INT_ARGB);
+        }
+        long gc = 0;
+        for (int n = -warmup; n < iterations; n++) {
+            int ix = Math.max(n, 0);
+            if (n == 0) {
+                gc = getGCCount();
+            }
+            long t = Time.microseconds();
+            long a = getAllocatedBytes();
+            SVG svg = SVG.parse(new ByteArrayInputStream(bytes));
+            record(parse, ix, t, a);
+            if (svg == null) {
+                return;
+            }
+            if (lod) {
+                svg.setLevelOfDetail(0.5f, 0.25f, 0.25f);
+            }
+            t = Time.microseconds();
+            a = getAllocatedBytes();
+            svg.build();
+            record(build, ix, t, a);
+            t = Time.microseconds();
+            a = getAllocatedBytes();
+            svg.resolve();
+            record(resolve, ix, t, a);
+            int last = sizes.length - 1;
+            t = Time.microseconds();
+            a = getAllocatedBytes();
+            render(svg, images[last]);
+            record(first, ix, t, a);
+            for (int k = 0; k < sizes.length; k++) {
+                t = Time.microseconds();
+                a = getAllocatedBytes();
+                render(svg, images[k]);
+                record(warm[k], ix, t, a);
+            }
+        }
+        gc = getGCCount() - gc;
+        String name = f.getPath().replace(File.separatorChar, '/');
+        print(name, parse, gc);
+        print(name, build, gc);
+        print(name, resolve, gc);
+        print(name, first, gc);
+        for (int k = 0; k < sizes.length; k++) {
+            print(name, warm[k], gc);
+        }
+    }
+
+    private static void record(Sample s, int ix, long usecs, long bytes) {
+        long a = getAllocatedBytes();
+        s.usecs[ix] = Time.microseconds() - usecs;
+        s.bytes[ix] = bytes < 0 ? -1 : a - bytes;
+    }
+
+    private static void print(String file, Sample s, long gc) {
+        System.out.println("\"" + file + "\"," + s.name + "," + s.median(s.usecs) + "," +
+                s.median(s.bytes) + "," + gc);
+    }
+
+    private static void render(SVG svg, BufferedImage bi) {
+        Graphics2D g = bi.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, bi.getWidth(), bi.getHeight());
+            g.setComposite(AlphaComposite.SrcOver);
+            g.transform(svg.getRoot().getViewTransform(bi.getWidth(), bi.getHeight()));
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            svg.render(g);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /* java.lang.management is 1.5+ and the allocation counter is
+       com.sun specific, hence reflection */
+
+    private static void initManagement() {
+        try {
+            Class mf = Class.forName("java.lang.management.ManagementFactory");
+            threadBean = mf.getMethod("getThreadMXBean", Call.VOID).invoke(null, Call.NONE);
+            Class tb = Class.forName("com.sun.management.ThreadMXBean");
+            if (tb.isInstance(threadBean)) {
+                allocatedBytes = tb.getMethod("getThreadAllocatedBytes", new Class[]{long.class});
+            }
+            List beans = (List)mf.getMethod("getGarbageCollectorMXBeans", Call.VOID).invoke(null, Call.NONE);
+            gcBeans = beans.toArray();
+            gcCount = Class.forName("java.lang.management.GarbageCollectorMXBean").
+                    getMethod("getCollectionCount", Call.VOID);
+        } catch (Throwable e) {
+            // not available: allocation and gc are reported as -1
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+        Object[] p = new Object[]{new Long(Thread.currentThread().getId())};
+        return ((Long)Call.call(allocatedBytes, threadBean, p)).longValue();
+    }
+
+    private static long getGCCount() {
+        if (gcCount == null) {
+            return -1;
+        }
+        long n = 0;
+        for (int i = 0; i < gcBeans.length; i++) {
+            n += Math.max(0, ((Long)Call.call(gcCount, gcBeans[i], Call.NONE)).longValue());
+        }
+        return n;
+    }
+
+    private static void getFiles(File f, List files) {
+        if (f.isDirectory()) {
+            File[] ls = f.listFiles();
+            for (int i = 0; ls != null && i < ls.length; i++) {
+                if (!ls[i].getName().startsWith(".")) {
+                    getFiles(ls[i], files);
+                }
+            }
+        } else {
+            String name = f.getName().toLowerCase();
+            if (name.endsWith(".svg") || name.endsWith(".svgz")) {
+                files.add(f);
+            }
+        }
+    }
+
+}
@@ -5,7 +5,6 @@ import org.jezve.util.*;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.*;
@@ -31,55 +30,7 @@ public class SVGTest {
             BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_4BYTE_ABGR);
             Graphics2D g2d = (Graphics2D)bi.getGraphics();
             try {
-                // http://www.w3.org/TR/SVG/coords.html#ViewBoxAttribute
-                Root r = svg.getRoot();
-                Rectangle2D viewBox = r.getViewBox();
-                Rectangle2D bbox = r.getBoundingBox();
-                float sx = r.getX();
-                float sy = r.getY();
-                float sw = r.getWidth();
-                float sh = r.getHeight();
-                if (sw == 0 || sh == 0) {
-                    sx = (float)bbox.getX();
-                    sw = (float)bbox.getWidth();
-                    sy = (float)bbox.getX();
-                    sh = (float)bbox.getHeight();
-                }
-                if (viewBox == null) {
-                    viewBox = new Rectangle2D.Float(sx, sy, sw, sh);
-                }
-                double xscale = w / viewBox.getWidth();
-                double yscale = h / viewBox.getHeight();
-                AffineTransform sc;
-                if (r.getParAlignX() == Root.PA_X_NONE || r.getParAlignY() == Root.PA_Y_NONE) {
-                    assert r.getParAlignX() == Root.PA_X_NONE && r.getParAlignY() == Root.PA_Y_NONE;
-                    sc = AffineTransform.getScaleInstance(xscale, yscale);
-                } else {
-                    double scale = r.getMeetOrSlice() == Root.PS_MEET ?
-                            Math.min(xscale, yscale) : Math.max(xscale, yscale);
-                    sc = AffineTransform.getScaleInstance(scale, scale);
-                    double dx = w / scale - viewBox.getWidth();
-                    double dy = h / scale - viewBox.getHeight();
-                    if (r.getParAlignX() == Root.PA_X_MIN) {
-                        dx = 0;
-                    } else if (r.getParAlignX() == Root.PA_X_MID) {
-                        dx = dx / 2;
-                    } else {
-                        // right aligned, keep dx
-                    }
-                    if (r.getParAlignY() == Root.PA_Y_MIN) {
-                        dy = 0;
-                    } else if (r.getParAlignY() == Root.PA_Y_MID) {
-                        dy = dy / 2;
-                    } else {
-                        // right aligned, keep dx
-                    }
-                    sc.concatenate(AffineTransform.getTranslateInstance(dx - viewBox.getX(), dy - viewBox.getY()));
-                }
-/*
-                System.out.println("boundingBox=" + r.getBoundingBox() + " viewBox=" + r.getViewBox() +
-                        " box=" + new Rectangle2D.Float(sx, sy, sw, sh));
-*/
+                AffineTransform sc = svg.getRoot().getViewTransform(w, h);
                 long time = Time.microseconds();
                 g2d.setTransform(sc);
                 g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);